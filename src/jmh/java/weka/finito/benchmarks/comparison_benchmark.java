@@ -0,0 +1,100 @@
+package weka.finito.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import security.dgk.DGKOperations;
+import security.paillier.PaillierCipher;
+import weka.finito.structs.BigIntegers;
+import weka.finito.structs.NodeInfo;
+import weka.finito.structs.features;
+import weka.finito.structs.level_order_site;
+import weka.finito.utils.shared;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Comparisons of a level-site with a client, each one is a full round trip with the loopback bob.
+ * The raw protocols are measured next to shared.compare and shared.traverse_level, which wrap them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class comparison_benchmark {
+    private loopback pair;
+    private BigInteger dgk_x;
+    private BigInteger dgk_y;
+    private BigInteger paillier_x;
+    private BigInteger paillier_y;
+    private NodeInfo node;
+    private features encrypted_features;
+    private level_order_site level_site_data;
+
+    @Setup(Level.Trial)
+    public void connect(crypto_state keys) throws Exception {
+        pair = new loopback(keys.paillier, keys.dgk);
+        dgk_x = DGKOperations.encrypt(5, keys.dgk_public_key);
+        dgk_y = DGKOperations.encrypt(9, keys.dgk_public_key);
+        paillier_x = PaillierCipher.encrypt(BigInteger.valueOf(5), keys.paillier_public_key);
+        paillier_y = PaillierCipher.encrypt(BigInteger.valueOf(9), keys.paillier_public_key);
+
+        HashMap<String, BigIntegers> values = new HashMap<>();
+        values.put("petalwidth", new BigIntegers(paillier_x, dgk_x));
+        encrypted_features = new features(values, "127.0.0.1", 0);
+
+        // A '<=' and '>' pair, as the server-site splits an inequality into two nodes
+        node = new NodeInfo(false, "petalwidth", 4);
+        node.encrypt(BigInteger.valueOf(7), keys.paillier_public_key, keys.dgk_public_key);
+        NodeInfo other_side = new NodeInfo(false, "petalwidth", 3);
+        other_side.encrypt(BigInteger.valueOf(7), keys.paillier_public_key, keys.dgk_public_key);
+        level_site_data = new level_order_site(1, keys.paillier_public_key, keys.dgk_public_key);
+        level_site_data.append_data(node);
+        level_site_data.append_data(other_side);
+    }
+
+    @TearDown(Level.Trial)
+    public void disconnect() throws IOException {
+        pair.close();
+    }
+
+    @Benchmark
+    public boolean protocol2_dgk() throws Exception {
+        pair.niu.writeInt(1);
+        pair.niu.setDGKMode(true);
+        return pair.niu.Protocol2(dgk_x, dgk_y);
+    }
+
+    @Benchmark
+    public boolean protocol2_paillier() throws Exception {
+        pair.niu.writeInt(0);
+        pair.niu.setDGKMode(false);
+        return pair.niu.Protocol2(paillier_x, paillier_y);
+    }
+
+    @Benchmark
+    public boolean encrypted_equals() throws Exception {
+        pair.niu.writeInt(2);
+        pair.niu.setDGKMode(true);
+        return pair.niu.encrypted_equals(dgk_x, dgk_y);
+    }
+
+    @Benchmark
+    public boolean compare() throws Exception {
+        return shared.compare(node, node.comparisonType, encrypted_features, pair.niu);
+    }
+
+    @Benchmark
+    public NodeInfo traverse_level() throws Exception {
+        encrypted_features.set_current_index(0);
+        return shared.traverse_level(level_site_data, encrypted_features, pair.niu);
+    }
+}
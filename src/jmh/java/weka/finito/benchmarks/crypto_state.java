@@ -0,0 +1,38 @@
+package weka.finito.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import security.dgk.DGKKeyPairGenerator;
+import security.dgk.DGKPublicKey;
+import security.paillier.PaillierKeyPairGenerator;
+import security.paillier.PaillierPublicKey;
+
+import java.security.KeyPair;
+
+// Key pairs shared by every benchmark of a trial, generated once per key size (the keys need at least 2048 bits)
+@State(Scope.Benchmark)
+public class crypto_state {
+    @Param({"2048", "3072"})
+    public int key_size;
+    public KeyPair paillier;
+    public KeyPair dgk;
+    public PaillierPublicKey paillier_public_key;
+    public DGKPublicKey dgk_public_key;
+
+    @Setup(Level.Trial)
+    public void generate_keys() {
+        DGKKeyPairGenerator p = new DGKKeyPairGenerator();
+        p.initialize(key_size, null);
+        dgk = p.generateKeyPair();
+
+        PaillierKeyPairGenerator pa = new PaillierKeyPairGenerator();
+        pa.initialize(key_size, null);
+        paillier = pa.generateKeyPair();
+
+        dgk_public_key = (DGKPublicKey) dgk.getPublic();
+        paillier_public_key = (PaillierPublicKey) paillier.getPublic();
+    }
+}
@@ -0,0 +1,66 @@
+package weka.finito.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import weka.finito.structs.BigIntegers;
+import weka.finito.structs.NodeInfo;
+import weka.finito.structs.features;
+import weka.finito.utils.LabelEncoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+// Encryption done by the server-site for each threshold, and by the client for each VALUES file
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class encryption_benchmark {
+    private static final String [] ATTRIBUTES = {"sepallength", "sepalwidth", "petallength", "petalwidth"};
+    private static final int PRECISION = 2;
+    private crypto_state keys;
+    private File values_file;
+    private final LabelEncoder encoder = new LabelEncoder();
+    private final BigInteger threshold = NodeInfo.set_precision(1.75, PRECISION);
+
+    @Setup(Level.Trial)
+    public void write_values(crypto_state keys) throws IOException {
+        this.keys = keys;
+        values_file = File.createTempFile("benchmark", ".values");
+        try (PrintWriter out = new PrintWriter(values_file)) {
+            for (int i = 0; i < ATTRIBUTES.length; i++) {
+                out.println(ATTRIBUTES[i] + "\t" + (1.5 + i));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete_values() {
+        if (!values_file.delete()) {
+            values_file.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public NodeInfo node_encrypt() throws Exception {
+        NodeInfo node = new NodeInfo(false, "petalwidth", 4);
+        node.encrypt(threshold, keys.paillier_public_key, keys.dgk_public_key);
+        return node;
+    }
+
+    @Benchmark
+    public HashMap<String, BigIntegers> read_values() throws Exception {
+        return features.read_values(values_file.getPath(), PRECISION,
+                keys.paillier_public_key, keys.dgk_public_key, encoder);
+    }
+}
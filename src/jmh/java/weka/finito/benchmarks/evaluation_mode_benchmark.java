@@ -0,0 +1,98 @@
+package weka.finito.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import weka.finito.client;
+import weka.finito.level_site_server;
+import weka.finito.server;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A classification with level-sites on this machine, level by level against every level-site comparing
+ * all of its nodes at once, on models of data/ of different depths. Ports and key size come from config.properties.
+ * The level-sites are trained once per trial, each invocation encrypts the VALUES file and classifies it again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class evaluation_mode_benchmark {
+    // The model and VALUES file, as in data/answers.csv
+    @Param({"iris.model,iris.values", "diabetes.model,diabetes.values", "D1.model,D1.values",
+            "hypothyroid.model,hypothyroid-2.values"})
+    public String data_set;
+    @Param({"sequential", "all_nodes"})
+    public String mode;
+    private static final String [] WRITTEN_FILES = {"client.keystore", "label_encoder.bin", "randomness_pool.bin"};
+    private level_site_server [] level_sites;
+    private client evaluate;
+
+    @Setup(Level.Trial)
+    public void train() throws IOException, InterruptedException {
+        Properties config = new Properties();
+        try (FileReader in = new FileReader("config.properties")) {
+            config.load(in);
+        }
+        String [] ports = config.getProperty("level-site-ports").split(",");
+        int key_size = Integer.parseInt(config.getProperty("key_size"));
+        int precision = Integer.parseInt(config.getProperty("precision"));
+        int server_port = Integer.parseInt(config.getProperty("server-port"));
+        String data_directory = config.getProperty("data_directory");
+
+        String [] level_site_ips = new String[ports.length];
+        int [] level_site_ports = new int[ports.length];
+        level_sites = new level_site_server[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            level_site_ips[i] = "127.0.0.1";
+            level_site_ports[i] = Integer.parseInt(ports[i].replaceAll("[^0-9]", ""));
+            level_sites[i] = new level_site_server(level_site_ports[i]);
+            level_sites[i].set_allow_all_nodes(true);
+            new Thread(level_sites[i]).start();
+        }
+
+        String [] files = data_set.split(",");
+        server cloud = new server(new File(data_directory, files[0]).toString(), level_site_ips, level_site_ports,
+                precision, server_port);
+        cloud.set_allow_all_nodes(true);
+        Thread server_site = new Thread(cloud);
+        server_site.start();
+
+        // The first classification generates the keys and trains the level-sites
+        evaluate = new client(key_size, new File(data_directory, files[1]).toString(), level_site_ips,
+                level_site_ports, precision, "127.0.0.1", server_port, "127.0.0.1");
+        evaluate.set_all_nodes(mode.equals("all_nodes"));
+        evaluate.run();
+        server_site.join();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        evaluate.close();
+        for (level_site_server level_site : level_sites) {
+            level_site.stop();
+        }
+        for (String file : WRITTEN_FILES) {
+            if (!new File(file).delete()) {
+                new File(file).deleteOnExit();
+            }
+        }
+    }
+
+    @Benchmark
+    public String classify() {
+        evaluate.run();
+        return evaluate.getClassification();
+    }
+}
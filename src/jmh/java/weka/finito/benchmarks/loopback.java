@@ -0,0 +1,79 @@
+package weka.finito.benchmarks;
+
+import security.dgk.DGKPublicKey;
+import security.paillier.PaillierPublicKey;
+import security.socialistmillionaire.alice_joye;
+import security.socialistmillionaire.bob_joye;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.KeyPair;
+
+/*
+ * An alice_joye connected to a bob_joye over a plain loopback socket, so only the protocols are measured.
+ * Bob runs on its own thread and answers like a client does for a level-site:
+ * read the comparison type, then run that comparison.
+ */
+public final class loopback implements Closeable {
+    public final alice_joye niu;
+    private final ServerSocket listener;
+    private final Socket alice_socket;
+    private final Thread responder;
+
+    public loopback(KeyPair paillier, KeyPair dgk) throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        responder = new Thread(() -> answer_comparisons(paillier, dgk), "loopback-bob");
+        responder.setDaemon(true);
+        responder.start();
+
+        alice_socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        niu = new alice_joye();
+        niu.set_socket(alice_socket);
+        niu.setPaillierPublicKey((PaillierPublicKey) paillier.getPublic());
+        niu.setDGKPublicKey((DGKPublicKey) dgk.getPublic());
+    }
+
+    private void answer_comparisons(KeyPair paillier, KeyPair dgk) {
+        try (Socket socket = listener.accept()) {
+            bob_joye client = new bob_joye(paillier, dgk);
+            client.set_socket(socket);
+            while (true) {
+                int comparison_type = client.readInt();
+                if (comparison_type == 0) {
+                    client.setDGKMode(false);
+                    client.Protocol2();
+                }
+                else if (comparison_type == 1) {
+                    client.setDGKMode(true);
+                    client.Protocol2();
+                }
+                else if (comparison_type == 2) {
+                    client.setDGKMode(true);
+                    client.encrypted_equals();
+                }
+            }
+        }
+        catch (EOFException | SocketException e) {
+            // alice closed the connection at the end of the trial
+        }
+        catch (Exception e) {
+            throw new RuntimeException("Loopback bob failed", e);
+        }
+    }
+
+    public void close() throws IOException {
+        alice_socket.close();
+        listener.close();
+        try {
+            responder.join(1000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package weka.finito.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import weka.finito.structs.BigIntegers;
+import weka.finito.structs.features;
+import weka.finito.utils.binary_codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static weka.finito.utils.shared.get_ois;
+
+/*
+ * Encrypted features going from the client to level-site 0 and down the level-sites,
+ * in both wire formats. Ciphertexts are random numbers of the size the keys would give.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class serialization_benchmark {
+    @Param({"2048", "3072"})
+    public int key_size;
+    @Param({"4", "32"})
+    public int attributes;
+    private features encrypted_features;
+    private byte [] serialized;
+    private byte [] frame;
+
+    @Setup(Level.Trial)
+    public void build_features() throws IOException {
+        Random random = new Random(42);
+        HashMap<String, BigIntegers> values = new HashMap<>();
+        for (int i = 0; i < attributes; i++) {
+            values.put("attribute_" + i, new BigIntegers(new BigInteger(2 * key_size, random),
+                    new BigInteger(key_size, random)));
+        }
+        encrypted_features = new features(values, "127.0.0.1", 9000);
+        serialized = java_serialize();
+        frame = binary_encode();
+    }
+
+    @Benchmark
+    public byte [] java_serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(encrypted_features);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object java_deserialize() throws IOException, ClassNotFoundException {
+        return get_ois(new ByteArrayInputStream(serialized)).readObject();
+    }
+
+    @Benchmark
+    public byte [] binary_encode() throws IOException {
+        return binary_codec.encode(encrypted_features);
+    }
+
+    @Benchmark
+    public Object binary_decode() throws IOException {
+        return binary_codec.decode(frame);
+    }
+}
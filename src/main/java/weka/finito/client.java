@@ -5,8 +5,19 @@ import java.math.BigInteger;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.KeyPair;
 import java.lang.System;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.serialization.ValidatingObjectInputStream;
 import security.dgk.DGKKeyPairGenerator;
@@ -18,7 +29,9 @@ import security.paillier.PaillierKeyPairGenerator;
 import security.paillier.PaillierPrivateKey;
 import security.paillier.PaillierPublicKey;
 import security.socialistmillionaire.bob_joye;
+import weka.finito.structs.attribute_manifest;
 import weka.finito.structs.features;
+import weka.finito.structs.features_batch;
 
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
@@ -30,12 +43,19 @@ import static weka.finito.utils.shared.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import weka.finito.utils.LabelEncoder;
+import weka.finito.utils.key_store;
+import weka.finito.utils.metered_socket;
+import weka.finito.utils.metrics;
+import weka.finito.utils.randomness_pool;
 
 public final class client implements Runnable {
 	private static final Logger logger = LogManager.getLogger(client.class);
 	private static final SSLServerSocketFactory factory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
 	private static final SSLSocketFactory socket_factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-	private final String features_file;
+	// More than one file means batch mode, every record is classified in one pass down the level-sites
+	private final String [] features_files;
+	private final String [] classifications;
+	private final List<features> feature_batch = new ArrayList<>();
 	private final int key_size;
 	private final int precision;
 	private final String [] level_site_ips;
@@ -54,10 +74,31 @@ public final class client implements Runnable {
 	private final String client_ip;
 	private final int server_port;
 	private LabelEncoder label_encoder;
+	// null if the server-site did not send one, then every attribute is encrypted with both schemes
+	private attribute_manifest manifest = null;
+	private randomness_pool pool;
+	// Level-sites 1, 2, ..., d call back on these connections, kept open across classifications until close()
+	private level_site_callbacks callbacks = null;
+	private static final String pool_file = "randomness_pool.bin";
+	private static final String key_store_file = "client.keystore";
+	private static final String label_encoder_file = "label_encoder.bin";
+	// Where the files above are kept, the working directory unless several clients run in one process
+	private Path state_directory = Paths.get("");
+	// Port the level-sites call back on, -1 for the default: the server-site port locally, PORT_NUM on K8s
+	private int callback_port = -1;
+	// Time of the last classification, and of each level in it, in nanoseconds
+	private long classification_nanos = 0;
+	private final List<Long> level_nanos = new ArrayList<>();
+	// EVALUATION_MODE=all_nodes, every level-site compares all of its nodes at once, see evaluate_all_nodes
+	private boolean all_nodes = "all_nodes".equalsIgnoreCase(System.getenv("EVALUATION_MODE"));
+	private static final metrics.histogram with_level_sites = classification_seconds("level_sites");
+	private static final metrics.histogram with_all_nodes = classification_seconds("all_nodes");
+	private static final metrics.histogram with_server_site = classification_seconds("server_site");
 
     //For k8s deployment.
     public static void main(String[] args) {
 		setup_tls();
+		metrics.start();
 		
         // Declare variables needed.
         int key_size = -1;
@@ -108,32 +149,49 @@ public final class client implements Runnable {
 			System.exit(1);
 		}
 
-		client test = null;
-		if (args.length == 1) {
-			// Test with level-sites
-			test = new client(key_size, args[0], level_domains, port, precision, server_ip, port, client_ip);
-		}
-		else if (args.length == 2) {
-			// Test with just a server-site directly
-			if (args[1].equalsIgnoreCase("--server")) {
-				test = new client(key_size, args[0], precision, server_ip, port, client_ip);
+		// Arguments are the VALUES files to classify, more than one file runs in batch mode.
+		// Add --server to test with just a server-site directly
+		List<String> values_files = new ArrayList<>();
+		boolean use_server_site = false;
+		for (String arg : args) {
+			if (arg.equalsIgnoreCase("--server")) {
+				use_server_site = true;
 			}
 			else {
-				test = new client(key_size, args[0], level_domains, port, precision, server_ip, port, client_ip);
+				values_files.add(arg);
 			}
 		}
-		else {
+		if (values_files.isEmpty()) {
 			logger.fatal("Missing Testing Data set as an argument parameter");
 			System.exit(1);
 		}
+
+		client test;
+		String [] files = values_files.toArray(new String[0]);
+		if (use_server_site) {
+			test = new client(key_size, files, precision, server_ip, port, client_ip);
+		}
+		else {
+			test = new client(key_size, files, level_domains, port, precision, server_ip, port, client_ip);
+		}
 		test.run();
+		test.close();
+		metrics.stop();
     }
 
 	// For local host testing with GitHub Actions, used in PrivacyTest.java
 	public client(int key_size, String features_file, String [] level_site_ips, int [] level_site_ports,
 				  int precision, String server_ip, int server_port, String client_ip) {
+		this(key_size, new String[] { features_file }, level_site_ips, level_site_ports,
+				precision, server_ip, server_port, client_ip);
+	}
+
+	// For local host testing in batch mode, used in PrivacyTest.java
+	public client(int key_size, String [] features_files, String [] level_site_ips, int [] level_site_ports,
+				  int precision, String server_ip, int server_port, String client_ip) {
 		this.key_size = key_size;
-		this.features_file = features_file;
+		this.features_files = features_files;
+		this.classifications = new String[features_files.length];
 		this.level_site_ips = level_site_ips;
 		this.level_site_ports = level_site_ports;
 		this.precision = precision;
@@ -146,8 +204,16 @@ public final class client implements Runnable {
 	// Testing using Kubernetes, NOT used in PrivacyTest.java
 	public client(int key_size, String features_file, String [] level_site_ips, int port,
 				  int precision, String server_ip, int server_port, String client_ip) {
+		this(key_size, new String[] { features_file }, level_site_ips, port,
+				precision, server_ip, server_port, client_ip);
+	}
+
+	// Testing using Kubernetes, one or more VALUES files
+	public client(int key_size, String [] features_files, String [] level_site_ips, int port,
+				  int precision, String server_ip, int server_port, String client_ip) {
 		this.key_size = key_size;
-		this.features_file = features_file;
+		this.features_files = features_files;
+		this.classifications = new String[features_files.length];
 		this.level_site_ips = level_site_ips;
 		this.level_site_ports = null;
 		this.precision = precision;
@@ -160,8 +226,15 @@ public final class client implements Runnable {
 	// Testing using only a single server, no level-sites, used in PrivacyTest.java and in main()
 	public client(int key_size, String features_file,
                   int precision, String server_ip, int server_port, String client_ip) {
+		this(key_size, new String[] { features_file }, precision, server_ip, server_port, client_ip);
+	}
+
+	// Testing using only a single server, one or more VALUES files
+	public client(int key_size, String [] features_files,
+				  int precision, String server_ip, int server_port, String client_ip) {
 		this.key_size = key_size;
-		this.features_file = features_file;
+		this.features_files = features_files;
+		this.classifications = new String[features_files.length];
         this.level_site_ips = null;
 		this.level_site_ports = null;
 		this.port = -1;
@@ -171,21 +244,89 @@ public final class client implements Runnable {
 		this.client_ip = client_ip;
 	}
 
+	private static metrics.histogram classification_seconds(String mode) {
+		return metrics.histogram("ppdt_classification_seconds",
+				"Time to classify the VALUES files, from the first features sent to the last leaf", "mode", mode);
+	}
+
+	public void set_all_nodes(boolean all_nodes) {
+		this.all_nodes = all_nodes;
+	}
+
+	// Keys, label encoder and randomness pool are read from and saved to this directory
+	public void set_state_directory(Path state_directory) {
+		this.state_directory = state_directory;
+	}
+
+	public void set_callback_port(int callback_port) {
+		this.callback_port = callback_port;
+	}
+
+	// From the first features sent to the last leaf, as in ppdt_classification_seconds
+	public long get_classification_nanos() {
+		return this.classification_nanos;
+	}
+
+	/*
+	 * Time with each level-site, from the end of the previous level to the end of its comparisons,
+	 * so the wait for the level-site to be called back is counted at that level.
+	 * Empty with the server-site or in all-nodes mode, where the levels are not evaluated one after the other.
+	 */
+	public List<Long> get_level_nanos() {
+		return this.level_nanos;
+	}
+
+	// Batches, a model set up before the number of levels was sent, a model whose owner does not allow
+	// the all-nodes mode, and features missing an attribute some split compares, are evaluated level by level
+	private boolean use_all_nodes() {
+		if (!all_nodes) {
+			return false;
+		}
+		if (is_batch() || manifest == null || manifest.get_levels() <= 0) {
+			logger.warn("The all-nodes mode needs a single record and the number of levels, evaluating level by level");
+			return false;
+		}
+		if (!manifest.allows_all_nodes()) {
+			logger.warn("The server-site does not allow the all-nodes mode, evaluating level by level");
+			return false;
+		}
+		if (!manifest.complete(feature.get_all_thresholds())) {
+			logger.warn("The all-nodes mode compares every split, the features miss an attribute, evaluating level by level");
+			return false;
+		}
+		return true;
+	}
+
 	// Get Classification after Evaluation
 	public String getClassification() {
 		return this.classification;
 	}
 
+	// Get Classifications after a batch evaluation, in the same order as the VALUES files
+	public String [] getClassifications() {
+		return this.classifications;
+	}
+
+	private boolean is_batch() {
+		return this.features_files.length > 1;
+	}
+
+	// DGK takes most of the time, so Paillier is made alongside it
 	public void generate_keys() {
-		// Generate Key Pairs
-		DGKKeyPairGenerator p = new DGKKeyPairGenerator();
-		p.initialize(key_size, null);
-		dgk = p.generateKeyPair();
+		CompletableFuture<KeyPair> dgk_keys = CompletableFuture.supplyAsync(() -> {
+			DGKKeyPairGenerator p = new DGKKeyPairGenerator();
+			p.initialize(key_size, null);
+			return p.generateKeyPair();
+		});
 
 		PaillierKeyPairGenerator pa = new PaillierKeyPairGenerator();
 		pa.initialize(key_size, null);
 		paillier = pa.generateKeyPair();
+		dgk = dgk_keys.join();
+		set_keys();
+	}
 
+	private void set_keys() {
 		dgk_public_key = (DGKPublicKey) dgk.getPublic();
 		paillier_public_key = (PaillierPublicKey) paillier.getPublic();
 		dgk_private_key = (DGKPrivateKey) dgk.getPrivate();
@@ -194,15 +335,10 @@ public final class client implements Runnable {
 
 	private boolean need_keys() {
 		try {
-			dgk_public_key = DGKPublicKey.readKey("dgk.pub");
-			paillier_public_key = PaillierPublicKey.readKey("paillier.pub");
-			dgk_private_key = DGKPrivateKey.readKey("dgk");
-			paillier_private_key = PaillierPrivateKey.readKey("paillier");
-			dgk = new KeyPair(dgk_public_key, dgk_private_key);
-			paillier = new KeyPair(paillier_public_key, paillier_private_key);
-			try (ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream("label_encoder.bin"))) {
-				label_encoder = (LabelEncoder) inputStream.readObject();
-			}
+			key_store.key_pairs keys = key_store.load(state_directory.resolve(key_store_file));
+			dgk = keys.dgk();
+			paillier = keys.paillier();
+			set_keys();
 			return false;
 		}
 		catch (IOException | ClassNotFoundException e) {
@@ -210,60 +346,107 @@ public final class client implements Runnable {
 		}
     }
 
-	// Used for set-up
+	// Without it, set up with the server-site again, with the same keys the server-site may have the model cached
+	private boolean need_label_encoder() {
+		try (ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(
+				state_directory.resolve(label_encoder_file).toFile()))) {
+			label_encoder = (LabelEncoder) inputStream.readObject();
+			manifest = (attribute_manifest) inputStream.readObject();
+			return false;
+		}
+		catch (IOException | ClassNotFoundException e) {
+			return true;
+		}
+	}
+
+	// Used for set-up, the features are encrypted while the server-site encrypts the model and trains the level-sites
 	private void setup_with_server_site(PaillierPublicKey paillier, DGKPublicKey dgk)
-			throws IOException, ClassNotFoundException {
+			throws IOException, ClassNotFoundException, HomomorphicException {
         logger.info("Connecting to {}:{} for set-up (MS)", server_ip, server_port);
-		try (Socket server_site = createSocket(server_ip, server_port)) {
+		try (Socket server_site = new metered_socket(createSocket(server_ip, server_port), "server_site")) {
+			// The streams are opened as for an evaluation, the server-site tells set-up apart by the keys
+			bob_joye client = new bob_joye(this.paillier, this.dgk);
+			client.set_socket(server_site);
 			ObjectOutputStream to_server_site = new ObjectOutputStream(server_site.getOutputStream());
-			ValidatingObjectInputStream from_server_site = get_ois(server_site);
 
 			// Receive a message from the client to get their keys
 			to_server_site.writeObject(paillier);
 			to_server_site.writeObject(dgk);
 			to_server_site.flush();
+			ValidatingObjectInputStream from_server_site = get_ois(server_site);
 			logger.info("Just sent keys over, if this is slow, do not worry, server is training level-sites now.");
 
-			// Get Label Encoder of leaves from Server-site
+			// Get Label Encoder of leaves from Server-site, it is sent before the model is encrypted
 			Object o = from_server_site.readObject();
 			label_encoder = (LabelEncoder) o;
+			// Then what the model compares, so only that is encrypted
+			manifest = (attribute_manifest) from_server_site.readObject();
+            logger.debug("Attribute manifest\n{}", manifest);
+			CompletableFuture<Void> encrypted_features = CompletableFuture.runAsync(() -> {
+				try {
+					read_features(pool, precision, label_encoder);
+				}
+				catch (IOException | HomomorphicException e) {
+					throw new CompletionException(e);
+				}
+			});
+
+			// The server-site says when the level-sites are trained
+			boolean ready = from_server_site.readBoolean();
+			try {
+				encrypted_features.join();
+			}
+			catch (CompletionException e) {
+				if (e.getCause() instanceof IOException io) {
+					throw io;
+				}
+				if (e.getCause() instanceof HomomorphicException he) {
+					throw he;
+				}
+				throw e;
+			}
+			if (!ready) {
+				throw new IOException("Server-site was unable to train the level-sites");
+			}
 		}
 		logger.info("Completed set-up with server");
 	}
 
 	// Evaluation
-	private features read_features(String path,
-								   PaillierPublicKey paillier_public_key,
-								   DGKPublicKey dgk_public_key, int precision, LabelEncoder encoder)
+	private void read_features(randomness_pool pool, int precision, LabelEncoder encoder)
 					throws IOException, HomomorphicException {
 
-        return new features(path, precision, paillier_public_key, dgk_public_key, encoder);
+		ForkJoinPool encryption_executor = new ForkJoinPool(features.DEFAULT_ENCRYPTION_THREADS);
+		feature_batch.clear();
+		try {
+			for (String path : features_files) {
+				features record = new features(path, precision, pool, encoder, manifest, encryption_executor);
+				// The model the level-sites evaluate, they may host others, and the copy encrypted under these keys
+				if (manifest != null) {
+					record.set_model_id(manifest.get_model_id());
+					record.set_key_id(manifest.get_key_id());
+				}
+				feature_batch.add(record);
+			}
+			feature = feature_batch.get(0);
+		}
+		finally {
+			encryption_executor.shutdown();
+		}
 	}
 
-	private void evaluate_with_server_site(Socket server_site)
+	// Answer the comparisons a level-site (or server-site) asks for, until it sends -1
+	private void answer_comparisons(bob_joye client, ObjectInputStream from_level_site)
 			throws IOException, HomomorphicException, ClassNotFoundException {
-		// Communicate with each Level-Site
-		Object o;
-		bob_joye client;
-
-		// Send the Public Keys using Alice and Bob
-		client = new bob_joye(paillier, dgk);
-		client.set_socket(server_site);
-
-		// Send the encrypted data to Level-Site
-		ObjectOutputStream oos = new ObjectOutputStream(server_site.getOutputStream());
-		oos.writeObject(this.feature);
-		oos.flush();
-
-		// Yup, I need the while loop here because all level-sites are at server
 		int comparison_type;
 		while (true) {
-			comparison_type = client.readInt();
+			comparison_type = read_int(client, from_level_site);
+
 			if (comparison_type == -1) {
-				this.classification_complete = true;
 				break;
 			}
-			else if (comparison_type == 0) {
+			long start_time = System.nanoTime();
+			if (comparison_type == 0) {
 				logger.debug("Comparing two Paillier Values");
 				client.setDGKMode(false);
 				client.Protocol2();
@@ -278,79 +461,292 @@ public final class client implements Runnable {
 				client.setDGKMode(true);
 				client.encrypted_equals();
 			}
+			if (comparison_type >= 0 && comparison_type < COMPARISON_SECONDS.length) {
+				COMPARISON_SECONDS[comparison_type].observe_since(start_time);
+			}
 		}
+	}
 
-		o = client.readObject();
+	// Level-site 0 writes on the stream the features went on, the other level-sites on their call back
+	private static int read_int(bob_joye client, ObjectInputStream from_level_site) throws IOException {
+		if (from_level_site != null) {
+			return from_level_site.readInt();
+		}
+		return client.readInt();
+	}
+
+	// The leaf is the Paillier encryption of the hashed class label
+	private String read_leaf(bob_joye client)
+			throws IOException, HomomorphicException, ClassNotFoundException {
+		Object o = client.readObject();
 		if (o instanceof String) {
-			classification = (String) o;
-			BigInteger temp = PaillierCipher.decrypt(new BigInteger(classification), paillier_private_key);
-			classification = new String(temp.toByteArray(), StandardCharsets.UTF_8);
+			BigInteger temp = PaillierCipher.decrypt(new BigInteger((String) o), paillier_private_key);
+			return new String(temp.toByteArray(), StandardCharsets.UTF_8);
 		}
+		return null;
 	}
 
-	// Function used to Evaluate for each level-site
-	private void evaluate_with_level_site(Socket level_site, int level)
-			throws IOException, ClassNotFoundException, HomomorphicException {
+	private void evaluate_with_server_site(Socket server_site)
+			throws IOException, HomomorphicException, ClassNotFoundException {
 		// Communicate with each Level-Site
-		Object o;
 		bob_joye client;
-		ObjectInputStream from_level_site = null;
 
+		// Send the Public Keys using Alice and Bob
+		client = new bob_joye(paillier, dgk);
+		client.set_socket(server_site);
+
+		// Send the encrypted data to Level-Site
+		ObjectOutputStream oos = new ObjectOutputStream(server_site.getOutputStream());
+		if (is_batch()) {
+			write_object(oos, new features_batch(feature_batch, client_ip, -1));
+		}
+		else {
+			write_object(oos, this.feature);
+		}
+		oos.flush();
+
+		// Yup, I need the while loop here because all level-sites are at server
+		// In batch mode, the server-site goes through the records in order
+		for (int record = 0; record < features_files.length; record++) {
+			answer_comparisons(client, null);
+			this.classification_complete = true;
+			classifications[record] = read_leaf(client);
+		}
+		classification = classifications[0];
+	}
+
+	// Level-site 0, send the features on a new connection and answer its comparisons
+	private void evaluate_with_level_site_0(Socket level_site, List<Integer> pending) throws Exception {
 		// Create I/O stream and send features, only need to send features once to level-site 0...
 		// Level-site 0 will take care of passing it down
-		if (level == 0) {
-			ObjectOutputStream to_level_site = new ObjectOutputStream(level_site.getOutputStream());
-			to_level_site.writeObject(this.feature);
-			to_level_site.flush();
+		ObjectOutputStream to_level_site = new ObjectOutputStream(level_site.getOutputStream());
+		if (is_batch()) {
+			write_object(to_level_site, new features_batch(feature_batch,
+					feature_batch.get(0).get_client_ip(), feature_batch.get(0).get_client_port()));
+		}
+		else {
+			write_object(to_level_site, this.feature);
 		}
+		to_level_site.flush();
 
 		// Send the Public Keys using Alice and Bob
-		client = new bob_joye(paillier, dgk);
+		bob_joye client = new bob_joye(paillier, dgk);
 		client.set_socket(level_site);
-		if (level == 0) {
-			from_level_site = get_ois(level_site);
+		ObjectInputStream from_level_site = get_ois(level_site);
+		if (is_batch()) {
+			evaluate_batch_level(client, from_level_site, null, pending);
+		}
+		else {
+			evaluate_with_level_site(client, from_level_site, pending);
 		}
+	}
 
-		// Get the comparison
-		// I am not sure why I need this loop, but you will only need 1 comparison.
-		int comparison_type;
-		while (true) {
-			if (level == 0) {
-				comparison_type = from_level_site.readInt();
+	// Function used to Evaluate for each level-site
+	// pending holds the records still being classified, in the order the level-site evaluates them
+	private void evaluate_with_level_site(bob_joye client, ObjectInputStream from_level_site, List<Integer> pending)
+			throws IOException, ClassNotFoundException, HomomorphicException {
+		Iterator<Integer> records = pending.iterator();
+		while (records.hasNext()) {
+			int record = records.next();
+			// Get the comparison
+			// I am not sure why I need this loop, but you will only need 1 comparison.
+			answer_comparisons(client, from_level_site);
+
+			// Get boolean from level-site:
+			// true - get leaf value
+			// false - get encrypted AES index for next round
+			if (client.readBoolean()) {
+				classifications[record] = read_leaf(client);
+				records.remove();
 			}
-			else {
-				comparison_type = client.readInt();
+		}
+		classification_complete = pending.isEmpty();
+		classification = classifications[0];
+	}
+
+	/*
+	 * Batch mode: a level-site splits the records still pending into lanes, record i going to lane i % lanes,
+	 * and compares every lane over its own connection at the same time. A lane starts with [lanes][lane].
+	 * The level starts on the given connection, the other lanes call back, and each lane is answered on its own thread.
+	 * request is the call back the level started on, null at level-site 0.
+	 */
+	private void evaluate_batch_level(bob_joye client, ObjectInputStream from_level_site,
+									  level_site_callbacks.callback request, List<Integer> pending) throws Exception {
+		List<Integer> records = new ArrayList<>(pending);
+		List<Future<List<Integer>>> lanes = new ArrayList<>();
+		ExecutorService answering = virtual_threads("batch-lanes");
+		try {
+			int expected = answer_lane(answering, lanes, client, from_level_site, request, records);
+			while (lanes.size() < expected) {
+				level_site_callbacks.callback lane = callbacks.next();
+				answer_lane(answering, lanes, lane.client, null, lane, records);
+			}
+			for (Future<List<Integer>> lane : lanes) {
+				pending.removeAll(lane.get());
 			}
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+		finally {
+			answering.shutdownNow();
+		}
+		classification_complete = pending.isEmpty();
+		classification = classifications[0];
+	}
 
-			if (comparison_type == -1) {
-				this.classification_complete = true;
-				break;
+	// Reads the header of a lane and answers its records on a thread of its own. Returns the lanes of the level.
+	private int answer_lane(ExecutorService answering, List<Future<List<Integer>>> lanes, bob_joye client,
+							ObjectInputStream from_level_site, level_site_callbacks.callback request,
+							List<Integer> records) throws IOException {
+		int count;
+		int lane;
+		try {
+			count = read_int(client, from_level_site);
+			lane = read_int(client, from_level_site);
+		}
+		catch (IOException e) {
+			if (request != null) {
+				request.done();
 			}
-			else if (comparison_type == 0) {
-				client.setDGKMode(false);
-				client.Protocol2();
+			throw e;
+		}
+		lanes.add(answering.submit(() -> {
+			// The records that reached a leaf
+			List<Integer> found = new ArrayList<>();
+			try {
+				for (int i = lane; i < records.size(); i += count) {
+					int record = records.get(i);
+					answer_comparisons(client, from_level_site);
+					if (client.readBoolean()) {
+						classifications[record] = read_leaf(client);
+						found.add(record);
+					}
+				}
+				return found;
 			}
-			else if (comparison_type == 1) {
-				client.setDGKMode(true);
-				client.Protocol2();
+			finally {
+				if (request != null) {
+					request.done();
+				}
 			}
-			else if (comparison_type == 2) {
-				client.setDGKMode(true);
-				client.encrypted_equals();
+		}));
+		return count;
+	}
+
+	/*
+	 * All-nodes mode: level-site 0 passes the features on before comparing, so every level-site calls back
+	 * at once and compares all of its nodes. A level-site deals its splits to lanes, each on its own connection
+	 * and starting with [lanes][lane], lane 0 of level-site 0 on the connection the features went on.
+	 * Each lane is answered on its own virtual thread.
+	 * Then the index in scope goes down the chain, and every level-site says on lane 0 if it has the leaf.
+	 */
+	private void evaluate_all_nodes(String level_site_ip, int connection_port) throws Exception {
+		int levels = manifest.get_levels();
+		feature.set_all_nodes(true);
+		ExecutorService answering = virtual_threads("all-nodes");
+		List<Future<String>> leaves = new ArrayList<>();
+		try (Socket level_site = new metered_socket(createSocket(level_site_ip, connection_port), "level_site")) {
+			ObjectOutputStream to_level_site = new ObjectOutputStream(level_site.getOutputStream());
+			write_object(to_level_site, this.feature);
+			to_level_site.flush();
+
+			bob_joye client = new bob_joye(paillier, dgk);
+			client.set_socket(level_site);
+			ObjectInputStream from_level_site = get_ois(level_site);
+
+			// Lanes of each level, 0 until one of them called back, and the lanes that did
+			int [] lanes = new int[levels];
+			int [] answered = new int[levels];
+			lanes[0] = answer_all_nodes_lane(answering, leaves, client, from_level_site, null);
+			answered[0] = 1;
+
+			// Every lane of every level-site calls back, even below the leaf
+			int level = 0;
+			while (level < levels) {
+				if (answered[level] > 0 && answered[level] == lanes[level]) {
+					level++;
+					continue;
+				}
+				level_site_callbacks.callback request = callbacks.next();
+				if (request.level < 0 || request.level >= levels) {
+					request.done();
+					throw new IOException("A level-site called back for level " + request.level + " of " + levels);
+				}
+				lanes[request.level] = answer_all_nodes_lane(answering, leaves, request.client, null, request);
+				answered[request.level]++;
+			}
+
+			classification = null;
+			for (Future<String> leaf : leaves) {
+				String found = leaf.get();
+				if (found != null) {
+					classification = found;
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+		finally {
+			answering.shutdownNow();
+		}
+		classifications[0] = classification;
+		classification_complete = true;
+	}
+
+	/*
+	 * Reads the header of a lane and answers its comparisons on a thread of its own, with the leaf or null
+	 * on lane 0 and null on the others. Returns the lanes of the level.
+	 */
+	private int answer_all_nodes_lane(ExecutorService answering, List<Future<String>> leaves, bob_joye client,
+									  ObjectInputStream from_level_site, level_site_callbacks.callback request)
+			throws IOException {
+		int count;
+		int lane;
+		try {
+			count = read_int(client, from_level_site);
+			lane = read_int(client, from_level_site);
+		}
+		catch (IOException e) {
+			if (request != null) {
+				request.done();
 			}
+			throw e;
 		}
+		leaves.add(answering.submit(() -> {
+			try {
+				answer_comparisons(client, from_level_site);
+				if (lane == 0 && client.readBoolean()) {
+					return read_leaf(client);
+				}
+				return null;
+			}
+			finally {
+				if (request != null) {
+					request.done();
+				}
+			}
+		}));
+		return count;
+	}
 
-		// Get boolean from level-site:
-		// true - get leaf value
-		// false - get encrypted AES index for next round
-		classification_complete = client.readBoolean();
-		if (classification_complete) {
-			o = client.readObject();
-			if (o instanceof String) {
-				classification = (String) o;
-				BigInteger temp = PaillierCipher.decrypt(new BigInteger(classification), paillier_private_key);
-				classification = new String(temp.toByteArray(), StandardCharsets.UTF_8);
+	// Stops listening for level-sites, and closes the connections they kept open
+	public void close() {
+		if (callbacks != null) {
+			try {
+				callbacks.close();
 			}
+			catch (IOException e) {
+				logger.info("IO Exception in closing the level-site connections", e);
+			}
+			callbacks = null;
 		}
 	}
 
@@ -358,18 +754,25 @@ public final class client implements Runnable {
 	public void run() {
 
 		// Step: 1
-		boolean talk_to_server_site = this.need_keys();
+		boolean new_keys = this.need_keys();
+		boolean talk_to_server_site = new_keys || this.need_label_encoder();
 
 		try {
 			// Don't regenerate keys if you are just using a different VALUES file
-			if (talk_to_server_site) {
+			if (new_keys) {
 				logger.info("Need to generate keys...");
 				generate_keys();
+				save_keys();
 			}
 			else {
 				logger.info("I already read the keys from a file made from a previous run...");
 			}
 
+			// Start pre-computing blinding factors, this fills up while the server trains the level-sites
+			pool = new randomness_pool(paillier_public_key, dgk_public_key);
+			pool.load(state_directory.resolve(pool_file).toString());
+			pool.export_depth();
+
 			// Client needs to give server-site public key (to give to level-sites)
 			// Client needs to know all possible classes...
 			if (talk_to_server_site) {
@@ -379,28 +782,35 @@ public final class client implements Runnable {
 			else {
 				logger.info("Not contacting server-site. Seems you just want to test on the" +
 						" same PPDT but different VALUES");
+				read_features(pool, precision, label_encoder);
 			}
-			feature = read_features(features_file, paillier_public_key, dgk_public_key, precision, label_encoder);
             logger.debug("Client Feature Vector\n{}", feature);
+			logger.info("{}", pool);
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 
 		int connection_port;
+		level_nanos.clear();
 		long start_time = System.nanoTime();
 
 		// If you are just evaluating directly with the server-site
 		if (level_site_ips == null) {
-			try(Socket server_site = createSocket(server_ip, server_port)) {
+			try(Socket server_site = new metered_socket(createSocket(server_ip, server_port), "server_site")) {
 				logger.info("Client connected to sever-site with PPDT");
 				evaluate_with_server_site(server_site);
 				long end_time = System.nanoTime();
+				classification_nanos = end_time - start_time;
+				with_server_site.observe_nanos(end_time - start_time);
                 logger.info("[Server] The Classification is: {}", classification);
+				if (is_batch()) {
+					logger.info("[Server] Classified a batch of {} records", classifications.length);
+				}
 				double run_time = (double) (end_time - start_time);
 				run_time = run_time/1000000;
-				logger.info(String.format("It took %f ms to classify\n", run_time));
-				save_keys_and_encoder();
+				logger.info("It took {} ms to classify", run_time);
+				save_encoder_and_pool();
 			}
 			catch (HomomorphicException | IOException | ClassNotFoundException e) {
                 throw new RuntimeException(e);
@@ -410,57 +820,105 @@ public final class client implements Runnable {
 
 		// However, if you are evaluating with level-sites, you are running this code.
 		try {
+			int client_port;
 			if (port == -1) {
 				assert level_site_ports != null;
 				connection_port = level_site_ports[0];
 				// Level-Site 0 is listening to 9000 locally, so use 10,000
-				feature.set_client_port(server_port);
+				client_port = server_port;
 			}
 			else {
 				connection_port = port;
-				feature.set_client_port(connection_port);
+				client_port = connection_port;
+			}
+			if (callback_port != -1) {
+				client_port = callback_port;
+			}
+			List<Integer> pending = new ArrayList<>();
+			for (int record = 0; record < feature_batch.size(); record++) {
+				feature_batch.get(record).set_client_port(client_port);
+				feature_batch.get(record).set_client_ip(client_ip);
+				pending.add(record);
 			}
-			feature.set_client_ip(client_ip);
-			;
 
 			int level = 0;
-			try(ServerSocket level_site_listener = createServerSocket(feature.get_client_port())) {
-				// For level-site 0, just connect and evaluate now.
-				try(Socket level_site = createSocket(level_site_ips[level], connection_port)) {
-					evaluate_with_level_site(level_site, level);
+			classification_complete = false;
+			// Listen before level-site 0 forwards the features, so level-site 1 can call back
+			if (callbacks == null) {
+				callbacks = new level_site_callbacks(client_port, paillier, dgk);
+			}
+			if (use_all_nodes()) {
+				evaluate_all_nodes(level_site_ips[level], connection_port);
+				long end_time = System.nanoTime();
+				classification_nanos = end_time - start_time;
+				with_all_nodes.observe_nanos(end_time - start_time);
+				logger.info("[Level-Site] The Classification is: {}", classification);
+				logger.info("It took {} ms to classify with all nodes compared at once",
+						(double) (end_time - start_time) / 1000000);
+				save_encoder_and_pool();
+				return;
+			}
+			// For level-site 0, just connect and evaluate now.
+			try(Socket level_site = new metered_socket(createSocket(level_site_ips[level], connection_port),
+					"level_site")) {
+				evaluate_with_level_site_0(level_site, pending);
+			}
+			long level_end_time = System.nanoTime();
+			level_nanos.add(level_end_time - start_time);
+
+			// For every other level, the level-site will reach out to you, on a new or a re-used connection
+			while(!classification_complete) {
+				logger.info("Completed evaluation with level {}", level);
+				++level;
+				level_site_callbacks.callback request = callbacks.next();
+				if (request.level != level) {
+					logger.warn("Expected level-site {} but level-site {} called back", level, request.level);
 				}
-
-				// For every other level, the level-site will reach out to you
-				while(!classification_complete) {
-                    logger.info("Completed evaluation with level {}", level);
-					++level;
-					Socket level_site = level_site_listener.accept();
-					evaluate_with_level_site(level_site, level);
+				if (is_batch()) {
+					evaluate_batch_level(request.client, null, request, pending);
+				}
+				else {
+					try {
+						evaluate_with_level_site(request.client, null, pending);
+					}
+					finally {
+						request.done();
+					}
 				}
+				long level_start_time = level_end_time;
+				level_end_time = System.nanoTime();
+				level_nanos.add(level_end_time - level_start_time);
 			}
 
             long end_time = System.nanoTime();
+			classification_nanos = end_time - start_time;
+			with_level_sites.observe_nanos(end_time - start_time);
             logger.info("[Level-Site] The Classification is: {}", classification);
+			if (is_batch()) {
+				logger.info("[Level-Site] Classified a batch of {} records", classifications.length);
+			}
 			double run_time = (double) (end_time - start_time);
 			run_time = run_time/1000000;
-            logger.info(String.format("It took %f ms to classify\n", run_time));
-			save_keys_and_encoder();
+            logger.info("It took {} ms to classify", run_time);
+			save_encoder_and_pool();
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	private void save_keys_and_encoder() throws IOException {
-		// At the end, write your keys...
-		dgk_public_key.writeKey("dgk.pub");
-		paillier_public_key.writeKey("paillier.pub");
-		dgk_private_key.writeKey("dgk");
-		paillier_private_key.writeKey("paillier");
+	// Write the keys once, right after making them.
+	private void save_keys() throws IOException {
+		key_store.store(state_directory.resolve(key_store_file), paillier, dgk);
+	}
 
-		try (ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream("label_encoder.bin"))) {
+	private void save_encoder_and_pool() throws IOException {
+		try (ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(
+				state_directory.resolve(label_encoder_file).toFile()))) {
 			outputStream.writeObject(label_encoder);
+			outputStream.writeObject(manifest);
 		}
+		pool.save(state_directory.resolve(pool_file).toString());
 	}
 
 	// For some reason, the moment I move this to shared.java, it just fails
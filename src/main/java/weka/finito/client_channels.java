@@ -0,0 +1,173 @@
+package weka.finito;
+
+import security.socialistmillionaire.alice_joye;
+import weka.finito.structs.level_order_site;
+import weka.finito.utils.metered_socket;
+import weka.finito.utils.shared;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static weka.finito.client.createSocket;
+import static weka.finito.utils.shared.closeConnection;
+
+/*
+ * Level-sites 1, 2, ..., d keep the connections they open to call back a client, to re-use them for
+ * the next evaluations of that client instead of a new connection (and TLS handshake) each time.
+ * Every evaluation starts with a header [level][request id] that the client acknowledges,
+ * so a connection the client has since closed is noticed before any comparison, and replaced.
+ */
+public final class client_channels {
+	private static final Logger logger = LogManager.getLogger(client_channels.class);
+	// Idle connections kept for each client, enough for every lane of a batch or an all-nodes level,
+	// and the number of clients remembered
+	public static final int IDLE_PER_CLIENT = shared.get_env_int("CLIENT_CHANNELS_PER_CLIENT",
+			Math.max(2, Math.max(level_site_evaluation_thread.BATCH_CONNECTIONS,
+					level_site_evaluation_thread.ALL_NODES_CONNECTIONS)));
+	public static final int MAX_CLIENTS = shared.get_env_int("CLIENT_CHANNELS_MAX_CLIENTS", 256);
+	// Estimated memory of an idle connection: the socket, its alice_joye and object streams with their buffers
+	public static final long CHANNEL_BYTES = 16 * 1024;
+	private static final metered_socket.hop with_client = metered_socket.hop.of("client");
+
+	private final level_order_site level_site_data;
+	// Least recently used client first
+	private final LinkedHashMap<String, Deque<channel>> idle = new LinkedHashMap<>(16, 0.75f, true);
+	// Once the model is evicted or trained again, connections released by evaluations still running are closed
+	private boolean closed = false;
+
+	public static final class channel {
+		private final String client;
+		private final Socket socket;
+		public final alice_joye niu;
+
+		private channel(String client, Socket socket, alice_joye niu) {
+			this.client = client;
+			this.socket = socket;
+			this.niu = niu;
+		}
+	}
+
+	public client_channels(level_order_site level_site_data) {
+		this.level_site_data = level_site_data;
+	}
+
+	/*
+	 * Returns a connection to the client that acknowledged the header of this request.
+	 * An idle connection is tried first, if the client closed it, a new connection is opened.
+	 */
+	public channel acquire(String client_ip, int client_port, long request_id) throws IOException {
+		String client = client_ip + ":" + client_port;
+		channel c;
+		while ((c = poll(client)) != null) {
+			if (start_request(c, request_id)) {
+				return c;
+			}
+			discard(c);
+		}
+
+		Socket socket = createSocket(client_ip, client_port);
+		alice_joye niu = new alice_joye();
+		niu.set_socket(new metered_socket(socket, with_client));
+		niu.setDGKPublicKey(level_site_data.dgk_public_key);
+		niu.setPaillierPublicKey(level_site_data.paillier_public_key);
+		c = new channel(client, socket, niu);
+		logger.info("Level-site {} connected to the client: {}", level_site_data.get_level(), client);
+		if (!start_request(c, request_id)) {
+			discard(c);
+			throw new IOException("Client " + client + " did not acknowledge request " + request_id);
+		}
+		return c;
+	}
+
+	private boolean start_request(channel c, long request_id) {
+		try {
+			c.niu.writeInt(level_site_data.get_level());
+			c.niu.writeObject(request_id);
+			return c.niu.readBoolean();
+		}
+		catch (IOException e) {
+			logger.debug("Connection to client {} is gone", c.client);
+			return false;
+		}
+	}
+
+	private synchronized channel poll(String client) {
+		Deque<channel> channels = idle.get(client);
+		if (channels == null) {
+			return null;
+		}
+		channel c = channels.pollFirst();
+		if (channels.isEmpty()) {
+			idle.remove(client);
+		}
+		return c;
+	}
+
+	// The evaluation is complete, keep the connection for the next request of the same client
+	public void release(channel c) {
+		List<channel> evicted = new ArrayList<>();
+		synchronized (this) {
+			if (closed) {
+				evicted.add(c);
+			}
+			else {
+				Deque<channel> channels = idle.computeIfAbsent(c.client, k -> new ArrayDeque<>());
+				channels.addFirst(c);
+				while (channels.size() > IDLE_PER_CLIENT) {
+					evicted.add(channels.pollLast());
+				}
+				Iterator<Map.Entry<String, Deque<channel>>> oldest = idle.entrySet().iterator();
+				while (idle.size() > MAX_CLIENTS && oldest.hasNext()) {
+					evicted.addAll(oldest.next().getValue());
+					oldest.remove();
+				}
+			}
+		}
+		for (channel old : evicted) {
+			discard(old);
+		}
+	}
+
+	// Idle connections kept right now, for the memory estimate of level_site_models
+	public synchronized int idle() {
+		int count = 0;
+		for (Deque<channel> channels : idle.values()) {
+			count += channels.size();
+		}
+		return count;
+	}
+
+	// The evaluation failed, the state of the connection is unknown
+	public void discard(channel c) {
+		try {
+			closeConnection(c.socket);
+		}
+		catch (IOException e) {
+			logger.info("IO Exception in closing a client connection", e);
+		}
+	}
+
+	public void close() {
+		List<channel> all = new ArrayList<>();
+		synchronized (this) {
+			for (Deque<channel> channels : idle.values()) {
+				all.addAll(channels);
+			}
+			idle.clear();
+			closed = true;
+		}
+		for (channel c : all) {
+			discard(c);
+		}
+	}
+}
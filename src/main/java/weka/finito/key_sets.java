@@ -0,0 +1,380 @@
+package weka.finito;
+
+import security.dgk.DGKPublicKey;
+import security.paillier.PaillierPublicKey;
+import weka.finito.structs.level_order_site;
+import weka.finito.utils.metrics;
+import weka.finito.utils.model_cache;
+import weka.finito.utils.randomness_pool;
+import weka.finito.utils.shared;
+
+import java.io.Closeable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/*
+ * The server-site serves one model to many clients, each with its own keys. The model is encrypted under a key set
+ * the first time the server-site sees it, and the copy is kept while the ciphertexts of all copies fit in
+ * SERVER_SITE_KEY_SETS_MAX_MB. Past it, the least recently used copies are dropped but their public keys are kept,
+ * so the next features under those keys have the model encrypted again, from the model cache if MODEL_CACHE_DIR is set.
+ * Each copy has a small randomness pool with one refill thread per scheme, counted in the bound with its copy.
+ * At most SERVER_SITE_KEY_SETS_MAX key sets are kept, past it the least recently used ones without a copy are forgotten,
+ * their clients have to set up again to be evaluated by the server-site. Level-sites keep serving them meanwhile.
+ * Copies are made one at a time, the encryption of one already runs on every core.
+ * Once the model is trained again, only the copies in memory are encrypted again with refresh, which replaces them.
+ * The other key sets are stale until their copy is next made, the level-sites are then switched to it, see stale.
+ */
+public final class key_sets implements Closeable {
+	private static final Logger logger = LogManager.getLogger(key_sets.class);
+	public static final int MAX_MB = shared.get_env_int("SERVER_SITE_KEY_SETS_MAX_MB", 512);
+	public static final int MAX_KEY_SETS = shared.get_env_int("SERVER_SITE_KEY_SETS_MAX", 4096);
+	// Randomness kept for each copy, the model itself is encrypted on every core with or without it
+	private static final int POOL_CAPACITY = 32;
+	// The stack a platform thread reserves by default, each pool has a refill thread per scheme
+	private static final long REFILL_THREAD_BYTES = 1024 * 1024;
+	private static final metrics.counter encryptions = metrics.counter("ppdt_server_site_key_set_encryptions_total",
+			"Copies of the model encrypted under a client key set, again after being dropped included");
+
+	private final long max_bytes;
+	private final int max_key_sets;
+	private final encryptor model;
+	// Key sets seen, by key id, least recently used first. The public keys are small next to a copy of the model
+	private final LinkedHashMap<String, key_set> known = new LinkedHashMap<>(16, 0.75f, true);
+	// Key sets with a copy of the model in memory, least recently used first. Both maps are guarded by lock
+	private final LinkedHashMap<String, key_set> encrypted = new LinkedHashMap<>(16, 0.75f, true);
+	private final ReentrantLock lock = new ReentrantLock();
+	// Held while encrypting, a monitor would pin the virtual thread of the client to its carrier
+	private final ReentrantLock encrypting = new ReentrantLock();
+	private long encrypted_bytes = 0;
+
+	// Encrypts the levels of the model under a key set
+	@FunctionalInterface
+	public interface encryptor {
+		List<level_order_site> encrypt(key_set keys, randomness_pool pool) throws Exception;
+	}
+
+	// A client key set, and the model encrypted under it while it is kept
+	public static final class key_set {
+		public final String key_id;
+		public final PaillierPublicKey paillier_public_key;
+		public final DGKPublicKey dgk_public_key;
+		// Set while the copy is kept, with the blinding factors for these keys. Guarded by lock
+		private List<level_order_site> levels = null;
+		private randomness_pool pool = null;
+		private long bytes = 0;
+		// The version of the last copy, kept once it is dropped, and the version the level-sites last switched to
+		private long version = -1;
+		private long activated = -1;
+
+		private key_set(PaillierPublicKey paillier_public_key, DGKPublicKey dgk_public_key) {
+			this.key_id = model_cache.key_id(paillier_public_key, dgk_public_key);
+			this.paillier_public_key = paillier_public_key;
+			this.dgk_public_key = dgk_public_key;
+		}
+	}
+
+	// The levels and pool of a key set, as they were when it was looked up
+	public record encrypted_model(key_set keys, List<level_order_site> levels, randomness_pool pool) {
+	}
+
+	public key_sets(long max_bytes, encryptor model) {
+		this(max_bytes, MAX_KEY_SETS, model);
+	}
+
+	public key_sets(long max_bytes, int max_key_sets, encryptor model) {
+		this.max_bytes = max_bytes;
+		this.max_key_sets = Math.max(1, max_key_sets);
+		this.model = model;
+		metrics.gauge("ppdt_server_site_key_sets", "Client key sets seen by the server-site, by whether the model "
+				+ "is encrypted under them in memory", this::encrypted_count, "state", "encrypted");
+		metrics.gauge("ppdt_server_site_key_sets", "Client key sets seen by the server-site, by whether the model "
+				+ "is encrypted under them in memory", this::dropped_count, "state", "dropped");
+	}
+
+	public static key_sets from_environment(encryptor model) {
+		return new key_sets((long) MAX_MB * 1024 * 1024, model);
+	}
+
+	// Remembers the keys of a client, without encrypting anything yet
+	public key_set register(PaillierPublicKey paillier_public_key, DGKPublicKey dgk_public_key) {
+		key_set keys = new key_set(paillier_public_key, dgk_public_key);
+		int forgotten;
+		lock.lock();
+		try {
+			key_set seen = known.get(keys.key_id);
+			if (seen != null) {
+				return seen;
+			}
+			known.put(keys.key_id, keys);
+			forgotten = forget(keys);
+		}
+		finally {
+			lock.unlock();
+		}
+		if (forgotten > 0) {
+			logger.info("Forgot {} key sets without a copy of the model", forgotten);
+		}
+		return keys;
+	}
+
+	// null if no client registered these keys, or they were forgotten
+	public key_set get(String key_id) {
+		lock.lock();
+		try {
+			return known.get(key_id);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// The key sets with a copy of the model in memory
+	public List<key_set> encrypted() {
+		lock.lock();
+		try {
+			return new ArrayList<>(encrypted.values());
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// The model encrypted under the key set, encrypted now if it is the first time or the copy was dropped
+	public encrypted_model model(key_set keys) throws Exception {
+		encrypted_model ready = lookup(keys);
+		if (ready != null) {
+			return ready;
+		}
+		encrypting.lock();
+		try {
+			// Another client with the same keys may have just encrypted it
+			ready = lookup(keys);
+			if (ready != null) {
+				return ready;
+			}
+			return encrypt(keys);
+		}
+		finally {
+			encrypting.unlock();
+		}
+	}
+
+	// The model trained again as this version, encrypted under the key set. Evaluations holding the copy it replaces
+	// finish with it. null if the copy was dropped, the key set is stale until its copy is made again.
+	public encrypted_model refresh(key_set keys, long version) throws Exception {
+		encrypting.lock();
+		try {
+			encrypted_model ready = lookup(keys);
+			if (ready == null || version(keys) >= version) {
+				return ready;
+			}
+			return encrypt(keys);
+		}
+		finally {
+			encrypting.unlock();
+		}
+	}
+
+	// Called with encrypting held
+	private encrypted_model encrypt(key_set keys) throws Exception {
+		encrypted_model ready;
+		List<key_set> dropped;
+		int forgotten;
+		// The pool of the copy being replaced stops first, evaluations still holding it finish with full encryptions
+		lock.lock();
+		try {
+			if (keys.pool != null) {
+				keys.pool.stop();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		randomness_pool pool = new randomness_pool(keys.paillier_public_key, keys.dgk_public_key, POOL_CAPACITY, 1);
+		pool.export_depth();
+		List<level_order_site> levels;
+		try {
+			levels = model.encrypt(keys, pool);
+		}
+		catch (Exception e) {
+			pool.stop();
+			throw e;
+		}
+		encryptions.inc();
+		lock.lock();
+		try {
+			if (encrypted.remove(keys.key_id) != null) {
+				encrypted_bytes -= keys.bytes;
+			}
+			keys.levels = levels;
+			keys.pool = pool;
+			keys.version = levels.isEmpty() ? keys.version : levels.get(0).get_version();
+			keys.bytes = pool_bytes(keys);
+			for (level_order_site level : levels) {
+				keys.bytes += level_site_models.size_of(level);
+			}
+			// Back among the key sets if it was forgotten while it was encrypted
+			known.putIfAbsent(keys.key_id, keys);
+			encrypted.put(keys.key_id, keys);
+			encrypted_bytes += keys.bytes;
+			ready = new encrypted_model(keys, levels, pool);
+			dropped = drop();
+			forgotten = forget(keys);
+		}
+		finally {
+			lock.unlock();
+		}
+		for (key_set old : dropped) {
+			logger.info("Dropped the model encrypted under key set {}, {} copies kept", old.key_id,
+					encrypted_count());
+		}
+		if (forgotten > 0) {
+			logger.info("Forgot {} key sets without a copy of the model", forgotten);
+		}
+		return ready;
+	}
+
+	private encrypted_model lookup(key_set keys) {
+		lock.lock();
+		try {
+			// Touched, so it is the most recently used
+			if (encrypted.get(keys.key_id) == null) {
+				return null;
+			}
+			return new encrypted_model(keys, keys.levels, keys.pool);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// Least recently used first, never the copy just made. Called with the lock held.
+	private List<key_set> drop() {
+		List<key_set> dropped = new ArrayList<>();
+		Iterator<key_set> oldest = encrypted.values().iterator();
+		while (encrypted_bytes > max_bytes && encrypted.size() > 1) {
+			key_set keys = oldest.next();
+			oldest.remove();
+			encrypted_bytes -= keys.bytes;
+			// Evaluations still holding the copy finish with it, with full encryptions
+			keys.pool.stop();
+			keys.levels = null;
+			keys.pool = null;
+			dropped.add(keys);
+		}
+		return dropped;
+	}
+
+	// The key sets without a copy over max_key_sets, least recently used first, never the one just used.
+	// Called with the lock held.
+	private int forget(key_set used) {
+		int forgotten = 0;
+		Iterator<key_set> oldest = known.values().iterator();
+		while (known.size() > max_key_sets && oldest.hasNext()) {
+			key_set keys = oldest.next();
+			if (keys != used && !encrypted.containsKey(keys.key_id)) {
+				oldest.remove();
+				++forgotten;
+			}
+		}
+		return forgotten;
+	}
+
+	// The pool of a copy, its values and its refill threads
+	private static long pool_bytes(key_set keys) {
+		long value_bytes = 2 * 64 + 2 * bits(keys.paillier_public_key.getModulus()) / 8
+				+ bits(keys.dgk_public_key.getN()) / 8;
+		return POOL_CAPACITY * value_bytes + 2 * REFILL_THREAD_BYTES;
+	}
+
+	private static long bits(BigInteger value) {
+		return value == null ? 0 : value.bitLength();
+	}
+
+	private long version(key_set keys) {
+		lock.lock();
+		try {
+			return keys.version;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// Whether the level-sites have to be switched to this version under the key set once trained with it.
+	// Key sets dropped or forgotten while the model was swapped are, their level-sites still evaluate an older one.
+	// So are new key sets, the first version of a model is already the one level-sites evaluate.
+	public boolean stale(key_set keys, long version) {
+		lock.lock();
+		try {
+			return keys.activated < version;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// The level-sites switched to this version under the key set, a set-up racing a swap never moves it back
+	public void activated(key_set keys, long version) {
+		lock.lock();
+		try {
+			keys.activated = Math.max(keys.activated, version);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean is_encrypted(String key_id) {
+		lock.lock();
+		try {
+			return encrypted.containsKey(key_id);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private int encrypted_count() {
+		lock.lock();
+		try {
+			return encrypted.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private int dropped_count() {
+		lock.lock();
+		try {
+			return known.size() - encrypted.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public void close() {
+		lock.lock();
+		try {
+			for (key_set keys : encrypted.values()) {
+				keys.pool.stop();
+				keys.levels = null;
+				keys.pool = null;
+			}
+			encrypted.clear();
+			encrypted_bytes = 0;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package weka.finito;
+
+import security.socialistmillionaire.bob_joye;
+import weka.finito.utils.metered_socket;
+import weka.finito.utils.metrics;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.KeyPair;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static weka.finito.client.createServerSocket;
+import static weka.finito.utils.shared.closeConnection;
+
+/*
+ * Client side of the connections level-sites 1, 2, ..., d open to call back the client.
+ * A level-site keeps its connection open and re-uses it for every evaluation of this client,
+ * so connections are accepted in the background and each one gets a reader waiting for the next request.
+ * Each request starts with a header from the level-site, [level][request id], that the reader acknowledges,
+ * then the request is handed to the client thread, which runs the comparisons on the same bob.
+ */
+public final class level_site_callbacks implements Closeable {
+	private static final Logger logger = LogManager.getLogger(level_site_callbacks.class);
+	private final ServerSocket listener;
+	private final KeyPair paillier;
+	private final KeyPair dgk;
+	private final BlockingQueue<callback> ready = new LinkedBlockingQueue<>();
+	private final List<Socket> connections = new CopyOnWriteArrayList<>();
+	private volatile boolean closed = false;
+
+	// A request from a level-site, call done() once the comparisons are answered to read the next one
+	public static final class callback {
+		public final bob_joye client;
+		public final int level;
+		public final long request_id;
+		private final Semaphore finished = new Semaphore(0);
+
+		private callback(bob_joye client, int level, long request_id) {
+			this.client = client;
+			this.level = level;
+			this.request_id = request_id;
+		}
+
+		public void done() {
+			finished.release();
+		}
+	}
+
+	public level_site_callbacks(int port, KeyPair paillier, KeyPair dgk) {
+		this.listener = createServerSocket(port);
+		this.paillier = paillier;
+		this.dgk = dgk;
+		metrics.gauge("ppdt_queue_depth", "Requests waiting to be handled, by queue", ready::size,
+				"queue", "level_site_callbacks");
+		// Virtual threads, a level-site connection waits for a request most of the time
+		Thread.ofVirtual().name("level-site-callbacks-" + port).start(this::accept_connections);
+	}
+
+	// Waits for the next request of any level-site
+	public callback next() throws InterruptedException {
+		return ready.take();
+	}
+
+	public callback next(long timeout, TimeUnit unit) throws InterruptedException {
+		return ready.poll(timeout, unit);
+	}
+
+	private void accept_connections() {
+		while (!closed) {
+			try {
+				Socket level_site = listener.accept();
+				connections.add(level_site);
+				Thread.ofVirtual().name("level-site-callback-" + level_site.getRemoteSocketAddress())
+						.start(() -> read_requests(level_site));
+			}
+			catch (IOException e) {
+				if (!closed) {
+					logger.error("Unable to accept a connection from a level-site", e);
+				}
+			}
+		}
+	}
+
+	private void read_requests(Socket level_site) {
+		try {
+			bob_joye client = new bob_joye(paillier, dgk);
+			client.set_socket(new metered_socket(level_site, "level_site"));
+			while (!closed) {
+				int level = client.readInt();
+				long request_id = (Long) client.readObject();
+				// Tells the level-site the connection is still good before it starts comparing
+				client.writeBoolean(true);
+				callback request = new callback(client, level, request_id);
+				ready.put(request);
+				request.finished.acquire();
+			}
+		}
+		catch (EOFException | SocketException e) {
+			// The level-site closed its connection
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e) {
+			if (!closed) {
+				logger.error("Connection from a level-site failed", e);
+			}
+		}
+		finally {
+			connections.remove(level_site);
+			try {
+				closeConnection(level_site);
+			}
+			catch (IOException e) {
+				logger.info("IO Exception in closing a level-site connection", e);
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		closeConnection(listener);
+		for (Socket level_site : connections) {
+			closeConnection(level_site);
+		}
+	}
+}
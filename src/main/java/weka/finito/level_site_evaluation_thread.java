@@ -1,161 +1,411 @@
 package weka.finito;
 
-import java.io.EOFException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.lang.System;
 
 import security.misc.HomomorphicException;
 import security.socialistmillionaire.alice_joye;
 import weka.finito.structs.NodeInfo;
+import weka.finito.structs.evaluation_plan;
 import weka.finito.structs.features;
+import weka.finito.structs.features_batch;
 import weka.finito.structs.level_order_site;
+import weka.finito.structs.resolved_index;
+import weka.finito.utils.metrics;
+import weka.finito.utils.randomness_pool;
 
 import java.io.IOException;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import static weka.finito.client.createSocket;
 import static weka.finito.utils.shared.*;
 
 public class level_site_evaluation_thread implements Runnable {
 	private static final Logger logger = LogManager.getLogger(level_site_evaluation_thread.class);
-	private Socket client_socket;
-	private Socket next_level_site_socket;
-	private Socket previous_level_site_socket;
+	private static final Map<Integer, metrics.histogram> evaluation_seconds = new ConcurrentHashMap<>();
+	private static final metrics.gauge in_flight = metrics.gauge("ppdt_evaluations_in_flight",
+			"Requests being evaluated right now");
+	// Connections to the client the records of a batch are compared over at once, see evaluate_batch
+	public static final int BATCH_CONNECTIONS = Math.max(1, get_env_int("BATCH_CONNECTIONS", 4));
+	// Connections to the client the splits of a level are compared over at once in all-nodes mode, see run_all_nodes
+	public static final int ALL_NODES_CONNECTIONS = Math.max(1, get_env_int("ALL_NODES_CONNECTIONS", 4));
+	private final Socket client_socket;
+	private final client_channels channels;
 	private final level_order_site level_site_data;
-	private features encrypted_features;
-	private ObjectOutputStream next_level_site = null;
-	private ObjectInputStream previous_site = null;
-	private ServerSocket previous_level_site_listener;
+	private final features encrypted_features;
+	private final features_batch encrypted_batch;
+	private final level_site_link next_level_site;
+	private final randomness_pool pool;
+	// All-nodes mode only, completed with the index in scope of this level once the previous level-site knows it
+	private final CompletableFuture<Integer> resolved;
 
-	// This thread is only for level-site 0
-	public level_site_evaluation_thread(Socket client_socket, level_order_site level_site_data,
-										features encrypted_features, ObjectOutputStream next_level_site) {
-		// Have encrypted copy of thresholds if not done already for all nodes in level-site
+	// Level-site 0 has the client socket, level-sites 1, 2, ..., d call back the client on a pooled connection
+	private level_site_evaluation_thread(Socket client_socket, client_channels channels,
+										 level_order_site level_site_data,
+										 features encrypted_features, features_batch encrypted_batch,
+										 level_site_link next_level_site, randomness_pool pool,
+										 CompletableFuture<Integer> resolved) {
 		this.client_socket = client_socket;
+		this.channels = channels;
 		this.level_site_data = level_site_data;
 		this.encrypted_features = encrypted_features;
+		this.encrypted_batch = encrypted_batch;
 		this.next_level_site = next_level_site;
+		this.pool = pool;
+		this.resolved = resolved;
 	}
 
-	// For all other levels
-	public level_site_evaluation_thread(level_order_site level_site_data,
-										ServerSocket previous_level_site_listener) throws IOException {
-		this.level_site_data = level_site_data;
-		this.previous_level_site_listener = previous_level_site_listener;
+	// Evaluates one record
+	public level_site_evaluation_thread(Socket client_socket, level_order_site level_site_data,
+										features encrypted_features, level_site_link next_level_site,
+										randomness_pool pool) {
+		// Have encrypted copy of thresholds if not done already for all nodes in level-site
+		this(client_socket, null, level_site_data, encrypted_features, null, next_level_site, pool, null);
 	}
 
-	protected void init() throws IOException {
-		// All level-sites except 0 (already checked in constructor), must do this.
-		if(previous_site == null) {
-			logger.debug("Evaluation thread will now do the listening");
-			if (previous_level_site_listener != null) {
-				// Likely level-site 0, so no previous socket would exist.
-				previous_level_site_socket = previous_level_site_listener.accept();
-				previous_level_site_socket.setKeepAlive(true);
-				previous_site = get_ois(previous_level_site_socket);
-			}
-		}
-		else {
-			logger.debug("Connection to previous level-site already exists!");
-		}
+	// Evaluates several records of one client at once, lanes past the first on pooled connections
+	public level_site_evaluation_thread(Socket client_socket, client_channels channels,
+										level_order_site level_site_data, features_batch encrypted_batch,
+										level_site_link next_level_site, randomness_pool pool) {
+		this(client_socket, channels, level_site_data, null, encrypted_batch, next_level_site, pool, null);
+	}
 
-		// All the level-sites should do this step though, except level-site d
-		// Create a persistent connection to next level-site and oos to send the next stuff down
-		if (next_level_site == null) {
-			if (level_site_data.get_next_level_site() != null) {
-				next_level_site_socket = createSocket(level_site_data.get_next_level_site(),
-						level_site_data.get_next_level_site_port());
-				next_level_site_socket.setKeepAlive(true);
-				next_level_site = new ObjectOutputStream(next_level_site_socket.getOutputStream());
-			}
-		}
-		else {
-			logger.debug("Connection to the next level-site already exists");
-		}
+	// Evaluates one record forwarded by the previous level-site
+	public level_site_evaluation_thread(client_channels channels, level_order_site level_site_data,
+										features encrypted_features, level_site_link next_level_site,
+										randomness_pool pool) {
+		this(null, channels, level_site_data, encrypted_features, null, next_level_site, pool, null);
 	}
 
-	private void evaluate() throws IOException, HomomorphicException, ClassNotFoundException {
-		long start_time = System.nanoTime();
-		alice_joye niu = new alice_joye();
+	// Evaluates a batch forwarded by the previous level-site
+	public level_site_evaluation_thread(client_channels channels, level_order_site level_site_data,
+										features_batch encrypted_batch, level_site_link next_level_site,
+										randomness_pool pool) {
+		this(null, channels, level_site_data, null, encrypted_batch, next_level_site, pool, null);
+	}
+
+	// All-nodes mode at level-site 0, the index in scope is the one the client sent. Lanes past the first are pooled
+	public level_site_evaluation_thread(Socket client_socket, client_channels channels,
+										level_order_site level_site_data, features encrypted_features,
+										level_site_link next_level_site, randomness_pool pool,
+										CompletableFuture<Integer> resolved) {
+		this(client_socket, channels, level_site_data, encrypted_features, null, next_level_site, pool, resolved);
+	}
+
+	// All-nodes mode at levels 1, 2, ..., d, the previous level-site completes resolved
+	public level_site_evaluation_thread(client_channels channels, level_order_site level_site_data,
+										features encrypted_features, level_site_link next_level_site,
+										randomness_pool pool, CompletableFuture<Integer> resolved) {
+		this(null, channels, level_site_data, encrypted_features, null, next_level_site, pool, resolved);
+	}
 
+	private alice_joye connect_to_client() throws IOException {
+		alice_joye niu = new alice_joye();
 		niu.set_socket(client_socket);
 		niu.setDGKPublicKey(this.level_site_data.dgk_public_key);
 		niu.setPaillierPublicKey(this.level_site_data.paillier_public_key);
+		return niu;
+	}
 
+	// Run the comparison of one record, tell the client if a leaf was found. Returns true if it was.
+	private boolean evaluate_record(alice_joye niu, features record)
+			throws IOException, HomomorphicException, ClassNotFoundException {
 		// Null, keep going down the tree,
 		// Not null, you got the correct leaf node of your DT!
-		// encrypted_features will have index updated within traverse_level
-		NodeInfo reply = traverse_level(level_site_data, encrypted_features, niu);
+		// record will have index updated within traverse_level
+		NodeInfo reply = traverse_level(level_site_data, record, niu);
 		niu.writeInt(-1);
 
 		if (reply != null) {
-			// Tell the client the value
+			// Tell the client the value, re-randomized so the same leaf never looks the same twice
 			niu.writeBoolean(true);
-			niu.writeObject(reply.getVariableName());
+			niu.writeObject(pool.rerandomize_paillier(reply.getVariableName()));
+			return true;
 		}
 		else {
 			niu.writeBoolean(false);
-			next_level_site.writeObject(encrypted_features);
-			next_level_site.flush();
+			return false;
 		}
-		long stop_time = System.nanoTime();
-		double run_time = (double) (stop_time - start_time);
-		run_time = run_time / 1000000;
-		logger.info(String.format("Total Level-Site run-time took %f ms\n", run_time));
 	}
 
-	// This will run the communication with client and next level site
-	public final void run() {
-		logger.debug("Showing level-site");
-		logger.debug(level_site_data.toString());
-		Object o;
-
-        try {
-			init();
-			if (level_site_data.get_level() != 0) {
-				// Loop read object and evaluate. On interrupt, close everything
-                logger.info("Level-site {} is now waiting for evaluations", level_site_data.get_level());
-				while (!Thread.interrupted()) {
-					// Previous level-site sends data for comparison
-					o = previous_site.readObject();
-                    logger.info("Level-site {} got an object", level_site_data.get_level());
-					if (o instanceof features) {
-						encrypted_features = (features) o;
+	private void evaluate(alice_joye niu) throws IOException, HomomorphicException, ClassNotFoundException {
+		long start_time = System.nanoTime();
+
+		if (encrypted_batch != null) {
+			evaluate_batch(niu);
+		}
+		else if (!evaluate_record(niu, encrypted_features)) {
+			forward(encrypted_features);
+		}
+		// The time goes to the metrics only, logging it would box and format on every request
+		observe_evaluation(start_time);
+	}
+
+	// Level d has no next level-site, a request that did not reach a leaf there was evaluated with the wrong tree
+	private void forward(Object request) throws IOException {
+		if (next_level_site == null) {
+			throw new IOException("Request " + get_request_id() + " did not reach a leaf at level "
+					+ level_site_data.get_level() + ", the last level of model " + level_site_data.get_hosted_id());
+		}
+		next_level_site.send(request);
+	}
+
+	private void observe_evaluation(long start_time) {
+		evaluation_seconds.computeIfAbsent(level_site_data.get_level(), level -> metrics.histogram(
+				"ppdt_level_evaluation_seconds", "Time to evaluate a request at a level, comparisons included",
+				"level", String.valueOf(level))).observe_since(start_time);
+	}
+
+	/*
+	 * The records of the batch are split into lanes, record i going to lane i % lanes, and every lane is compared
+	 * over its own connection to the client at the same time. A lane starts with [lanes][lane], so the client knows
+	 * how many connections the level uses and which records come on each one.
+	 * Only the records that did not reach a leaf are sent down in one object, in the order of the batch.
+	 */
+	private void evaluate_batch(alice_joye niu)
+			throws IOException, HomomorphicException, ClassNotFoundException {
+		List<features> records = encrypted_batch.get_records();
+		int lanes = Math.min(BATCH_CONNECTIONS, Math.max(1, records.size()));
+		boolean [] found = new boolean[records.size()];
+		run_lanes(niu, lanes, encrypted_batch.get_client_ip(), encrypted_batch.get_client_port(), (client, lane) -> {
+			client.writeInt(lanes);
+			client.writeInt(lane);
+			for (int i = lane; i < records.size(); i += lanes) {
+				found[i] = evaluate_record(client, records.get(i));
+			}
+		});
+		List<features> remaining = new ArrayList<>();
+		for (int i = 0; i < records.size(); i++) {
+			if (!found[i]) {
+				remaining.add(records.get(i));
+			}
+		}
+		logger.debug("Level-site {} evaluated a batch of {} records, {} go to the next level",
+				level_site_data.get_level(), encrypted_batch.size(), remaining.size());
+		if (!remaining.isEmpty()) {
+			forward(new features_batch(remaining, encrypted_batch.get_client_ip(),
+					encrypted_batch.get_client_port(), encrypted_batch.get_request_id()));
+		}
+	}
+
+	// The comparisons of one lane, over one connection to the client
+	private interface lane_comparisons {
+		void compare(alice_joye niu, int lane) throws IOException, HomomorphicException, ClassNotFoundException;
+	}
+
+	/*
+	 * Lane 0 runs on the connection this evaluation already has, lanes 1, 2, ..., lanes - 1 each on a pooled
+	 * connection to the client and a virtual thread of their own. Returns once every lane is done.
+	 * A connection whose lane failed is closed, the others go back to the pool.
+	 */
+	private void run_lanes(alice_joye niu, int lanes, String client_ip, int client_port,
+						   lane_comparisons task)
+			throws IOException, HomomorphicException, ClassNotFoundException {
+		List<Future<?>> others = new ArrayList<>();
+		try (ExecutorService connections = virtual_threads("level-site-" + level_site_data.get_level() + "-lanes")) {
+			for (int i = 1; i < lanes; i++) {
+				int lane = i;
+				others.add(connections.submit(() -> {
+					client_channels.channel pooled = channels.acquire(client_ip, client_port, get_request_id());
+					try {
+						task.compare(pooled.niu, lane);
 					}
-					else {
-						throw new RuntimeException("Level-site " + level_site_data.get_level()
-								+ "received an object that should be features!");
+					catch (IOException | HomomorphicException | ClassNotFoundException | RuntimeException e) {
+						channels.discard(pooled);
+						throw e;
 					}
-                    logger.info("Level-site {} got encrypted features!", level_site_data.get_level());
-					// Create connection to the client
-					client_socket = createSocket(
-							encrypted_features.get_client_ip(),
-							encrypted_features.get_client_port());
-                    logger.info("Level-site {} connected to the client: {}:{}", level_site_data.get_level(), encrypted_features.get_client_ip(), encrypted_features.get_client_port());
-					evaluate();
-				}
-				// Close everything
-				closeConnection(previous_level_site_listener);
-				closeConnection(previous_level_site_socket);
-				closeConnection(next_level_site_socket);
+					channels.release(pooled);
+					return null;
+				}));
+			}
+			task.compare(niu, 0);
+			for (Future<?> other : others) {
+				other.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while comparing request " + get_request_id(), e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException io) {
+				throw io;
+			}
+			if (e.getCause() instanceof HomomorphicException he) {
+				throw he;
+			}
+			if (e.getCause() instanceof ClassNotFoundException cnf) {
+				throw cnf;
+			}
+			throw new IOException("A lane of request " + get_request_id() + " failed", e.getCause());
+		}
+	}
+
+	private long get_request_id() {
+		if (encrypted_batch != null) {
+			return encrypted_batch.get_request_id();
+		}
+		return encrypted_features.get_request_id();
+	}
+
+	/*
+	 * All-nodes mode: the features go to the next level-site before any comparison, so every level-site
+	 * compares all of its nodes with the client at the same time. The splits are dealt to ALL_NODES_CONNECTIONS
+	 * lanes, each compared over its own connection to the client like the lanes of a batch, and each starting
+	 * with [lanes][lane]. The connection of lane 0 is then held, without a thread, until the previous level-site
+	 * resolves the index in scope of this level, the other lanes go back to the pool.
+	 */
+	private void run_all_nodes() {
+		long start_time = System.nanoTime();
+		client_channels.channel pooled = null;
+		alice_joye niu = null;
+		int [] next_index = null;
+		in_flight.inc();
+		try {
+			if (next_level_site != null) {
+				next_level_site.send(encrypted_features);
+			}
+			if (client_socket != null) {
+				niu = connect_to_client();
 			}
 			else {
-				// I already got client socket and features, so evaluate thread now and close
-				evaluate();
+				pooled = channels.acquire(encrypted_features.get_client_ip(), encrypted_features.get_client_port(),
+						get_request_id());
+				niu = pooled.niu;
 			}
+			int [] compared = new int[level_site_data.get_plan().size()];
+			int lanes = Math.min(ALL_NODES_CONNECTIONS, Math.max(1, count_splits(level_site_data)));
+			run_lanes(niu, lanes, encrypted_features.get_client_ip(), encrypted_features.get_client_port(),
+					(client, lane) -> {
+				client.writeInt(lanes);
+				client.writeInt(lane);
+				compare_level(level_site_data, encrypted_features, client, compared, lane, lanes);
+				client.writeInt(-1);
+			});
+			next_index = compared;
 		}
-		catch (EOFException e) {
-			// ... this is fine, will occur when stuck on readObject() and interrupted.
+		catch (IOException | HomomorphicException | ClassNotFoundException e) {
+			logger.error("Level-site {} failed to compare request {}", level_site_data.get_level(),
+					get_request_id(), e);
 		}
-        catch (Exception e) {
-			throw new RuntimeException(e);
+		finally {
+			// Even if this level failed, the next level-sites wait for an index from it
+			alice_joye client = niu;
+			client_channels.channel connection = pooled;
+			int [] compared = next_index;
+			resolved.whenComplete((index, failure) -> finish_all_nodes(client, connection, compared,
+					failure == null ? index : -1, start_time));
+		}
+	}
+
+	// Tells the client if the leaf is here, then sends the index in scope of the next level down the chain
+	private void finish_all_nodes(alice_joye niu, client_channels.channel pooled, int [] next_index, int index,
+								  long start_time) {
+		evaluation_plan plan = level_site_data.get_plan();
+		int next = -1;
+		try {
+			if (next_index != null) {
+				if (index >= 0 && plan.in_scope(index) && plan.is_leaf(index)) {
+					NodeInfo leaf = level_site_data.get_node_data().get(plan.node_offset(index));
+					niu.writeBoolean(true);
+					niu.writeObject(pool.rerandomize_paillier(leaf.getVariableName()));
+				}
+				else {
+					// The leaf was found above, or is further down
+					niu.writeBoolean(false);
+					if (index >= 0 && plan.in_scope(index)) {
+						next = next_index[index];
+					}
+					else if (index >= 0) {
+						logger.error("No node of level {} is in scope of index {} for request {}",
+								level_site_data.get_level(), index, get_request_id());
+					}
+				}
+				if (pooled != null) {
+					channels.release(pooled);
+					pooled = null;
+				}
+			}
+		}
+		catch (IOException | HomomorphicException e) {
+			logger.error("Level-site {} failed to answer request {}", level_site_data.get_level(),
+					get_request_id(), e);
 		}
 		finally {
+			if (pooled != null) {
+				channels.discard(pooled);
+			}
+			try {
+				closeConnection(client_socket);
+			}
+			catch (IOException e) {
+				logger.info("IO Exception in closing Level-Site Connection in Evaluation", e);
+			}
+			if (next_level_site != null) {
+				try {
+					next_level_site.send(new resolved_index(encrypted_features.get_model_id(),
+							encrypted_features.get_key_id(), get_request_id(), next));
+				}
+				catch (IOException e) {
+					logger.error("Level-site {} failed to send the index of request {} down",
+							level_site_data.get_level(), get_request_id(), e);
+				}
+			}
+			else if (next >= 0) {
+				logger.error("Request {} did not reach a leaf at level {}, the last level of model {}",
+						get_request_id(), level_site_data.get_level(), level_site_data.get_hosted_id());
+			}
+			in_flight.dec();
+			observe_evaluation(start_time);
+		}
+	}
+
+	// This will run the communication with client and next level site
+	public final void run() {
+		if (resolved != null) {
+			run_all_nodes();
+			return;
+		}
+		client_channels.channel pooled = null;
+		in_flight.inc();
+		try {
+			// Level-site 0 already got client socket and features, other levels call the client back
+			if (client_socket != null) {
+				evaluate(connect_to_client());
+			}
+			else {
+				if (encrypted_batch != null) {
+					pooled = channels.acquire(encrypted_batch.get_client_ip(), encrypted_batch.get_client_port(),
+							get_request_id());
+				}
+				else {
+					pooled = channels.acquire(encrypted_features.get_client_ip(),
+							encrypted_features.get_client_port(), get_request_id());
+				}
+				evaluate(pooled.niu);
+				channels.release(pooled);
+				pooled = null;
+			}
+		}
+		catch (IOException | HomomorphicException | ClassNotFoundException e) {
+			// Only this request is lost, the other evaluations and the link to the previous level-site carry on
+			logger.error("Level-site {} failed to evaluate request {}", level_site_data.get_level(),
+					get_request_id(), e);
+		}
+		finally {
+			in_flight.dec();
+			if (pooled != null) {
+				channels.discard(pooled);
+			}
 			try {
 				closeConnection(client_socket);
 			}
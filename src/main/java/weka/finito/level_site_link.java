@@ -0,0 +1,58 @@
+package weka.finito;
+
+import weka.finito.utils.metered_socket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static weka.finito.client.createSocket;
+import static weka.finito.utils.shared.*;
+
+/*
+ * The persistent connection of a level-site to the next one, shared by every evaluation.
+ * Each object is written whole under a lock rather than a monitor, a virtual thread
+ * waiting for the socket in a synchronized block would keep its carrier thread.
+ * Links go to a level-site, not a model, so the models a level-site hosts share them.
+ * Once a write fails the link is broken, and the next model trained with the same next level-site opens a new one.
+ */
+public final class level_site_link implements Closeable {
+	private final Socket socket;
+	private final ObjectOutputStream next_level_site;
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile boolean broken = false;
+
+	public level_site_link(String host, int port, metered_socket.hop counters) throws IOException {
+		socket = createSocket(host, port);
+		socket.setKeepAlive(true);
+		next_level_site = new ObjectOutputStream(new metered_socket(socket, counters).getOutputStream());
+	}
+
+	public void send(Object o) throws IOException {
+		lock.lock();
+		try {
+			// Forget the objects already written, or the stream keeps a reference to every request
+			next_level_site.reset();
+			write_object(next_level_site, o);
+			next_level_site.flush();
+		}
+		catch (IOException e) {
+			broken = true;
+			throw e;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean is_broken() {
+		return broken;
+	}
+
+	public void close() throws IOException {
+		broken = true;
+		closeConnection(socket);
+	}
+}
@@ -0,0 +1,586 @@
+package weka.finito;
+
+import security.dgk.DGKPublicKey;
+import security.paillier.PaillierPublicKey;
+import weka.finito.structs.NodeInfo;
+import weka.finito.structs.level_order_site;
+import weka.finito.utils.binary_codec;
+import weka.finito.utils.metrics;
+import weka.finito.utils.randomness_pool;
+import weka.finito.utils.shared;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/*
+ * The models a level-site hosts, each one a level_order_site tagged with its model id, and with the key id
+ * of the client key set it is encrypted under when the model serves several clients, see level_order_site.hosted_id.
+ * The memory of the models kept in memory is bounded by LEVEL_SITE_MODELS_MAX_MB. Past it, the least recently
+ * evaluated models are written to LEVEL_SITE_MODELS_DIR in the binary wire format, and read back the next time
+ * features name them. The model just trained or evaluated always stays, even if it alone is over the bound.
+ * Each model in memory has the randomness pool and client connections made for its keys. The public keys are
+ * shared by all the models encrypted under them, a DGK public key carries lookup tables of tens of MB.
+ * The lock only guards the maps, models are read, decoded and written outside of it: a model being read back
+ * is waited for by the other requests for it, and a model being written is still evaluated until it is on disk.
+ * A model trained again while the level-site runs gets a new version: it is staged next to the current one, and only
+ * evaluated once the server-site activates it, see model_epoch. The version it replaces is kept for the requests
+ * level-site 0 started with it, and the versions before it are dropped.
+ */
+public final class level_site_models implements Closeable {
+	private static final Logger logger = LogManager.getLogger(level_site_models.class);
+	public static final int MAX_MB = shared.get_env_int("LEVEL_SITE_MODELS_MAX_MB", 512);
+	public static final String DIRECTORY = System.getenv("LEVEL_SITE_MODELS_DIR");
+	// Paillier randomness kept for each model, to re-randomize the leaves it returns
+	private static final int POOL_CAPACITY = 32;
+	private static final String SUFFIX = ".level";
+	private static final metrics.counter reloads = metrics.counter("ppdt_level_site_model_reloads_total",
+			"Models read back from disk to evaluate features");
+	private static final metrics.counter evictions = metrics.counter("ppdt_level_site_model_evictions_total",
+			"Models written to disk to stay under LEVEL_SITE_MODELS_MAX_MB");
+
+	private final Path directory;
+	private final long max_bytes;
+	// By stored id, least recently used first
+	private final LinkedHashMap<String, hosted_model> loaded = new LinkedHashMap<>(16, 0.75f, true);
+	private final Set<String> on_disk = new HashSet<>();
+	// Evicted models, still evaluated until they are on disk, and the models being read back, by stored id
+	private final Map<String, hosted_model> writing = new HashMap<>();
+	private final Map<String, CompletableFuture<hosted_model>> reading = new HashMap<>();
+	// Stored ids with a write running, evict() skips them so two writes of the same file never overlap
+	private final Set<String> writes_running = new HashSet<>();
+	// The keys of the models in memory, by DGK modulus
+	private final Map<BigInteger, shared_keys> keys = new HashMap<>();
+	// The version level-site 0 starts requests with and the one before it, by hosted id
+	private final Map<String, Long> current = new HashMap<>();
+	private final Map<String, Long> previous = new HashMap<>();
+	// Guards all of the above
+	private final ReentrantLock lock = new ReentrantLock();
+	// Of the nodes, pools and keys in memory, the idle connections are added when needed, see bytes()
+	private long loaded_bytes = 0;
+
+	// A model ready to evaluate
+	public static final class hosted_model {
+		public final level_order_site data;
+		// Level-sites only need fresh Paillier randomness, to re-randomize the leaves they return
+		public final randomness_pool pool;
+		public final client_channels channels;
+		private final long bytes;
+
+		private hosted_model(level_order_site data) {
+			// Compile the level now, not on the first request
+			data.get_plan();
+			this.data = data;
+			this.pool = new randomness_pool(data.paillier_public_key, null, POOL_CAPACITY, 1);
+			this.channels = new client_channels(data);
+			this.bytes = size_of(data) + POOL_CAPACITY * (64 + modulus_bits(data.paillier_public_key) / 8);
+			pool.export_depth();
+		}
+
+		private long bytes() {
+			return bytes + channels.idle() * client_channels.CHANNEL_BYTES;
+		}
+
+		// Evaluations still holding the model finish, with fresh connections and full encryptions
+		private void close() {
+			pool.stop();
+			channels.close();
+		}
+	}
+
+	// One instance of a key set for all the models encrypted under it, counted once while one of them is in memory
+	private static final class shared_keys {
+		private final PaillierPublicKey paillier_public_key;
+		private final DGKPublicKey dgk_public_key;
+		private final long bytes;
+		private int models = 0;
+
+		private shared_keys(level_order_site data) {
+			this.paillier_public_key = data.paillier_public_key;
+			this.dgk_public_key = data.dgk_public_key;
+			this.bytes = size_of(paillier_public_key, dgk_public_key);
+		}
+	}
+
+	public level_site_models(Path directory, long max_bytes) {
+		this.directory = directory;
+		this.max_bytes = max_bytes;
+		metrics.gauge("ppdt_level_site_models", "Models hosted by the level-site, by where they are",
+				loaded::size, "state", "memory");
+		metrics.gauge("ppdt_level_site_models", "Models hosted by the level-site, by where they are",
+				on_disk::size, "state", "disk");
+		metrics.gauge("ppdt_level_site_model_bytes", "Estimated bytes of the models in memory, with their keys",
+				this::bytes);
+	}
+
+	// Without LEVEL_SITE_MODELS_DIR, evicted models go to a temporary directory of this level-site
+	public static level_site_models from_environment(int port) throws IOException {
+		Path directory;
+		if (DIRECTORY == null || DIRECTORY.isEmpty()) {
+			directory = Files.createTempDirectory("level-site-" + port + "-models");
+		}
+		else {
+			directory = Files.createDirectories(Paths.get(DIRECTORY));
+		}
+		return new level_site_models(directory, (long) MAX_MB * 1024 * 1024);
+	}
+
+	// Ciphertexts and leaves, what most of the memory of a level goes to once its keys are shared
+	static long size_of(level_order_site data) {
+		long bytes = 0;
+		for (NodeInfo node : data.get_node_data()) {
+			bytes += 64 + bits(node.getPaillier()) / 8 + bits(node.getDGK()) / 8;
+			if (node.isLeaf()) {
+				bytes += 2L * node.getVariableName().length();
+			}
+		}
+		return bytes;
+	}
+
+	// The DGK public key holds lookup tables of g^i for every plaintext i < u and of 2t powers of h, each entry a number
+	// modulo n. That is about 23 MB for 2048-bit keys, the Paillier public key is a few numbers.
+	public static long size_of(PaillierPublicKey paillier_public_key, DGKPublicKey dgk_public_key) {
+		long bytes = 4 * (64 + modulus_bits(paillier_public_key) / 8);
+		if (dgk_public_key != null) {
+			bytes += (dgk_public_key.getu() + 2L * dgk_public_key.getT()) * (96 + bits(dgk_public_key.getN()) / 8);
+		}
+		return bytes;
+	}
+
+	private static long bits(BigInteger value) {
+		return value == null ? 0 : value.bitLength();
+	}
+
+	private static long modulus_bits(PaillierPublicKey paillier_public_key) {
+		return paillier_public_key == null ? 0 : bits(paillier_public_key.getModulus());
+	}
+
+	// A version of a copy of a model
+	private static String stored_id(String hosted_id, long version) {
+		return hosted_id + "@" + version;
+	}
+
+	// Hosts the level. The same version trained again is replaced, a new version is staged until activated,
+	// unless it is the first one of the model. True if it replaced the same version.
+	public boolean put(level_order_site data) throws IOException {
+		hosted_model model = new hosted_model(share_keys(data));
+		List<hosted_model> removed = new ArrayList<>();
+		Map<String, hosted_model> evicted;
+		boolean replaced;
+		lock.lock();
+		try {
+			String hosted_id = data.get_hosted_id();
+			String stored_id = stored_id(hosted_id, data.get_version());
+			replaced = remove(stored_id, removed);
+			current.putIfAbsent(hosted_id, data.get_version());
+			publish(stored_id, model);
+			evicted = evict();
+		}
+		finally {
+			lock.unlock();
+		}
+		close(removed);
+		write(evicted);
+		return replaced;
+	}
+
+	// Level-site 0 starts the next requests with this version, the version before it is dropped.
+	// False if the version was never put.
+	public boolean activate(String hosted_id, long version) throws IOException {
+		List<hosted_model> dropped = new ArrayList<>();
+		lock.lock();
+		try {
+			String stored_id = stored_id(hosted_id, version);
+			if (!is_stored(stored_id)) {
+				return false;
+			}
+			Long was = current.put(hosted_id, version);
+			if (was == null || was == version) {
+				return true;
+			}
+			Long before = previous.put(hosted_id, was);
+			if (before != null && before != version) {
+				remove(stored_id(hosted_id, before), dropped);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		close(dropped);
+		logger.info("Model {} is now at version {}", hosted_id, version);
+		return true;
+	}
+
+	// Whether a version is in memory, on its way to disk or on disk. Called with the lock held.
+	private boolean is_stored(String stored_id) {
+		return loaded.containsKey(stored_id) || writing.containsKey(stored_id) || on_disk.contains(stored_id);
+	}
+
+	// The level with the instance of its keys the other models hosted here use, if one of them has the same keys
+	private level_order_site share_keys(level_order_site data) {
+		if (data.dgk_public_key == null) {
+			return data;
+		}
+		shared_keys shared;
+		lock.lock();
+		try {
+			shared = keys.get(data.dgk_public_key.getN());
+		}
+		finally {
+			lock.unlock();
+		}
+		if (shared == null || shared.dgk_public_key == data.dgk_public_key
+				|| !shared.dgk_public_key.equals(data.dgk_public_key)
+				|| !Objects.equals(shared.paillier_public_key, data.paillier_public_key)) {
+			return data;
+		}
+		return data.with_keys(shared.paillier_public_key, shared.dgk_public_key);
+	}
+
+	// Counts a model in memory, and its keys if it is the first model in memory with them. Called with the lock held.
+	private void publish(String stored_id, hosted_model model) {
+		loaded.put(stored_id, model);
+		loaded_bytes += model.bytes;
+		if (model.data.dgk_public_key != null) {
+			shared_keys shared = keys.computeIfAbsent(model.data.dgk_public_key.getN(),
+					n -> new shared_keys(model.data));
+			if (shared.models++ == 0) {
+				loaded_bytes += shared.bytes;
+			}
+		}
+	}
+
+	// Stops counting a model that left memory, and its keys with the last model with them. Called with the lock held.
+	private void unpublish(hosted_model model) {
+		loaded_bytes -= model.bytes;
+		if (model.data.dgk_public_key != null) {
+			BigInteger n = model.data.dgk_public_key.getN();
+			shared_keys shared = keys.get(n);
+			if (shared != null && --shared.models == 0) {
+				loaded_bytes -= shared.bytes;
+				keys.remove(n);
+			}
+		}
+	}
+
+	// Removes a version from memory or disk, true if it was hosted. Called with the lock held.
+	private boolean remove(String stored_id, List<hosted_model> removed) throws IOException {
+		boolean hosted = false;
+		hosted_model model = loaded.remove(stored_id);
+		if (model != null) {
+			unpublish(model);
+			removed.add(model);
+			hosted = true;
+		}
+		// Its writer deletes the file, a model read back meanwhile is dropped by its reader
+		hosted_model being_written = writing.remove(stored_id);
+		if (being_written != null) {
+			if (being_written != model) {
+				removed.add(being_written);
+			}
+			hosted = true;
+		}
+		if (on_disk.remove(stored_id)) {
+			Files.deleteIfExists(file_of(stored_id));
+			hosted = true;
+		}
+		return hosted;
+	}
+
+	// The current version, the one level-site 0 starts requests with. null if no level of this model was trained here
+	public hosted_model get(String hosted_id) throws IOException {
+		Long version;
+		lock.lock();
+		try {
+			version = current.get(hosted_id);
+		}
+		finally {
+			lock.unlock();
+		}
+		return version == null ? null : get(hosted_id, version);
+	}
+
+	// The version a request was started with, null if it was never trained here or was dropped since
+	public hosted_model get(String hosted_id, long version) throws IOException {
+		String stored_id = stored_id(hosted_id, version);
+		CompletableFuture<hosted_model> read;
+		boolean reader = false;
+		lock.lock();
+		try {
+			hosted_model model = loaded.get(stored_id);
+			if (model != null) {
+				return model;
+			}
+			model = writing.get(stored_id);
+			if (model != null) {
+				// Evicted but not on disk yet, it stays in memory and its writer deletes the file
+				publish(stored_id, model);
+				return model;
+			}
+			if (!on_disk.contains(stored_id)) {
+				return null;
+			}
+			read = reading.get(stored_id);
+			if (read == null) {
+				read = new CompletableFuture<>();
+				reading.put(stored_id, read);
+				reader = true;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		return reader ? read_back(stored_id, read) : await(read);
+	}
+
+	// Waits for the request reading the model back
+	private static hosted_model await(CompletableFuture<hosted_model> read) throws IOException {
+		try {
+			return read.join();
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	// Reads a model back from disk, then publishes it, unless it was removed meanwhile
+	private hosted_model read_back(String stored_id, CompletableFuture<hosted_model> read) throws IOException {
+		hosted_model model = null;
+		hosted_model result;
+		Map<String, hosted_model> evicted = Map.of();
+		try {
+			Object o = binary_codec.decode(Files.readAllBytes(file_of(stored_id)));
+			if (!(o instanceof level_order_site)) {
+				throw new StreamCorruptedException("Model " + stored_id + " on disk is not a level");
+			}
+			model = new hosted_model(share_keys((level_order_site) o));
+		}
+		catch (IOException | RuntimeException e) {
+			lock.lock();
+			try {
+				reading.remove(stored_id);
+			}
+			finally {
+				lock.unlock();
+			}
+			read.completeExceptionally(e);
+			if (model != null) {
+				model.close();
+			}
+			throw e;
+		}
+
+		lock.lock();
+		try {
+			reading.remove(stored_id);
+			if (on_disk.remove(stored_id)) {
+				// Nothing else writes or reads the file of a model on disk, deleting it is quick
+				Files.deleteIfExists(file_of(stored_id));
+				publish(stored_id, model);
+				reloads.inc();
+				logger.info("Read model {} back from disk, {} models in memory", stored_id, loaded.size());
+				evicted = evict();
+				result = model;
+			}
+			else {
+				// Removed or trained again while it was read
+				result = loaded.get(stored_id);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		read.complete(result);
+		if (result != model) {
+			model.close();
+		}
+		write(evicted);
+		return result;
+	}
+
+	// Whether the current version is in memory
+	public boolean in_memory(String hosted_id) {
+		lock.lock();
+		try {
+			Long version = current.get(hosted_id);
+			return version != null && loaded.containsKey(stored_id(hosted_id, version));
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean is_hosted(String hosted_id, long version) {
+		lock.lock();
+		try {
+			return is_stored(stored_id(hosted_id, version));
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// Estimated bytes of the models in memory, with their keys, pools and idle client connections
+	public long bytes() {
+		lock.lock();
+		try {
+			return held();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// Called with the lock held
+	private long held() {
+		long bytes = loaded_bytes;
+		for (hosted_model model : loaded.values()) {
+			bytes += model.bytes() - model.bytes;
+		}
+		return bytes;
+	}
+
+	// Least recently used first, never the last model put or read. The models leave memory once written,
+	// see write(Map). Called with the lock held.
+	private Map<String, hosted_model> evict() {
+		Map<String, hosted_model> evicted = new LinkedHashMap<>();
+		Iterator<Map.Entry<String, hosted_model>> oldest = loaded.entrySet().iterator();
+		while (held() > max_bytes && loaded.size() > 1 && oldest.hasNext()) {
+			Map.Entry<String, hosted_model> entry = oldest.next();
+			if (writes_running.contains(entry.getKey())) {
+				continue;
+			}
+			oldest.remove();
+			unpublish(entry.getValue());
+			writing.put(entry.getKey(), entry.getValue());
+			writes_running.add(entry.getKey());
+			evicted.put(entry.getKey(), entry.getValue());
+		}
+		return evicted;
+	}
+
+	// Writes the models evict() picked, without the lock. A model read back meanwhile stays in memory.
+	private void write(Map<String, hosted_model> evicted) throws IOException {
+		IOException failure = null;
+		for (Map.Entry<String, hosted_model> entry : evicted.entrySet()) {
+			String stored_id = entry.getKey();
+			hosted_model model = entry.getValue();
+			IOException failed = null;
+			try {
+				write(stored_id, model.data);
+			}
+			catch (IOException e) {
+				failed = e;
+				failure = e;
+				logger.error("Could not write model {} to disk, it stays in memory", stored_id, e);
+			}
+			boolean written = false;
+			lock.lock();
+			try {
+				writes_running.remove(stored_id);
+				if (writing.get(stored_id) != model || loaded.get(stored_id) == model) {
+					// Removed, or read back, while it was written
+					writing.remove(stored_id, model);
+					Files.deleteIfExists(file_of(stored_id));
+				}
+				else if (failed == null) {
+					writing.remove(stored_id);
+					on_disk.add(stored_id);
+					evictions.inc();
+					written = true;
+					logger.info("Wrote model {} to disk, {} models in memory", stored_id, loaded.size());
+				}
+				else {
+					// Kept in memory over the bound
+					writing.remove(stored_id);
+					publish(stored_id, model);
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+			if (written) {
+				model.close();
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// Written to a temporary file first, so a level-site restarted in the same directory never reads half a model
+	private void write(String stored_id, level_order_site data) throws IOException {
+		Path file = file_of(stored_id);
+		Path temporary = Files.createTempFile(directory, "model", ".tmp");
+		try {
+			Files.write(temporary, binary_codec.encode(data));
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	// Model and key ids are chosen by the server-site, so they are not used as file names as they are
+	private Path file_of(String stored_id) {
+		return directory.resolve(HexFormat.of().formatHex(stored_id.getBytes(StandardCharsets.UTF_8)) + SUFFIX);
+	}
+
+	private static void close(List<hosted_model> models) {
+		for (hosted_model model : models) {
+			model.close();
+		}
+	}
+
+	public void close() throws IOException {
+		List<hosted_model> all;
+		lock.lock();
+		try {
+			all = new ArrayList<>(loaded.values());
+			for (hosted_model model : writing.values()) {
+				if (!all.contains(model)) {
+					all.add(model);
+				}
+			}
+			loaded.clear();
+			writing.clear();
+			keys.clear();
+			loaded_bytes = 0;
+			for (String stored_id : on_disk) {
+				Files.deleteIfExists(file_of(stored_id));
+			}
+			on_disk.clear();
+			current.clear();
+			previous.clear();
+		}
+		finally {
+			lock.unlock();
+		}
+		close(all);
+	}
+}
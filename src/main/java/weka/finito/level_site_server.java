@@ -1,36 +1,96 @@
 package weka.finito;
 
 import org.apache.commons.io.serialization.ValidatingObjectInputStream;
+import weka.finito.structs.NodeInfo;
 import weka.finito.structs.features;
+import weka.finito.structs.features_batch;
+import weka.finito.structs.level_chunk;
 import weka.finito.structs.level_order_site;
+import weka.finito.structs.model_epoch;
+import weka.finito.structs.resolved_index;
+import weka.finito.utils.admission;
+import weka.finito.utils.binary_codec;
+import weka.finito.utils.metered_socket;
+import weka.finito.utils.metrics;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
 
 import java.lang.System;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
-import static weka.finito.client.createServerSocket;
-import static weka.finito.client.createSocket;
 import static weka.finito.utils.shared.*;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+/*
+ * Every connection gets a virtual thread: a training push from the server-site, features from a client (level-site 0)
+ * or the link from the previous level-site (levels 1, 2, ..., d). Blocking on a socket holds no platform thread,
+ * so an idle link or a slow client only costs memory. Each request read from the link is evaluated on a virtual
+ * thread of its own, and the link goes straight back to reading. At most WORKERS requests are evaluated at once,
+ * and at level-site 0 QUEUE_SIZE more clients wait for their turn, see admission. Only the features of clients
+ * take a place in the queue, the training pushes, streamed chunks and model epochs of the server-site never wait on it.
+ * A level-site hosts the levels of as many models as it is trained with, one copy per client key set,
+ * see level_site_models, and every object it reads names the model and key set it is for.
+ * A model may be at level 0 here and at another level on the next level-site, so a connection is from a client
+ * if the model of its first object is at level 0 here, and a link otherwise.
+ * Level-site 0 tags every request with the version of the model it starts it with, and the next level-sites
+ * evaluate that version, so a model activated while requests go down the chain does not mix two trees.
+ */
 public class level_site_server implements Runnable {
     private static final Logger logger = LogManager.getLogger(level_site_server.class);
+    // Requests evaluated at the same time, the next ones wait. Clients of level-site 0 wait in a bounded queue,
+    // a request forwarded by the previous level-site was already let in there.
+    public static final int WORKERS = get_env_int("LEVEL_SITE_WORKERS",
+            Math.max(4, Runtime.getRuntime().availableProcessors()));
+    public static final int QUEUE_SIZE = get_env_int("LEVEL_SITE_QUEUE_SIZE", 64);
+    // A level streamed by the server-site is dropped after this long without a chunk
+    public static final int STREAM_IDLE_SECONDS = get_env_int("PROVISIONING_STREAM_IDLE_SECONDS", 600);
     protected int          serverPort;
-    protected ServerSocket serverSocket = null;
     protected boolean      isStopped    = false;
     protected Thread       runningThread = null;
-    protected level_order_site level_site_parameters = null;
-    private Socket next_level_site_socket;
-    private ObjectOutputStream next_level_site;
-    private Thread level_site_evaluation = null;
+    protected level_site_models models = null;
+    private ServerSocket server_socket;
+    private ExecutorService connections;
+    private final admission admitted = new admission("level_site_workers", WORKERS, QUEUE_SIZE);
+    // Held while training or opening a link, a monitor would pin the virtual thread to its carrier while connecting
+    private final ReentrantLock training = new ReentrantLock();
+    // Links to the next level-sites of the models hosted here, by host:port
+    private final Map<String, level_site_link> links = new ConcurrentHashMap<>();
+    // Level-site 0 tags every evaluation it starts, the tag follows the features down the chain
+    private final AtomicLong next_request_id = new AtomicLong();
+    // All-nodes mode, requests compared here that wait for the index from the previous level-site,
+    // by hosted model and request id
+    private final Map<String, CompletableFuture<Integer>> unresolved = new ConcurrentHashMap<>();
+    // Level-site 0 turns down all-nodes requests unless the model owner allows them, ALLOW_ALL_NODES
+    private volatile boolean allow_all_nodes = ALLOW_ALL_NODES;
+    // Levels the server-site is streaming, with the nodes received so far, by hosted model, version and level.
+    // A stream that broke off resumes from there. One given up on is dropped once a newer version of its model
+    // comes, or after PROVISIONING_STREAM_IDLE_SECONDS without a chunk.
+    private final Map<String, partial_level> streaming = new ConcurrentHashMap<>();
+    // Bytes per hop, a connection is only known to be from a client, the server-site or a level-site once read
+    private static final metered_socket.hop with_client = metered_socket.hop.of("client");
+    private static final metered_socket.hop with_server_site = metered_socket.hop.of("server_site");
+    private static final metered_socket.hop with_level_site = metered_socket.hop.of("level_site");
 
     public static void main(String[] args) {
         setup_tls();
+        metrics.start();
 
         int our_port = 0;
 
@@ -41,14 +101,14 @@ public class level_site_server implements Runnable {
             System.exit(1);
         }
         level_site_server server = new level_site_server(our_port);
-        new Thread(server).start();
+        Thread server_thread = new Thread(server);
+        server_thread.start();
         System.out.println("LEVEL SITE SERVER STARTED!");
-        while (true) {
-        	try {
-        	}
-        	catch (Exception e) {
-        		break;
-        	}
+        try {
+            server_thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
         server.stop();
     }
@@ -57,97 +117,448 @@ public class level_site_server implements Runnable {
         this.serverPort = port;
     }
 
+    public void set_allow_all_nodes(boolean allow_all_nodes) {
+        this.allow_all_nodes = allow_all_nodes;
+    }
+
+    // The nodes of a level received so far. The stream appending to it holds the lock, a second one waits
+    private static final class partial_level {
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile level_order_site building = null;
+        private volatile long touched = System.nanoTime();
+    }
+
+    // A connection and its object streams
+    private static final class connection {
+        private final Socket socket;
+        private metered_socket metered = null;
+        // Counted here, then added to the hop of the peer once the objects tell who it is
+        private final metered_socket.hop counted = new metered_socket.hop(new metrics.counter(), new metrics.counter());
+        private long accounted_received = 0;
+        private long accounted_sent = 0;
+        private ObjectOutputStream oos = null;
+        private ValidatingObjectInputStream ois = null;
+
+        private connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        private void open() throws IOException {
+            metered = new metered_socket(socket, counted);
+            oos = new ObjectOutputStream(metered.getOutputStream());
+            ois = get_ois(metered);
+        }
+
+        private void account(metered_socket.hop peer) {
+            long received = counted.received.get();
+            long sent = counted.sent.get();
+            peer.received.add(received - accounted_received);
+            peer.sent.add(sent - accounted_sent);
+            accounted_received = received;
+            accounted_sent = sent;
+        }
+    }
+
     public void run() {
         long start_time = System.nanoTime();
         synchronized(this) {
             this.runningThread = Thread.currentThread();
         }
-        serverSocket = createServerSocket(this.serverPort);
-        ValidatingObjectInputStream ois;
-        ObjectOutputStream oos;
-        Object o;
+        connections = virtual_threads("level-site-" + serverPort);
+        try {
+            models = level_site_models.from_environment(serverPort);
+            server_socket = new ServerSocket();
+            server_socket.setReuseAddress(true);
+            server_socket.bind(new InetSocketAddress(this.serverPort));
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Cannot open port " + this.serverPort, e);
+        }
+        long stop_time = System.nanoTime();
+        double run_time = (double) (stop_time - start_time)/1000000;
+        logger.info("Time to start up: {} ms", run_time);
 
         while(! isStopped()) {
-            Socket client_socket;
             try {
-            	// logger.info("[Main Level-Site Server] Ready to accept connections at: " + this.serverPort);
-                if (level_site_parameters == null) {
-                    // You need the training data...
-                    client_socket = this.serverSocket.accept();
-                    logger.info("Received data likely to start training...");
+                connection c = new connection(server_socket.accept());
+                try {
+                    connections.execute(() -> dispatch(c));
                 }
-                else {
-                    // Wait for any incoming clients
-                    if (level_site_parameters.get_level() == 0) {
-                        client_socket = this.serverSocket.accept();
-                        logger.info("Level 0 received data likely from a client...");
-                    }
-                    else {
-                        continue;
-                    }
+                catch (RejectedExecutionException e) {
+                    // stop() shut down the virtual threads
+                    close(c);
+                    break;
                 }
             }
             catch (IOException e) {
-                if(isStopped()) {
-                    logger.info("Server Stopped on port {}", this.serverPort);
-                    return;
+                if (isStopped()) {
+                    break;
                 }
-                throw new RuntimeException("Error accepting client connection", e);
+                logger.error("Level-site failed to accept a connection", e);
             }
+        }
+        logger.info("Server Stopped on port: {}", this.serverPort);
+    }
 
-            // Collect the object, and see what to do depending on the object.
-            try {
-                oos = new ObjectOutputStream(client_socket.getOutputStream());
-                ois = get_ois(client_socket);
-                o = ois.readObject();
-                level_site_evaluation_thread current_level_site_class;
-                if (o instanceof level_order_site) {
-                    // Traffic from Server, collect the level-site data
-                    this.level_site_parameters = (level_order_site) o;
-
-                    // Create an evaluation thread for level-site 1, 2, ..., d
-                    // These will need no interaction and will just be looping in the background
-                    // They should all be starting to wait for acceptance if they are
-                    // level-site 1, 2, ..., d
-                    logger.info("Received training data, creating evaluation thread...");
-                    if (level_site_parameters.get_level() != 0) {
-                        current_level_site_class = new level_site_evaluation_thread(
-                                level_site_parameters, serverSocket);
-                        level_site_evaluation = new Thread(current_level_site_class);
-                        level_site_evaluation.start();
-                    }
-                    else {
-                        // level-site 0 has a connection to level-site 1, I do want to wait JUST a little bit
-                        // so that level-site 1 is ready!
-                        next_level_site_socket = createSocket(level_site_parameters.get_next_level_site(),
-                                level_site_parameters.get_next_level_site_port());
-                        next_level_site_socket.setKeepAlive(true);
-                        next_level_site = new ObjectOutputStream(next_level_site_socket.getOutputStream());
-                    }
-                    oos.writeBoolean(true);
-                    closeConnection(oos, ois, client_socket);
+    // Runs on the virtual thread of the connection, reads the first object and see what to do depending on it.
+    // A client connection takes a place in the queue once its features are read, and keeps it until it is done.
+    private void dispatch(connection c) {
+        Object o;
+        try {
+            c.open();
+            o = read_object(c.ois);
+        }
+        catch (EOFException e) {
+            close(c);
+            return;
+        }
+        catch (ClassNotFoundException | IOException e) {
+            // stop() closes the connections still open
+            if (!isStopped()) {
+                logger.error("Yikes! A bad connection from {}", c.socket.getInetAddress().getHostAddress(), e);
+            }
+            close(c);
+            return;
+        }
+
+        try {
+            if (o instanceof level_order_site && ((level_order_site) o).get_streamed_nodes() > 0) {
+                // Traffic from Server, the nodes follow in chunks
+                c.oos.writeBoolean(train_streamed(c, (level_order_site) o));
+                c.oos.flush();
+                c.account(with_server_site);
+                close(c);
+                return;
+            }
+            if (o instanceof level_order_site) {
+                // Traffic from Server, collect the level-site data
+                train((level_order_site) o);
+                c.oos.writeBoolean(true);
+                c.oos.flush();
+                c.account(with_server_site);
+                close(c);
+                return;
+            }
+            if (o instanceof model_epoch) {
+                // The server-site staged a new version on every level-site, switch to it
+                model_epoch epoch = (model_epoch) o;
+                boolean activated = models.activate(epoch.get_hosted_id(), epoch.get_version());
+                if (!activated) {
+                    logger.error("Level-site on port {} was asked to switch model {} to version {}, " +
+                            "which it was not trained with", serverPort, epoch.get_hosted_id(), epoch.get_version());
                 }
-                else if (o instanceof features) {
-                    // This should really only occur with level-site 0
-                    current_level_site_class =
-                            new level_site_evaluation_thread(client_socket, this.level_site_parameters,
-                                    (features) o, next_level_site);
-                    new Thread(current_level_site_class).start();
+                c.oos.writeBoolean(activated);
+                c.oos.flush();
+                c.account(with_server_site);
+                close(c);
+                return;
+            }
+            level_site_models.hosted_model model = models.get(hosted_id(o));
+            if (model == null) {
+                logger.error("Level-site on port {} got {} of model {}, which it was not trained with",
+                        serverPort, o.getClass().getName(), hosted_id(o));
+                close(c);
+            }
+            else if (model.data.get_level() == 0) {
+                admission.ticket queued = admitted.admit();
+                try {
+                    evaluate_client_request(c, o, model);
                 }
-                else {
-                    logger.error("The level site received the wrong object: {}", o.getClass().getName());
-                    closeConnection(oos, ois, client_socket);
+                finally {
+                    queued.close();
                 }
+                c.account(with_client);
             }
-           catch (ClassNotFoundException | IOException e) {
-               logger.error("Yikes! A bad connection from {}", client_socket.getInetAddress().getHostAddress());
-                logger.error(e.getStackTrace());
+            else {
+                follow_link(c, o);
             }
         }
-        logger.info("Server Stopped on port: {}", this.serverPort); ;
-        long stop_time = System.nanoTime();
-        double run_time = (double) (stop_time - start_time)/1000000;
-        logger.info(String.format("Time to start up: %f\n", run_time));
+        catch (ClassNotFoundException | IOException e) {
+            logger.error("Yikes! A bad connection from {}", c.socket.getInetAddress().getHostAddress(), e);
+            close(c);
+        }
+    }
+
+    // The copy of the model an object is for, the default model if it does not say
+    private static String hosted_id(Object o) {
+        if (o instanceof features) {
+            return ((features) o).get_hosted_id();
+        }
+        if (o instanceof features_batch) {
+            return ((features_batch) o).get_hosted_id();
+        }
+        if (o instanceof resolved_index && ((resolved_index) o).get_model_id() != null) {
+            resolved_index resolution = (resolved_index) o;
+            return level_order_site.hosted_id(resolution.get_model_id(), resolution.get_key_id());
+        }
+        return level_order_site.DEFAULT_MODEL;
+    }
+
+    // The version of the model level-site 0 started the request with
+    private static long version(Object o) {
+        if (o instanceof features) {
+            return ((features) o).get_version();
+        }
+        if (o instanceof features_batch) {
+            return ((features_batch) o).get_version();
+        }
+        return 0;
+    }
+
+    private static String unresolved_key(String hosted_id, long request_id) {
+        return hosted_id + "/" + request_id;
+    }
+
+    private void train(level_order_site level_site_data) throws IOException {
+        String hosted_id = level_site_data.get_hosted_id();
+        drop_streams(level_site_data);
+        training.lock();
+        try {
+            // The same version trained again, the previous level-site won't resolve what it sent before for this copy.
+            // A new version is only staged, the requests of the current one go on.
+            if (models.put(level_site_data)) {
+                String prefix = hosted_id + "/";
+                for (Map.Entry<String, CompletableFuture<Integer>> waiting : unresolved.entrySet()) {
+                    if (waiting.getKey().startsWith(prefix)
+                            && unresolved.remove(waiting.getKey(), waiting.getValue())) {
+                        waiting.getValue().complete(-1);
+                    }
+                }
+            }
+
+            // Every level-site except d has a persistent connection to the next level-site.
+            // The server-site trains level-site d first and goes up, so the next level-site is already listening.
+            next_link(level_site_data);
+        }
+        finally {
+            training.unlock();
+        }
+        logger.info("Received training data for level {} of model {}, version {}", level_site_data.get_level(),
+                hosted_id, level_site_data.get_version());
+    }
+
+    /*
+     * Tells the server-site how many nodes of the level it already has, then appends the chunks that follow
+     * one at a time, so only a chunk is ever decoded at once. False on a chunk that is not the next one or is
+     * damaged, the server-site connects again and resumes from the last good chunk.
+     */
+    private boolean train_streamed(connection c, level_order_site header) throws IOException, ClassNotFoundException {
+        String key = header.get_hosted_id() + "@" + header.get_version() + "/" + header.get_level();
+        drop_streams(header);
+        partial_level partial = streaming.computeIfAbsent(key, k -> new partial_level());
+        partial.lock.lock();
+        try {
+            return append_chunks(c, header, key, partial);
+        }
+        finally {
+            partial.touched = System.nanoTime();
+            partial.lock.unlock();
+        }
+    }
+
+    private boolean append_chunks(connection c, level_order_site header, String key, partial_level partial)
+            throws IOException, ClassNotFoundException {
+        level_order_site building = partial.building;
+        if (building == null || building.get_streamed_nodes() != header.get_streamed_nodes()) {
+            building = header;
+            partial.building = building;
+        }
+        List<NodeInfo> nodes = building.get_node_data();
+        c.oos.writeInt(nodes.size());
+        c.oos.flush();
+        while (nodes.size() < building.get_streamed_nodes()) {
+            Object o = read_object(c.ois);
+            if (!(o instanceof level_chunk)) {
+                throw new StreamCorruptedException("Expected the nodes of level " + header.get_level() +
+                        ", got " + o.getClass().getName());
+            }
+            level_chunk chunk = (level_chunk) o;
+            if (chunk.get_offset() != nodes.size() || !chunk.is_intact()) {
+                logger.error("Level-site on port {} got a bad chunk at node {} of model {}, {} nodes kept",
+                        serverPort, chunk.get_offset(), header.get_hosted_id(), nodes.size());
+                return false;
+            }
+            level_order_site decoded = binary_codec.decode_nodes(ByteBuffer.wrap(chunk.get_nodes()),
+                    building.paillier_public_key, building.dgk_public_key);
+            for (NodeInfo node : decoded.get_node_data()) {
+                building.append_data(node);
+            }
+            partial.touched = System.nanoTime();
+        }
+        if (nodes.size() != building.get_streamed_nodes()) {
+            streaming.remove(key, partial);
+            throw new StreamCorruptedException("Got " + nodes.size() + " nodes of level " + header.get_level() +
+                    ", expected " + building.get_streamed_nodes());
+        }
+        streaming.remove(key, partial);
+        building.set_streamed_nodes(0);
+        train(building);
+        return true;
+    }
+
+    // Drops the levels of older versions of the model, and those no chunk came for in a while.
+    // A stream still appending to a dropped level finishes with its own copy.
+    private void drop_streams(level_order_site header) {
+        long idle = TimeUnit.SECONDS.toNanos(STREAM_IDLE_SECONDS);
+        for (Map.Entry<String, partial_level> entry : streaming.entrySet()) {
+            partial_level partial = entry.getValue();
+            level_order_site building = partial.building;
+            boolean superseded = building != null
+                    && building.get_hosted_id().equals(header.get_hosted_id())
+                    && building.get_version() < header.get_version();
+            boolean stale = !partial.lock.isLocked() && System.nanoTime() - partial.touched > idle;
+            if ((superseded || stale) && streaming.remove(entry.getKey(), partial)) {
+                logger.info("Level-site on port {} dropped the nodes received of {}", serverPort, entry.getKey());
+            }
+        }
+    }
+
+    // The link to the next level-site of this level, shared with the other models going there, null at level d
+    private level_site_link next_link(level_order_site level_site_data) throws IOException {
+        if (level_site_data.get_next_level_site() == null) {
+            return null;
+        }
+        String next = level_site_data.get_next_level_site() + ":" + level_site_data.get_next_level_site_port();
+        level_site_link link = links.get(next);
+        if (link != null && !link.is_broken()) {
+            return link;
+        }
+        training.lock();
+        try {
+            link = links.get(next);
+            if (link == null || link.is_broken()) {
+                if (link != null) {
+                    link.close();
+                }
+                link = new level_site_link(level_site_data.get_next_level_site(),
+                        level_site_data.get_next_level_site_port(), with_level_site);
+                links.put(next, link);
+            }
+            return link;
+        }
+        finally {
+            training.unlock();
+        }
+    }
+
+    // Level-site 0, a client sent its features and waits on this connection for the comparisons
+    private void evaluate_client_request(connection c, Object o, level_site_models.hosted_model model)
+            throws IOException {
+        level_site_evaluation_thread evaluation;
+        level_site_link next_level_site = next_link(model.data);
+        if (o instanceof features && ((features) o).is_all_nodes() && !allow_all_nodes) {
+            logger.error("Level-site on port {} turned down an all-nodes request, ALLOW_ALL_NODES is not set",
+                    serverPort);
+            close(c);
+            return;
+        }
+        else if (o instanceof features && ((features) o).is_all_nodes()) {
+            features record = (features) o;
+            record.set_request_id(next_request_id.incrementAndGet());
+            record.set_version(model.data.get_version());
+            evaluation = new level_site_evaluation_thread(c.metered, model.channels, model.data,
+                    record, next_level_site, model.pool,
+                    CompletableFuture.completedFuture(record.get_current_index()));
+        }
+        else if (o instanceof features) {
+            ((features) o).set_request_id(next_request_id.incrementAndGet());
+            ((features) o).set_version(model.data.get_version());
+            evaluation = new level_site_evaluation_thread(c.metered, model.data,
+                    (features) o, next_level_site, model.pool);
+        }
+        else if (o instanceof features_batch) {
+            // A client sending several records at once
+            ((features_batch) o).set_request_id(next_request_id.incrementAndGet());
+            ((features_batch) o).set_version(model.data.get_version());
+            evaluation = new level_site_evaluation_thread(c.metered, model.channels, model.data,
+                    (features_batch) o, next_level_site, model.pool);
+        }
+        else {
+            logger.error("The level site received the wrong object: {}", o.getClass().getName());
+            close(c);
+            return;
+        }
+        // Already on the virtual thread of the connection, the evaluation closes it when done
+        admitted.run(evaluation);
+    }
+
+    // Levels 1, 2, ..., d, the objects come one after the other on the link of the previous level-site
+    private void follow_link(connection c, Object o) {
+        try {
+            while (true) {
+                c.account(with_level_site);
+                evaluate_forwarded_request(o);
+                o = read_object(c.ois);
+            }
+        }
+        catch (EOFException e) {
+            // The previous level-site closed the link, it was trained again or stopped
+        }
+        catch (ClassNotFoundException | IOException | RejectedExecutionException e) {
+            if (!isStopped()) {
+                logger.error("Yikes! A bad link from {}", c.socket.getInetAddress().getHostAddress(), e);
+            }
+        }
+        finally {
+            close(c);
+        }
+    }
+
+    // The evaluation calls back the client on a pooled connection, on a virtual thread of its own
+    private void evaluate_forwarded_request(Object o) throws IOException {
+        String hosted_id = hosted_id(o);
+        if (o instanceof resolved_index) {
+            // Nothing to evaluate, the request waiting for it answers the client, not on the thread reading the link
+            resolved_index resolution = (resolved_index) o;
+            CompletableFuture<Integer> waiting = unresolved.remove(
+                    unresolved_key(hosted_id, resolution.get_request_id()));
+            if (waiting == null) {
+                logger.error("Level-site on port {} got the index of request {} of model {}, " +
+                        "which it is not waiting for", serverPort, resolution.get_request_id(), hosted_id);
+                return;
+            }
+            connections.execute(() -> waiting.complete(resolution.get_index()));
+            return;
+        }
+
+        level_site_models.hosted_model model = models.get(hosted_id, version(o));
+        if (model == null) {
+            logger.error("Level-site on port {} got {} of model {} version {}, which it does not host",
+                    serverPort, o.getClass().getName(), hosted_id, version(o));
+            return;
+        }
+        level_site_link next_level_site = next_link(model.data);
+        level_site_evaluation_thread evaluation;
+        if (o instanceof features && ((features) o).is_all_nodes()) {
+            // Waiting before the next object is read, the index comes after the features on the link
+            CompletableFuture<Integer> resolved = new CompletableFuture<>();
+            unresolved.put(unresolved_key(hosted_id, ((features) o).get_request_id()), resolved);
+            evaluation = new level_site_evaluation_thread(model.channels, model.data,
+                    (features) o, next_level_site, model.pool, resolved);
+        }
+        else if (o instanceof features) {
+            evaluation = new level_site_evaluation_thread(model.channels, model.data,
+                    (features) o, next_level_site, model.pool);
+        }
+        else if (o instanceof features_batch) {
+            evaluation = new level_site_evaluation_thread(model.channels, model.data,
+                    (features_batch) o, next_level_site, model.pool);
+        }
+        else {
+            logger.error("Level-site {} of model {} received an object that should be features: {}",
+                    model.data.get_level(), hosted_id, o.getClass().getName());
+            return;
+        }
+        connections.execute(() -> admitted.run(evaluation));
+    }
+
+    private void close(connection c) {
+        try {
+            closeConnection(c.oos, c.ois, c.socket);
+        }
+        catch (IOException e) {
+            logger.info("IO Exception in closing Level-Site Connection", e);
+        }
     }
 
     private synchronized boolean isStopped() {
@@ -157,14 +568,17 @@ public class level_site_server implements Runnable {
     public synchronized void stop() {
         this.isStopped = true;
         try {
-            this.serverSocket.close();
-            if (level_site_evaluation != null) {
-                if (level_site_evaluation.isAlive()) {
-                    this.level_site_evaluation.interrupt();
-                }
+            if (models != null) {
+                models.close();
+            }
+            // Wakes up the accepting thread
+            closeConnection(server_socket);
+            // Interrupting a virtual thread blocked on a socket closes the socket
+            if (connections != null) {
+                connections.shutdownNow();
             }
-            if (next_level_site_socket != null) {
-                closeConnection(next_level_site_socket);
+            for (level_site_link link : links.values()) {
+                link.close();
             }
         }
         catch (IOException e) {
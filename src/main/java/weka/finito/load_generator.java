@@ -0,0 +1,309 @@
+package weka.finito;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import weka.finito.utils.latency_recorder;
+import weka.finito.utils.metrics;
+
+import static weka.finito.utils.shared.setup_tls;
+
+/*
+ * Runs N clients at once against a local chain of level-sites, or against the server-site alone,
+ * for a number of requests or a number of seconds, and reports throughput and p50/p95/p99 latencies.
+ * The chain is started in this process from config.properties, as in PrivacyTest, and trained once
+ * with the keys of a set-up client. Every load client copies those keys and the label encoder into a
+ * directory of its own, listens for level-sites on its own port, and classifies the VALUES file over and over.
+ * <p>
+ * Latencies: end_to_end is a whole client run, with the feature encryption, classification is from the first
+ * features sent to the leaf, level_i is the time the client spent with level-site i (level-sites mode only).
+ * <p>
+ * sh gradlew run -PchooseRole=weka.finito.load_generator --args='--training data/iris.model
+ * --values data/iris.values --clients 8 --duration 60 --output load.csv'
+ */
+public final class load_generator {
+	private static final Logger logger = LogManager.getLogger(load_generator.class);
+	private final String training_data;
+	private final String values_file;
+	private final int clients;
+	// Stops after this many requests in total, or after duration_seconds, whichever is set
+	private final int requests;
+	private final int duration_seconds;
+	private final boolean use_server_site;
+	private final boolean all_nodes;
+	private final int callback_port;
+	private String [] level_site_ips;
+	private int [] level_site_ports;
+	private int key_size;
+	private int precision;
+	private String server_ip;
+	private int server_port;
+	private final latency_recorder latencies = new latency_recorder();
+	private long elapsed_nanos = 0;
+
+	public static void main(String[] args) {
+		setup_tls();
+		metrics.start();
+
+		String training_data = null;
+		String values_file = null;
+		String output = null;
+		int clients = 4;
+		int requests = 0;
+		int duration_seconds = 0;
+		int callback_port = -1;
+		boolean use_server_site = false;
+		boolean all_nodes = false;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+					case "--training" -> training_data = args[++i];
+					case "--values" -> values_file = args[++i];
+					case "--output" -> output = args[++i];
+					case "--clients" -> clients = Integer.parseInt(args[++i]);
+					case "--requests" -> requests = Integer.parseInt(args[++i]);
+					case "--duration" -> duration_seconds = Integer.parseInt(args[++i]);
+					case "--callback-port" -> callback_port = Integer.parseInt(args[++i]);
+					case "--server" -> use_server_site = true;
+					case "--all-nodes" -> all_nodes = true;
+					default -> throw new IllegalArgumentException("Unknown argument " + args[i]);
+				}
+			}
+		}
+		catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+			logger.fatal("Usage: --training <arff/model> --values <VALUES> [--clients N] " +
+					"[--requests N | --duration seconds] [--server] [--all-nodes] [--callback-port port] " +
+					"[--output results.csv|results.json]", e);
+			System.exit(1);
+		}
+		if (training_data == null || values_file == null || clients < 1) {
+			logger.fatal("A training data set, a VALUES file and at least one client are needed");
+			System.exit(1);
+		}
+		if (requests <= 0 && duration_seconds <= 0) {
+			requests = 10 * clients;
+		}
+
+		load_generator load = new load_generator(training_data, values_file, clients, requests, duration_seconds,
+				use_server_site, all_nodes, callback_port);
+		try {
+			load.read_config("config.properties");
+			load.run();
+			load.report(output);
+		}
+		catch (Exception e) {
+			logger.fatal("Load test failed", e);
+			System.exit(1);
+		}
+		finally {
+			metrics.stop();
+		}
+	}
+
+	public load_generator(String training_data, String values_file, int clients, int requests,
+						  int duration_seconds, boolean use_server_site, boolean all_nodes, int callback_port) {
+		this.training_data = training_data;
+		this.values_file = values_file;
+		this.clients = clients;
+		this.requests = requests;
+		this.duration_seconds = duration_seconds;
+		this.use_server_site = use_server_site;
+		this.all_nodes = all_nodes;
+		this.callback_port = callback_port;
+	}
+
+	// Same keys as PrivacyTest reads
+	public void read_config(String path) throws IOException {
+		Properties config = new Properties();
+		try (FileReader in = new FileReader(path)) {
+			config.load(in);
+		}
+		String [] ports = config.getProperty("level-site-ports").replaceAll("[^0-9,]", "").split(",");
+		level_site_ips = new String[ports.length];
+		level_site_ports = new int[ports.length];
+		for (int i = 0; i < ports.length; i++) {
+			level_site_ips[i] = "127.0.0.1";
+			level_site_ports[i] = Integer.parseInt(ports[i]);
+		}
+		key_size = Integer.parseInt(config.getProperty("key_size"));
+		precision = Integer.parseInt(config.getProperty("precision"));
+		server_ip = config.getProperty("server-ip");
+		server_port = Integer.parseInt(config.getProperty("server-port"));
+	}
+
+	public latency_recorder get_latencies() {
+		return latencies;
+	}
+
+	public void run() throws Exception {
+		Path state = Files.createTempDirectory("ppdt-load");
+		level_site_server [] level_sites = new level_site_server[0];
+		server cloud;
+		if (use_server_site) {
+			cloud = new server(training_data, precision, server_port);
+			// The set-up client, then every load request
+			cloud.set_evaluations(Integer.MAX_VALUE);
+		}
+		else {
+			level_sites = new level_site_server[level_site_ports.length];
+			for (int i = 0; i < level_sites.length; i++) {
+				level_sites[i] = new level_site_server(level_site_ports[i]);
+				// --all-nodes is the opt-in of the model owner too, every site runs in this process
+				level_sites[i].set_allow_all_nodes(all_nodes);
+				new Thread(level_sites[i]).start();
+			}
+			cloud = new server(training_data, level_site_ips, level_site_ports, precision, server_port);
+			cloud.set_allow_all_nodes(all_nodes);
+		}
+		Thread server_thread = new Thread(cloud);
+		server_thread.start();
+
+		List<client> load_clients = new ArrayList<>();
+		try {
+			// Makes the keys, trains the chain and checks it answers, before anything is timed
+			Path setup_state = Files.createDirectories(state.resolve("setup"));
+			client setup = new_client(setup_state, -1);
+			try {
+				setup.run();
+			}
+			finally {
+				setup.close();
+			}
+			logger.info("Set-up classification is {}, starting {} clients", setup.getClassification(), clients);
+			if (!use_server_site) {
+				server_thread.join();
+			}
+
+			// The callback ports follow the server-site port, which the set-up client listened on
+			int first_callback_port = callback_port == -1 ? server_port + 1 : callback_port;
+			for (int i = 0; i < clients; i++) {
+				Path client_state = Files.createDirectories(state.resolve("client-" + i));
+				for (String file : new String[] { "client.keystore", "label_encoder.bin" }) {
+					Files.copy(setup_state.resolve(file), client_state.resolve(file),
+							StandardCopyOption.REPLACE_EXISTING);
+				}
+				load_clients.add(new_client(client_state, first_callback_port + i));
+			}
+			apply_load(load_clients);
+		}
+		finally {
+			for (client c : load_clients) {
+				c.close();
+			}
+			cloud.stop();
+			for (level_site_server level_site : level_sites) {
+				level_site.stop();
+			}
+			server_thread.join();
+			delete(state);
+		}
+	}
+
+	private client new_client(Path state_directory, int client_callback_port) {
+		client c;
+		if (use_server_site) {
+			c = new client(key_size, values_file, precision, server_ip, server_port, "127.0.0.1");
+		}
+		else {
+			c = new client(key_size, values_file, level_site_ips, level_site_ports, precision,
+					server_ip, server_port, "127.0.0.1");
+			c.set_all_nodes(all_nodes);
+		}
+		c.set_state_directory(state_directory);
+		c.set_callback_port(client_callback_port);
+		return c;
+	}
+
+	// Each client classifies on its own thread, one request after the other, until the requests or time run out
+	private void apply_load(List<client> load_clients) throws InterruptedException {
+		AtomicInteger issued = new AtomicInteger();
+		long start_time = System.nanoTime();
+		long deadline = start_time + TimeUnit.SECONDS.toNanos(duration_seconds);
+		ExecutorService workers = Executors.newFixedThreadPool(load_clients.size());
+		for (client c : load_clients) {
+			workers.execute(() -> {
+				while (duration_seconds > 0 ? System.nanoTime() < deadline : issued.getAndIncrement() < requests) {
+					classify(c);
+				}
+			});
+		}
+		workers.shutdown();
+		if (!workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+			workers.shutdownNow();
+		}
+		elapsed_nanos = System.nanoTime() - start_time;
+	}
+
+	private void classify(client c) {
+		long start_time = System.nanoTime();
+		try {
+			c.run();
+		}
+		catch (RuntimeException e) {
+			latencies.error();
+			logger.error("A load request failed", e);
+			return;
+		}
+		if (c.getClassification() == null) {
+			latencies.error();
+			return;
+		}
+		latencies.record("end_to_end", System.nanoTime() - start_time);
+		latencies.record("classification", c.get_classification_nanos());
+		List<Long> levels = c.get_level_nanos();
+		for (int level = 0; level < levels.size(); level++) {
+			latencies.record("level_" + level, levels.get(level));
+		}
+	}
+
+	// Logs the summary, and writes it as JSON if the output ends with .json, otherwise as CSV
+	public void report(String output) throws IOException {
+		List<latency_recorder.summary> summaries = latencies.summarize(elapsed_nanos);
+		String csv = latency_recorder.to_csv(summaries);
+		logger.info("{} clients, {} requests in {} s, {} errors\n{}", clients, latencies.count("end_to_end"),
+				(double) elapsed_nanos / 1000000000L, latencies.get_errors(), csv);
+		if (output == null) {
+			return;
+		}
+		String text = csv;
+		if (output.endsWith(".json")) {
+			Map<String, Object> settings = new LinkedHashMap<>();
+			settings.put("mode", use_server_site ? "server_site" : all_nodes ? "all_nodes" : "level_sites");
+			settings.put("training_data", training_data);
+			settings.put("values", values_file);
+			settings.put("clients", clients);
+			settings.put("key_size", key_size);
+			settings.put("elapsed_seconds", (double) elapsed_nanos / 1000000000L);
+			text = latency_recorder.to_json(settings, latencies.get_errors(), summaries);
+		}
+		Files.writeString(Paths.get(output), text, StandardCharsets.UTF_8);
+		logger.info("Wrote the load test results to {}", output);
+	}
+
+	private static void delete(Path directory) {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+		catch (IOException e) {
+			logger.info("Unable to delete {}", directory, e);
+		}
+	}
+}
@@ -12,12 +12,16 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
 import java.lang.System;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.io.serialization.ValidatingObjectInputStream;
 import security.dgk.DGKPublicKey;
 import security.misc.HomomorphicException;
-import security.paillier.PaillierCipher;
 import security.socialistmillionaire.alice_joye;
 import security.paillier.PaillierPublicKey;
 import weka.classifiers.trees.j48.BinC45ModelSelection;
@@ -27,8 +31,12 @@ import weka.core.Instances;
 
 import weka.core.SerializationHelper;
 import weka.finito.structs.features;
+import weka.finito.structs.features_batch;
 import weka.finito.structs.level_order_site;
 import weka.finito.structs.NodeInfo;
+import weka.finito.structs.attribute_manifest;
+import weka.finito.structs.level_chunk;
+import weka.finito.structs.model_epoch;
 
 import static weka.finito.client.createServerSocket;
 import static weka.finito.client.createSocket;
@@ -37,25 +45,63 @@ import static weka.finito.utils.shared.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import weka.finito.utils.LabelEncoder;
+import weka.finito.utils.admission;
+import weka.finito.utils.binary_codec;
+import weka.finito.utils.metered_socket;
+import weka.finito.utils.metrics;
+import weka.finito.utils.model_cache;
+import weka.finito.utils.randomness_pool;
+import weka.finito.utils.shared;
 
 public final class server implements Runnable {
 	private static final Logger logger = LogManager.getLogger(server.class);
 	private static final String os = System.getProperty("os.name").toLowerCase();
+	// Clients evaluated at the same time in server-site mode, the next ones wait in a bounded queue
+	public static final int WORKERS = shared.get_env_int("SERVER_SITE_WORKERS",
+			Math.max(4, Runtime.getRuntime().availableProcessors()));
+	public static final int QUEUE_SIZE = shared.get_env_int("SERVER_SITE_QUEUE_SIZE", 64);
+	// How long evaluations already accepted may take to finish once the server-site stops
+	public static final int DRAIN_SECONDS = shared.get_env_int("SERVER_SITE_DRAIN_SECONDS", 60);
+	// How often the training file is checked for a new model while the server-site runs, 0 to never swap the model
+	public static final int MODEL_WATCH_SECONDS = shared.get_env_int("MODEL_WATCH_SECONDS", 0);
+	// Levels with more nodes are streamed this many nodes at a time, 0 to always send a level as one object
+	public static final int PROVISIONING_CHUNK_NODES = shared.get_env_int("PROVISIONING_CHUNK_NODES", 256);
+	// Connections to a level-site a streamed level may take, each one resuming where the last one broke off
+	public static final int PROVISIONING_ATTEMPTS = shared.get_env_int("PROVISIONING_ATTEMPTS", 3);
+	private static final metrics.counter swaps = metrics.counter("ppdt_server_site_model_swaps_total",
+			"Models trained again and switched to while the server-site runs");
+	private static final metrics.gauge in_flight = metrics.gauge("ppdt_evaluations_in_flight",
+			"Requests being evaluated right now");
+	private static final metrics.histogram evaluation_seconds = metrics.histogram(
+			"ppdt_server_site_evaluation_seconds", "Time to evaluate every record a client sent to the server-site");
 	private final String training_data;
 	private final String [] level_site_ips;
 	private int [] level_site_ports = null;
 	private int port = -1;
-	private PaillierPublicKey paillier_public;
-	private DGKPublicKey dgk_public;
 	private final int precision;
 	private ClassifierTree ppdt = null;
-	private final List<level_order_site> all_level_sites = new ArrayList<>();
+	// The tree walked once, replaced as a whole when the model is trained again
+	private volatile walked_tree tree = null;
+	// Held while a client is set up or the model switched, so a client never trains level-sites with the old version
+	private final ReentrantLock swapping = new ReentrantLock();
+	// Held for a whole swap, the copies of one swap are pushed before the next swap trains the model
+	private final ReentrantLock refreshing = new ReentrantLock();
+	// The model encrypted under the keys of each client, made the first time the keys are seen
+	private final key_sets copies = key_sets.from_environment(this::encrypt_model);
+	// Features without a key id are from a client set up before key sets, it is the first key set
+	private volatile String first_key_id = null;
 	private final int server_port;
 	private int evaluations = 1;
-	private final LabelEncoder label_encoder = new LabelEncoder();
+	private volatile boolean stopped = false;
+	private volatile ServerSocket server_site_socket = null;
+	// Level-sites host several models, the client names this one in its features. The training file name by default
+	private String model_id = null;
+	// Tells the clients they may use the all-nodes mode, which shows them the shape of every level
+	private boolean allow_all_nodes = ALLOW_ALL_NODES;
 
     public static void main(String[] args) {
 		setup_tls();
+		metrics.start();
 
         int port = 0;
 		int precision = 0;
@@ -84,6 +130,8 @@ public final class server implements Runnable {
 			System.exit(1);
 		}
         
+		String model_id = System.getenv("MODEL_ID");
+
         // Pass data to level sites.
         String level_domains_str = System.getenv("LEVEL_SITE_DOMAINS");
         if(level_domains_str == null || level_domains_str.isEmpty()) {
@@ -95,6 +143,9 @@ public final class server implements Runnable {
 		// Create and run the server.
         logger.info("Server Initialized and started running");
 		server server = new server(training_data, level_domains, port, precision, port);
+		if (model_id != null && !model_id.isEmpty()) {
+			server.set_model_id(model_id);
+		}
 		server.run();
 	}
 
@@ -127,91 +178,278 @@ public final class server implements Runnable {
 		this.server_port = server_port;
 	}
 
-	private void run_server_site(int port) throws IOException, HomomorphicException, ClassNotFoundException {
+	/*
+	 * The level-site data is read-only once trained, so each client gets its own virtual thread and alice_joye.
+	 * A client either sets up with its keys, which a client new to the server-site can do at any time,
+	 * or sends features to evaluate.
+	 * A client waiting on its socket holds no platform thread. At most WORKERS clients are evaluated at once and
+	 * QUEUE_SIZE more wait for their turn, when both are full the accepting thread waits, see admission.
+	 */
+	private void run_server_site(ServerSocket serverSocket) throws IOException {
 		int count = 0;
-		try (ServerSocket serverSocket = createServerSocket(port)) {
+		ExecutorService workers = virtual_threads("server-site");
+		admission admitted = new admission("server_site_workers", WORKERS, QUEUE_SIZE);
+		try (serverSocket) {
+			server_site_socket = serverSocket;
 			logger.info("Server will be waiting for direct evaluation from client");
-			while (count < evaluations) {
-				try (Socket client_site = serverSocket.accept()) {
-					evaluate_with_client_directly(client_site);
+			while (count < evaluations && !stopped) {
+				Socket client_site;
+				try {
+					client_site = serverSocket.accept();
 				}
+				catch (IOException e) {
+					if (stopped) {
+						break;
+					}
+					throw e;
+				}
+				admission.ticket queued = admitted.admit();
+				workers.execute(() -> {
+					try (queued) {
+						admitted.run(() -> evaluate(client_site));
+					}
+				});
 				++count;
 			}
 		}
+		finally {
+			server_site_socket = null;
+			drain(workers);
+		}
+	}
+
+	private void evaluate(Socket client_site) {
+		in_flight.inc();
+		try (client_site) {
+			serve(new metered_socket(client_site, "client"));
+		}
+		catch (Exception e) {
+			logger.error("Evaluation with client {} failed", client_site.getInetAddress().getHostAddress(), e);
+		}
+		finally {
+			in_flight.dec();
+		}
+	}
+
+	// Lets the evaluations already accepted finish
+	private static void drain(ExecutorService workers) {
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(DRAIN_SECONDS, TimeUnit.SECONDS)) {
+				logger.warn("{} evaluations did not finish in {} seconds, stopping them",
+						in_flight.get(), DRAIN_SECONDS);
+				workers.shutdownNow();
+			}
+		}
+		catch (InterruptedException e) {
+			workers.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void set_model_id(String model_id) {
+		this.model_id = model_id;
+	}
+
+	public String get_model_id() {
+		if (model_id != null) {
+			return model_id;
+		}
+		return new File(training_data).getName().split("\\.")[0];
+	}
+
+	// The level-sites must allow it too, see level_site_server.set_allow_all_nodes
+	public void set_allow_all_nodes(boolean allow_all_nodes) {
+		this.allow_all_nodes = allow_all_nodes;
+	}
+
+	// Clients the server-site evaluates before run() returns, 1 by default locally
+	public void set_evaluations(int evaluations) {
+		this.evaluations = evaluations;
+	}
+
+	// Stops accepting clients, run() returns once the clients being evaluated are done
+	public void stop() {
+		stopped = true;
+		try {
+			closeConnection(server_site_socket);
+		}
+		catch (IOException e) {
+			logger.info("IO Exception in closing the server-site socket", e);
+		}
 	}
 
 	// This is essentially the same as running all level-sites on one server, But
 	// you will lose timing attack protection, see the paper
-	private void evaluate_with_client_directly(Socket client_site)
-			throws IOException, HomomorphicException, ClassNotFoundException {
-
-		Object client_input;
-		features input = null;
-		alice_joye Niu = new alice_joye();
-		Niu.set_socket(client_site);
-		Niu.setPaillierPublicKey(paillier_public);
-		Niu.setDGKPublicKey(dgk_public);
+	private void evaluate_with_client_directly(alice_joye Niu, Object client_input) throws Exception {
 
-		// Get encrypted features
-		ValidatingObjectInputStream ois = get_ois(client_site);
-		client_input = ois.readObject();
+		// Get encrypted features, a batch is evaluated one record after the other on this connection
+		List<features> inputs = new ArrayList<>();
 		if (client_input instanceof features) {
-			input = (features) client_input;
+			inputs.add((features) client_input);
 		}
-		assert input != null;
+		else if (client_input instanceof features_batch) {
+			inputs.addAll(((features_batch) client_input).get_records());
+		}
+		assert !inputs.isEmpty();
+
+		// The model encrypted under the keys of this client, encrypted again if it was dropped
+		String key_id = inputs.get(0).get_key_id() == null ? first_key_id : inputs.get(0).get_key_id();
+		key_sets.key_set keys = key_id == null ? null : copies.get(key_id);
+		if (keys == null) {
+			throw new IOException("Got features of key set " + key_id + ", which no client set up");
+		}
+		key_sets.encrypted_model model = copies.model(keys);
+		Niu.setPaillierPublicKey(keys.paillier_public_key);
+		Niu.setDGKPublicKey(keys.dgk_public_key);
 		long start_time = System.nanoTime();
 
-		// Traverse DT until you hit a leaf, the client has to track the index...
-		for (level_order_site level_site_data : all_level_sites) {
-			// Handle at a level...
-			NodeInfo leaf = traverse_level(level_site_data, input, Niu);
+		for (features input : inputs) {
+			// Traverse DT until you hit a leaf, the client has to track the index...
+			for (level_order_site level_site_data : model.levels()) {
+				// Handle at a level...
+				NodeInfo leaf = traverse_level(level_site_data, input, Niu);
 
-			// You found a leaf! No more traversing needed!
-			if (leaf != null) {
-				// Tell the client the value
-				Niu.writeInt(-1);
-				Niu.writeObject(leaf.getVariableName());
-				long stop_time = System.nanoTime();
-				double run_time = (double) (stop_time - start_time);
-				run_time = run_time / 1000000;
-				logger.info(String.format("Total Server-Site run-time took %f ms\n", run_time));
-				break;
+				// You found a leaf! No more traversing needed!
+				if (leaf != null) {
+					// Tell the client the value
+					Niu.writeInt(-1);
+					Niu.writeObject(model.pool().rerandomize_paillier(leaf.getVariableName()));
+					break;
+				}
 			}
 		}
+		long stop_time = System.nanoTime();
+		evaluation_seconds.observe_nanos(stop_time - start_time);
+		double run_time = (double) (stop_time - start_time);
+		run_time = run_time / 1000000;
+		logger.info("Total Server-Site run-time took {} ms for {} records", run_time, inputs.size());
 	}
 
-	// Talk to Client to get the Public Keys. Give client hashed classes and complete Label Encoder
-	private void client_communication() throws Exception {
-		ServerSocket serverSocket = createServerSocket(server_port);
-        logger.info("Server ready to get public keys from client on port: {}", server_port);
-
-		try (Socket client_site = serverSocket.accept()) {
-
-			ObjectOutputStream to_client_site = new ObjectOutputStream(client_site.getOutputStream());
-			ValidatingObjectInputStream from_client_site = get_ois(client_site);
+	// Talk to the first Client to get the Public Keys, the server-site and level-sites are up once it is set up
+	private void client_communication(ServerSocket serverSocket, boolean serving) throws Exception {
+		logger.info("Server ready to get public keys from client on port: {}", server_port);
+		Socket client_site = new metered_socket(serverSocket.accept(), "client");
+		// Locally the client listens for level-sites on the same port, so it is free once the client is in.
+		// A server-site that goes on serving keeps it, the client connects again as soon as it is set up
+		if (!serving) {
+			closeConnection(serverSocket);
+		}
 
-			// Receive a message from the client to get their keys
-			Object o = from_client_site.readObject();
-			this.paillier_public = (PaillierPublicKey) o;
+		try (client_site) {
+			serve(client_site);
+		}
+	}
 
-			o = from_client_site.readObject();
-			this.dgk_public = (DGKPublicKey) o;
-			logger.info("Server collected keys from client");
+	// Set-up and evaluation open the streams the same way, the first object tells them apart
+	private void serve(Socket client_site) throws Exception {
+		alice_joye Niu = new alice_joye();
+		Niu.set_socket(client_site);
+		ValidatingObjectInputStream from_client_site = get_ois(client_site);
+		Object client_input = read_object(from_client_site);
+		if (client_input instanceof PaillierPublicKey) {
+			set_up_client(client_site, (PaillierPublicKey) client_input, from_client_site);
+		}
+		else {
+			evaluate_with_client_directly(Niu, client_input);
+		}
+	}
 
-			// Train level-sites
-			get_level_site_data(ppdt, all_level_sites);
-			logger.info("Server trained DT");
+	// Give client hashed classes and complete Label Encoder, then encrypt the model under its keys if it is new
+	private void set_up_client(Socket client_site, PaillierPublicKey paillier_public,
+							   ValidatingObjectInputStream from_client_site) throws Exception {
+		DGKPublicKey dgk_public = (DGKPublicKey) from_client_site.readObject();
+		logger.info("Server collected keys from client");
+		long start_time = System.nanoTime();
+		key_sets.key_set keys = copies.register(paillier_public, dgk_public);
+		if (first_key_id == null) {
+			first_key_id = keys.key_id;
+		}
 
+		// The client encrypts its features while the model is encrypted and the level-sites trained
+		ObjectOutputStream to_client_site = new ObjectOutputStream(client_site.getOutputStream());
+		swapping.lock();
+		try {
+			send_outline(to_client_site, keys.key_id);
+			key_sets.encrypted_model model = copies.model(keys);
+			logger.info("Server has the DT encrypted under key set {}", keys.key_id);
+			logger.info("{}", model.pool());
 			if (this.level_site_ips != null) {
-				train_level_sites();
+				train_level_sites(model.levels());
+				// Level-sites still on an older version under these keys, from before a swap, switch to this one
+				long version = model.levels().get(0).get_version();
+				if (copies.stale(keys, version)) {
+					activate_level_sites(new model_epoch(get_model_id(), keys.key_id, version),
+							model.levels().size());
+					copies.activated(keys, version);
+				}
 			}
-			logger.info("Server just trained all the level-sites");
+		}
+		catch (Exception e) {
+			to_client_site.writeBoolean(false);
+			to_client_site.flush();
+			throw e;
+		}
+		finally {
+			swapping.unlock();
+		}
+		logger.info("Server just trained all the level-sites, {} ms after getting the keys",
+				(System.nanoTime() - start_time) / 1000000);
+		to_client_site.writeBoolean(true);
+		to_client_site.flush();
+	}
+
+	// The label encoder and manifest are known once the tree is walked, before any encryption
+	private void send_outline(ObjectOutputStream to_client_site, String key_id) throws IOException {
+		walked_tree model = tree;
+		// Also, I know the labels used for PPDT; the client must know
+		to_client_site.writeObject(model.label_encoder());
+		// And which attributes to encrypt, with which scheme, for which model and key set
+		attribute_manifest manifest = model.manifest().for_client(get_model_id(), key_id);
+		manifest.set_all_nodes(allow_all_nodes);
+		to_client_site.writeObject(manifest);
+		to_client_site.flush();
+		logger.info("Server sent the leaves, label encoder and manifest of {} attributes back to the client",
+				model.manifest().size());
+	}
 
-			// Also, I know the labels used for PPDT; the client must know
-			to_client_site.writeObject(label_encoder);
-			logger.info("Server sent the leaves and label encoder back to the client");
+	// The levels for a key set, from the model cache if they were encrypted under it before
+	private List<level_order_site> encrypt_model(key_sets.key_set keys, randomness_pool pool) throws Exception {
+		walked_tree model = tree;
+		List<level_order_site> all_level_sites = null;
+		model_cache cache = model_cache.from_environment();
+		String key = null;
+		if (cache != null) {
+			try {
+				key = model_cache.key(training_data, precision, keys.paillier_public_key, keys.dgk_public_key);
+				model_cache.cached_model cached = cache.load(key, keys.paillier_public_key, keys.dgk_public_key);
+				if (cached != null) {
+					all_level_sites = cached.levels();
+					logger.info("Using the encrypted model from the cache");
+				}
+			}
+			catch (IOException e) {
+				logger.warn("Unable to read {} to look up the model cache", training_data, e);
+			}
+		}
+		if (all_level_sites == null) {
+			all_level_sites = encrypt_levels(model, keys, pool);
+			if (key != null) {
+				try {
+					cache.store(key, all_level_sites, model.label_encoder());
+				}
+				catch (IOException e) {
+					logger.warn("Unable to cache the encrypted model", e);
+				}
+			}
 		}
-		serverSocket.close();
+		for (level_order_site level_site_data : all_level_sites) {
+			level_site_data.set_model_id(get_model_id());
+			level_site_data.set_key_id(keys.key_id);
+			level_site_data.set_version(model.version());
+			level_site_data.get_plan();
+		}
+		return all_level_sites;
 	}
 
 	private static boolean isUnix() {
@@ -289,21 +527,28 @@ public final class server implements Runnable {
 	    return j48;
 	}
 
+	// A version of the model, each level with its plain-text leaves and splits, and what the clients need to know of it
+	private record walked_tree(long version, List<List<plain_node>> levels, attribute_manifest manifest,
+							   LabelEncoder label_encoder) {
+	}
+
 	// Given a Plain-text Decision Tree, split the data up for each level site.
-	private void get_level_site_data(ClassifierTree root, List<level_order_site> all_level_sites)
-			throws Exception {
+	// Walked once, the label encoder and manifest are the same for every client, the levels are encrypted per key set
+	private walked_tree walk_tree(ClassifierTree root, long version, LabelEncoder label_encoder) throws Exception {
+		List<List<plain_node>> plain_levels = new ArrayList<>();
+		attribute_manifest manifest = new attribute_manifest();
+		walked_tree walked = new walked_tree(version, plain_levels, manifest, label_encoder);
 
 		if (root == null) {
-			return;
+			return walked;
 		}
 
 		Queue<ClassifierTree> q = new LinkedList<>();
 		q.add(root);
-		int level = 0;
 		BigInteger temp_thresh = null;
 
 		while (!q.isEmpty()) {
-			level_order_site Level_Order_S = new level_order_site(level, paillier_public, dgk_public);
+			List<plain_node> plain_nodes = new ArrayList<>();
 			int n = q.size();
 
 			while (n > 0) {
@@ -315,9 +560,7 @@ public final class server implements Runnable {
 				assert p != null;
 				if (p.isLeaf()) {
 					String variable = p.getLocalModel().dumpLabel(0, p.getTrainingData());
-					BigInteger encryption = PaillierCipher.encrypt(hash_to_big_integer(variable), paillier_public);
-					node_info = new NodeInfo(true, encryption.toString(), 0, variable);
-					Level_Order_S.append_data(node_info);
+					plain_nodes.add(new plain_node(true, variable, 0, null));
 				}
 				else {
 					double threshold;
@@ -393,87 +636,278 @@ public final class server implements Runnable {
 						}
 						temp_thresh = NodeInfo.set_precision(threshold, precision);
 						node_info = new NodeInfo(false, leftSide, type);
-						node_info.encrypt(temp_thresh, paillier_public, dgk_public);
 						q.add(p.getSons()[i]);
 					}
 
+					// Only the node of the last son is kept, its threshold is encrypted once per key set
 					assert node_info != null;
-					if (!node_info.is_leaf) {
-						NodeInfo additionalNode = null;
-						if (node_info.comparisonType == 1) {
-							additionalNode = new NodeInfo(false, node_info.getVariableName(), 6);
-						}
-						else if (node_info.comparisonType == 2) {
-							additionalNode = new NodeInfo(false, node_info.getVariableName(), 5);
-						}
-						else if (node_info.comparisonType == 3) {
-							additionalNode = new NodeInfo(false, node_info.getVariableName(), 4);
-						}
-						else if (node_info.comparisonType == 4) {
-							additionalNode = new NodeInfo(false, node_info.getVariableName(), 3);
-						}
-						else if (node_info.comparisonType == 5) {
-							additionalNode = new NodeInfo(false, node_info.getVariableName(), 2);
-						}
-						else if (node_info.comparisonType == 6) {
-							additionalNode = new NodeInfo(false, node_info.getVariableName(), 1);
-						}
-						assert additionalNode != null;
-						additionalNode.encrypt(temp_thresh, paillier_public, dgk_public);
-						Level_Order_S.append_data(additionalNode);
-					}
-					Level_Order_S.append_data(node_info);
+					// Its complement is compared with the same scheme
+					manifest.add(node_info.getVariableName(), node_info.comparisonType);
+					plain_nodes.add(new plain_node(false, node_info.getVariableName(), node_info.comparisonType,
+							temp_thresh));
 				}// else
 				n--;
 			} // While n > 0 (nodes > 0)
-			all_level_sites.add(Level_Order_S);
-			++level;
+			plain_levels.add(plain_nodes);
 		} // While a tree is not empty
+		manifest.set_levels(plain_levels.size());
+		return walked;
+	}
+
+	// Every leaf and threshold of the walked tree, encrypted under the keys of a client on every core
+	private List<level_order_site> encrypt_levels(walked_tree model, key_sets.key_set keys, randomness_pool pool)
+			throws Exception {
+		ExecutorService encryption = Executors.newFixedThreadPool(Math.max(1, features.DEFAULT_ENCRYPTION_THREADS));
+		List<level_order_site> all_level_sites = new ArrayList<>();
+		int level = 0;
+		try {
+			List<List<Future<NodeInfo>>> encrypted_levels = new ArrayList<>();
+			for (List<plain_node> plain_nodes : model.levels()) {
+				List<Future<NodeInfo>> encrypted_nodes = new ArrayList<>();
+				for (plain_node node : plain_nodes) {
+					encrypted_nodes.add(encryption.submit(() -> node.encrypt(pool)));
+				}
+				encrypted_levels.add(encrypted_nodes);
+			}
+			for (List<Future<NodeInfo>> encrypted_nodes : encrypted_levels) {
+				level_order_site Level_Order_S = new level_order_site(level, keys.paillier_public_key,
+						keys.dgk_public_key);
+				for (Future<NodeInfo> encrypted_node : encrypted_nodes) {
+					NodeInfo node_info = encrypted_node.get();
+					if (node_info.is_leaf) {
+						Level_Order_S.append_data(node_info);
+					}
+					else {
+						// Only the first node of a split is ever in scope, it stands for the other one
+						NodeInfo split = complement(node_info);
+						split.set_paired(true);
+						Level_Order_S.append_data(split);
+					}
+				}
+				all_level_sites.add(Level_Order_S);
+				++level;
+			}
+			return all_level_sites;
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+		finally {
+			encryption.shutdownNow();
+		}
+	}
+
+	// A node of the walked tree, a leaf with its label or a split with its threshold at the precision of the model
+	private record plain_node(boolean leaf, String variable, int type, BigInteger threshold) {
+		private NodeInfo encrypt(randomness_pool pool) throws HomomorphicException {
+			if (leaf) {
+				BigInteger encrypted_leaf = pool.encrypt_paillier(hash_to_big_integer(variable));
+				return new NodeInfo(true, encrypted_leaf.toString(), 0, variable);
+			}
+			NodeInfo split = new NodeInfo(false, variable, type);
+			split.encrypt(threshold, pool);
+			return split;
+		}
+	}
+
+	// The other node of a split, same threshold and scheme so it shares the ciphertext
+	private static NodeInfo complement(NodeInfo node_info) {
+		NodeInfo additionalNode = null;
+		if (node_info.comparisonType == 1) {
+			additionalNode = new NodeInfo(false, node_info.getVariableName(), 6);
+		}
+		else if (node_info.comparisonType == 2) {
+			additionalNode = new NodeInfo(false, node_info.getVariableName(), 5);
+		}
+		else if (node_info.comparisonType == 3) {
+			additionalNode = new NodeInfo(false, node_info.getVariableName(), 4);
+		}
+		else if (node_info.comparisonType == 4) {
+			additionalNode = new NodeInfo(false, node_info.getVariableName(), 3);
+		}
+		else if (node_info.comparisonType == 5) {
+			additionalNode = new NodeInfo(false, node_info.getVariableName(), 2);
+		}
+		else if (node_info.comparisonType == 6) {
+			additionalNode = new NodeInfo(false, node_info.getVariableName(), 1);
+		}
+		assert additionalNode != null;
+		additionalNode.setPaillier(node_info.getPaillier());
+		additionalNode.setDGK(node_info.getDGK());
+		return additionalNode;
 	}
 
 	// Run should
 	// Train, ONLY if necessary
 	// Evaluate, be prepared for either level-site or no level-site case, 1 time
 	public void run() {
+		// If we are testing without level-sites, or running on a cluster, the server-site goes on serving.
+		// If running locally, this.evaluations is set to 1 by default for local testing.
+		boolean serving = this.level_site_ips == null || this.evaluations != 1;
+		ServerSocket serverSocket = createServerSocket(this.server_port);
 
 		try {
 			// Train the DT if you have to.
 			if (ppdt == null) {
 				ppdt = train_decision_tree(this.training_data);
+				tree = walk_tree(ppdt, 0, new LabelEncoder());
 				// Get Public Keys from Client AND train level-sites
-				client_communication();	
+				client_communication(serverSocket, serving);
 			}
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 
-		// If we are testing without level-sites do this...
-		if (this.level_site_ips != null) {
-			// If running on a cluster, might as well train be able to run server-site too.
-			// If running locally, this.evaluations is set to 1 by default for local testing.
-			if (this.evaluations != 1) {
+		if (serving) {
+			if (this.level_site_ips != null) {
 				logger.info("It seems server is being tested in K8s environment!");
-				try {
-					run_server_site(this.server_port);
-				}
-				catch (IOException | HomomorphicException | ClassNotFoundException e) {
-					throw new RuntimeException(e);
-				}
 			}
-		} else {
+			run_and_watch(serverSocket);
+		}
+		else {
 			try {
-				run_server_site(this.server_port);
+				closeConnection(serverSocket);
+			}
+			catch (IOException e) {
+				logger.info("IO Exception in closing the server-site socket", e);
 			}
-			catch (IOException | HomomorphicException | ClassNotFoundException e) {
-				throw new RuntimeException(e);
+		}
+		copies.close();
+	}
+
+	// The server-site keeps running, so a new training file is swapped in while it does
+	private void run_and_watch(ServerSocket serverSocket) {
+		Thread watcher = null;
+		if (MODEL_WATCH_SECONDS > 0) {
+			watcher = Thread.ofVirtual().name("model-watch").start(this::watch_training_data);
+		}
+		try {
+			run_server_site(serverSocket);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			if (watcher != null) {
+				watcher.interrupt();
 			}
 		}
 	}
 
-	private void train_level_sites() {
-		ObjectOutputStream to_level_site;
-		ValidatingObjectInputStream from_level_site;
+	// Polls the modification time of the training file, a model file written by another trainer included
+	private void watch_training_data() {
+		File training_file = new File(training_data);
+		long last_modified = training_file.lastModified();
+		while (!stopped) {
+			try {
+				TimeUnit.SECONDS.sleep(MODEL_WATCH_SECONDS);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			long modified = training_file.lastModified();
+			if (modified == last_modified) {
+				continue;
+			}
+			last_modified = modified;
+			try {
+				swap_model();
+			}
+			catch (Exception e) {
+				logger.error("Unable to swap in the model trained from {}", training_data, e);
+			}
+		}
+	}
+
+	/*
+	 * Trains the model again from the training file, and switches the client key sets to it as version N + 1.
+	 * The new version is encrypted under each key set with a copy in memory, and staged on every level-site while
+	 * version N is evaluated, then each level-site is told to switch, see model_epoch. Requests level-site 0 started
+	 * with version N finish with it. The key sets without a copy are stale, they are encrypted and switched the next
+	 * time their client sets up, see key_sets.stale. Clients are set up during the pushes, with version N + 1.
+	 * The clients keep the manifest and label encoder they were set up with, so a model comparing other attributes,
+	 * with another depth or with new labels is refused, the clients have to set up with a server-site trained with it.
+	 * False if the model was refused.
+	 */
+	public boolean swap_model() throws Exception {
+		refreshing.lock();
+		try {
+			walked_tree next = train_next_version();
+			if (next == null) {
+				return false;
+			}
+			long start_time = System.nanoTime();
+			for (key_sets.key_set keys : copies.encrypted()) {
+				key_sets.encrypted_model model = copies.refresh(keys, next.version());
+				if (model == null || this.level_site_ips == null) {
+					continue;
+				}
+				train_level_sites(model.levels());
+				activate_level_sites(new model_epoch(get_model_id(), keys.key_id, next.version()),
+						model.levels().size());
+				copies.activated(keys, next.version());
+			}
+			swaps.inc();
+			logger.info("Swapped to version {} of the model, {} ms after training it", next.version(),
+					(System.nanoTime() - start_time) / 1000000);
+			return true;
+		}
+		finally {
+			refreshing.unlock();
+		}
+	}
+
+	// The model trained again, which clients are set up with from now on. null if it does not fit the clients.
+	// Called with refreshing held, so the version it trains from stays the current one.
+	private walked_tree train_next_version() throws Exception {
+		walked_tree old = tree;
+		if (old == null) {
+			throw new IllegalStateException("The server-site has no model to swap yet");
+		}
+		ClassifierTree retrained = train_decision_tree(this.training_data);
+		walked_tree next = walk_tree(retrained, old.version() + 1, new LabelEncoder(old.label_encoder()));
+		if (!old.manifest().covers(next.manifest())
+				|| next.manifest().get_levels() != old.manifest().get_levels()
+				|| next.label_encoder().size() != old.label_encoder().size()) {
+			logger.error("The model trained again from {} does not fit what the clients were set up with, " +
+					"keeping version {}", training_data, old.version());
+			return null;
+		}
+		swapping.lock();
+		try {
+			ppdt = retrained;
+			tree = next;
+		}
+		finally {
+			swapping.unlock();
+		}
+		return next;
+	}
+
+	// Every level-site has the new version, level-site d switches first and level-site 0 last
+	private void activate_level_sites(model_epoch epoch, int levels) throws IOException {
+		for (int i = levels - 1; i >= 0; i--) {
+			if (!provision_level_site(i, level_site_ips[i], level_site_port(i), epoch)) {
+				throw new IOException("Level-site " + i + " did not switch to version " + epoch.get_version());
+			}
+		}
+	}
+
+	// The port of level-site i, the same port on every level-site in a cluster
+	private int level_site_port(int i) {
+		return port == -1 ? this.level_site_ports[i] : this.port;
+	}
+
+	/*
+	 * All level-sites are trained at the same time. A level-site connects to the next one when trained,
+	 * which only needs the next one to listen, and no features reach a level-site before the client hears back,
+	 * which is after every level-site acknowledged its data.
+	 */
+	private void train_level_sites(List<level_order_site> all_level_sites) {
 		int connection_port;
 
 		// There should be at least 1 IP Address for each level site
@@ -485,16 +919,13 @@ public final class server implements Runnable {
 		}
 
 		// Send the data to each level site, use data in-transit encryption
-		// I think it is SAFER if I create level-sites from d and go up, so all accepts are ready...
+		// Each level-site is trained on a virtual thread, waiting for its acknowledgement costs nothing
+		ExecutorService provisioning = virtual_threads("provisioning");
+		List<Future<Boolean>> acknowledgements = new ArrayList<>();
 		for (int i = all_level_sites.size() - 1; i >= 0; i--) {
 			level_order_site current_level_site = all_level_sites.get(i);
 
-			if (port == -1) {
-				connection_port = this.level_site_ports[i];
-			}
-			else {
-				connection_port = this.port;
-			}
+			connection_port = level_site_port(i);
 
 			// level-site d
 			if (i == all_level_sites.size() - 1) {
@@ -526,21 +957,98 @@ public final class server implements Runnable {
 				}
 			}
 
-			try(Socket level_site = createSocket(level_site_ips[i], connection_port)) {
-                logger.info("training level-site {} on port:{}", i, connection_port);
-				to_level_site = new ObjectOutputStream(level_site.getOutputStream());
-				from_level_site = get_ois(level_site);
-				to_level_site.writeObject(current_level_site);
+			String level_site_ip = level_site_ips[i];
+			int level = i;
+			int level_site_port = connection_port;
+			acknowledgements.add(provisioning.submit(
+					() -> provision_level_site(level, level_site_ip, level_site_port, current_level_site)));
+		}
+
+		// Wait until every level-site is ready
+		try {
+			for (Future<Boolean> acknowledgement : acknowledgements) {
+				if (!acknowledgement.get()) {
+					throw new RuntimeException("A level-site did not accept its training data");
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			provisioning.shutdownNow();
+		}
+	}
+
+	// Training data or a model epoch, the level-site acknowledges either
+	private static boolean provision_level_site(int level, String level_site_ip, int connection_port,
+												Object provisioned) throws IOException {
+		if (provisioned instanceof level_order_site && PROVISIONING_CHUNK_NODES > 0
+				&& ((level_order_site) provisioned).get_node_data().size() > PROVISIONING_CHUNK_NODES) {
+			return stream_level_site(level, level_site_ip, connection_port, (level_order_site) provisioned);
+		}
+		try(Socket level_site = new metered_socket(createSocket(level_site_ip, connection_port), "level_site")) {
+			logger.info("provisioning level-site {} on port:{}", level, connection_port);
+			ObjectOutputStream to_level_site = new ObjectOutputStream(level_site.getOutputStream());
+			ValidatingObjectInputStream from_level_site = get_ois(level_site);
+			write_object(to_level_site, provisioned);
+			to_level_site.flush();
+			if(from_level_site.readBoolean()) {
+				logger.info("Training Successful on port:{}", connection_port);
+				return true;
+			}
+			else {
+				logger.error("Training NOT Successful on port:{}", connection_port);
+				return false;
+			}
+		}
+	}
+
+	/*
+	 * The level without its nodes, then its nodes PROVISIONING_CHUNK_NODES at a time, each chunk encoded just before
+	 * it is sent. The level-site answers the header with the nodes it already has, so a connection that broke off,
+	 * or a chunk that arrived damaged, resumes from the last chunk the level-site kept.
+	 */
+	private static boolean stream_level_site(int level, String level_site_ip, int connection_port,
+											 level_order_site current_level_site) throws IOException {
+		level_order_site header = current_level_site.streamed_header();
+		List<NodeInfo> nodes = current_level_site.get_node_data();
+		for (int attempt = 1; ; attempt++) {
+			try(Socket level_site = new metered_socket(createSocket(level_site_ip, connection_port), "level_site")) {
+				ObjectOutputStream to_level_site = new ObjectOutputStream(level_site.getOutputStream());
+				ValidatingObjectInputStream from_level_site = get_ois(level_site);
+				write_object(to_level_site, header);
 				to_level_site.flush();
-				if(from_level_site.readBoolean()) {
-                    logger.info("Training Successful on port:{}", connection_port);
+				int offset = from_level_site.readInt();
+				logger.info("streaming {} nodes of level-site {} from node {} on port:{}", nodes.size(), level,
+						offset, connection_port);
+				for (int from = offset; from < nodes.size(); from += PROVISIONING_CHUNK_NODES) {
+					int to = Math.min(nodes.size(), from + PROVISIONING_CHUNK_NODES);
+					to_level_site.writeObject(new level_chunk(from, binary_codec.encode_nodes(current_level_site,
+							from, to)));
+					// Otherwise both streams keep every chunk for back references
+					to_level_site.reset();
 				}
-				else {
-                    logger.error("Training NOT Successful on port:{}", connection_port);
+				to_level_site.flush();
+				if (from_level_site.readBoolean()) {
+					logger.info("Training Successful on port:{}", connection_port);
+					return true;
 				}
+				if (attempt >= PROVISIONING_ATTEMPTS) {
+					logger.error("Training NOT Successful on port:{}", connection_port);
+					return false;
+				}
+				logger.warn("Level-site {} rejected a chunk, resuming", level);
 			}
 			catch (IOException e) {
-				throw new RuntimeException(e);
+				if (attempt >= PROVISIONING_ATTEMPTS) {
+					throw e;
+				}
+				logger.warn("Streaming level-site {} broke off, resuming", level, e);
 			}
 		}
 	}
@@ -5,6 +5,8 @@ import security.dgk.DGKPublicKey;
 import security.misc.HomomorphicException;
 import security.paillier.PaillierCipher;
 import security.paillier.PaillierPublicKey;
+import weka.finito.utils.metrics;
+import weka.finito.utils.randomness_pool;
 
 import java.io.Serial;
 import java.io.Serializable;
@@ -16,8 +18,9 @@ import java.math.BigInteger;
  */
 
 public final class NodeInfo implements Serializable {
+	// Changed with paired splits, a level-site from before them would drop the flag and take a split for one node
 	@Serial
-	private static final long serialVersionUID = -3569139531917752891L;
+	private static final long serialVersionUID = 2906467129937251845L;
 	public final boolean is_leaf;
 	public final String variable_name;
 	public final int comparisonType;
@@ -25,6 +28,10 @@ public final class NodeInfo implements Serializable {
 	private BigInteger paillier;
 	private BigInteger dgk;
 	private final String real_leaf;
+	// A split stored once for both of its nodes, the other node has the complementary type and the same threshold
+	private boolean paired = false;
+	private static final metrics.counter paillier_encryptions = randomness_pool.encryptions("paillier", "full");
+	private static final metrics.counter dgk_encryptions = randomness_pool.encryptions("dgk", "full");
 
     public NodeInfo(boolean is_leaf, String variable_name, int comparisonType) {
     	this.is_leaf = is_leaf;
@@ -48,14 +55,27 @@ public final class NodeInfo implements Serializable {
 
 		if (paillier_public_key != null) {
 			this.setPaillier(PaillierCipher.encrypt(temp_thresh, paillier_public_key));
+			paillier_encryptions.inc();
 		}
 		if (dgk_public_key != null) {
 			this.setDGK(DGKOperations.encrypt(temp_thresh, dgk_public_key));
+			dgk_encryptions.inc();
 		}
 		// TODO: Be sure to comment this out, just used for debugging to more easily identify nodes
 		this.threshold = temp_thresh.doubleValue();
 	}
 
+	// Online encryption, the blinding factors were already computed by the pool.
+	// Only with the scheme shared.compare uses: Paillier for types 2 and 5, DGK for the others
+	public void encrypt(BigInteger temp_thresh, randomness_pool pool) throws HomomorphicException {
+		if (comparisonType == 2 || comparisonType == 5) {
+			this.setPaillier(pool.encrypt_paillier(temp_thresh));
+		}
+		else {
+			this.setDGK(pool.encrypt_dgk(temp_thresh));
+		}
+	}
+
 	public static BigInteger set_precision(double threshold, int precision) {
 		int intermediateInteger = (int) (threshold * Math.pow(10, precision));
         return BigInteger.valueOf(intermediateInteger);
@@ -77,6 +97,14 @@ public final class NodeInfo implements Serializable {
 		return this.paillier;
 	}
     
+	public void set_paired(boolean paired) {
+		this.paired = paired;
+	}
+
+	public boolean is_paired() {
+		return this.paired;
+	}
+
     public boolean isLeaf() {
     	return this.is_leaf;
     }
@@ -0,0 +1,135 @@
+package weka.finito.structs;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The attributes a model compares and the schemes it compares them with, sent by the server-site with the label encoder.
+ * Comparison types 2 and 5 use Paillier ciphertexts, 1, 3, 4 and 6 use DGK ciphertexts (see shared.compare),
+ * so the client only encrypts an attribute with the schemes it is compared with, and skips attributes not in the model.
+ */
+public final class attribute_manifest implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 3894012853375028412L;
+    public static final int PAILLIER = 1;
+    public static final int DGK = 2;
+    private final HashMap<String, Integer> schemes = new HashMap<>();
+    // Number of level-sites the model is split across, 0 if not known
+    private int levels = 0;
+    // The model the client names in its features, null before model ids
+    private String model_id = null;
+    // The key set the model is encrypted under for this client, null before key sets
+    private String key_id = null;
+    // The model owner lets the client use the all-nodes mode, false in a manifest from before the opt-in
+    private boolean all_nodes = false;
+
+    public static attribute_manifest of(List<level_order_site> levels) {
+        attribute_manifest manifest = new attribute_manifest();
+        manifest.set_levels(levels.size());
+        for (level_order_site level : levels) {
+            for (NodeInfo node : level.get_node_data()) {
+                if (!node.isLeaf()) {
+                    manifest.add(node.getVariableName(), node.comparisonType);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    // What a client is sent, the model and the key set it encrypts its features for
+    public attribute_manifest for_client(String model_id, String key_id) {
+        attribute_manifest manifest = new attribute_manifest();
+        manifest.schemes.putAll(schemes);
+        manifest.levels = levels;
+        manifest.model_id = model_id;
+        manifest.key_id = key_id;
+        return manifest;
+    }
+
+    public void add(String attribute, int comparison_type) {
+        int scheme = (comparison_type == 2 || comparison_type == 5) ? PAILLIER : DGK;
+        schemes.merge(attribute, scheme, (a, b) -> a | b);
+    }
+
+    // A client encrypting for this manifest sends every ciphertext a model with the other one compares
+    public boolean covers(attribute_manifest other) {
+        for (Map.Entry<String, Integer> attribute : other.schemes.entrySet()) {
+            int scheme = schemes.getOrDefault(attribute.getKey(), 0);
+            if ((scheme & attribute.getValue()) != attribute.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean contains(String attribute) {
+        return schemes.containsKey(attribute);
+    }
+
+    // The features have a value of every attribute the model compares
+    public boolean complete(Map<String, ?> values) {
+        return values.keySet().containsAll(schemes.keySet());
+    }
+
+    public boolean needs_paillier(String attribute) {
+        return (schemes.getOrDefault(attribute, 0) & PAILLIER) != 0;
+    }
+
+    public boolean needs_dgk(String attribute) {
+        return (schemes.getOrDefault(attribute, 0) & DGK) != 0;
+    }
+
+    public void set_levels(int levels) {
+        this.levels = levels;
+    }
+
+    public int get_levels() {
+        return levels;
+    }
+
+    public void set_model_id(String model_id) {
+        this.model_id = model_id;
+    }
+
+    public String get_model_id() {
+        return model_id;
+    }
+
+    public void set_key_id(String key_id) {
+        this.key_id = key_id;
+    }
+
+    public String get_key_id() {
+        return key_id;
+    }
+
+    public void set_all_nodes(boolean all_nodes) {
+        this.all_nodes = all_nodes;
+    }
+
+    public boolean allows_all_nodes() {
+        return all_nodes;
+    }
+
+    public int size() {
+        return schemes.size();
+    }
+
+    public String toString() {
+        StringBuilder output = new StringBuilder();
+        for (String attribute : schemes.keySet()) {
+            output.append(attribute).append(" ->");
+            if (needs_paillier(attribute)) {
+                output.append(" Paillier");
+            }
+            if (needs_dgk(attribute)) {
+                output.append(" DGK");
+            }
+            output.append('\n');
+        }
+        return output.toString();
+    }
+}
@@ -0,0 +1,115 @@
+package weka.finito.structs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * The nodes of one level compiled into arrays indexed by the current index of the features,
+ * so a level-site finds the node to evaluate without walking the level.
+ * Walking the level, a leaf takes two positions and each node of a split ('<=' and '>', '=' and '!=') one,
+ * the first node found at position 2 * index or 2 * index + 1 is the one in scope of that index.
+ * A paired split, see NodeInfo.is_paired, is the first node of a split standing for both, so it takes two positions.
+ * The child index is the number of split nodes before it, the next index is the child index if the
+ * comparison holds and the child index + 1 otherwise.
+ * The attribute ids number the attributes split on by this level only, so they go away with the model.
+ */
+public final class evaluation_plan {
+    private final int [] node_offset;
+    private final boolean [] leaf;
+    private final int [] comparison_type;
+    private final int [] attribute_id;
+    private final int [] child_index;
+    // By attribute id
+    private final String [] attributes;
+
+    public evaluation_plan(List<NodeInfo> nodes) {
+        int positions = 0;
+        for (NodeInfo node : nodes) {
+            positions += node.isLeaf() || node.is_paired() ? 2 : 1;
+        }
+        int indexes = (positions + 1) / 2;
+        node_offset = new int[indexes];
+        leaf = new boolean[indexes];
+        comparison_type = new int[indexes];
+        attribute_id = new int[indexes];
+        child_index = new int[indexes];
+        Arrays.fill(node_offset, -1);
+        HashMap<String, Integer> ids = new HashMap<>();
+        List<String> names = new ArrayList<>();
+
+        int n = 0;
+        int next_index = 0;
+        for (int j = 0; j < nodes.size(); j++) {
+            NodeInfo node = nodes.get(j);
+            int index = n / 2;
+            if (node_offset[index] == -1) {
+                node_offset[index] = j;
+                leaf[index] = node.isLeaf();
+                comparison_type[index] = node.comparisonType;
+                // The variable name of a leaf is its encrypted class
+                if (node.isLeaf()) {
+                    attribute_id[index] = -1;
+                }
+                else {
+                    attribute_id[index] = ids.computeIfAbsent(node.getVariableName(), name -> {
+                        names.add(name);
+                        return names.size() - 1;
+                    });
+                }
+                child_index[index] = next_index;
+            }
+            if (node.isLeaf()) {
+                n += 2;
+            }
+            else if (node.is_paired()) {
+                n += 2;
+                next_index += 2;
+            }
+            else {
+                n++;
+                next_index++;
+            }
+        }
+        attributes = names.toArray(new String[0]);
+    }
+
+    public boolean in_scope(int index) {
+        return index >= 0 && index < node_offset.length && node_offset[index] != -1;
+    }
+
+    // Position of the node in scope in level_order_site.get_node_data()
+    public int node_offset(int index) {
+        return node_offset[index];
+    }
+
+    public boolean is_leaf(int index) {
+        return leaf[index];
+    }
+
+    public int comparison_type(int index) {
+        return comparison_type[index];
+    }
+
+    public int attribute_id(int index) {
+        return attribute_id[index];
+    }
+
+    public String attribute(int attribute_id) {
+        return attributes[attribute_id];
+    }
+
+    // Number of attribute ids
+    public int attributes() {
+        return attributes.length;
+    }
+
+    public int child_index(int index) {
+        return child_index[index];
+    }
+
+    public int size() {
+        return node_offset.length;
+    }
+}
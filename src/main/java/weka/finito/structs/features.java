@@ -8,37 +8,132 @@ import security.paillier.PaillierPublicKey;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-//import org.apache.logging.log4j.LogManager;
-//import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import weka.finito.utils.LabelEncoder;
+import weka.finito.utils.metrics;
+import weka.finito.utils.randomness_pool;
+import weka.finito.utils.shared;
 
 public final class features implements Serializable {
-    // private static final Logger logger = LogManager.getLogger(features.class);
+    private static final Logger logger = LogManager.getLogger(features.class);
     @Serial
     private static final long serialVersionUID = 6000706455545108960L;
+    private static final metrics.counter paillier_encryptions = randomness_pool.encryptions("paillier", "full");
+    private static final metrics.counter dgk_encryptions = randomness_pool.encryptions("dgk", "full");
+    public static final int DEFAULT_ENCRYPTION_THREADS = shared.get_env_int("ENCRYPTION_THREADS",
+            Runtime.getRuntime().availableProcessors());
     private String client_ip;
     private int client_port;
+    // Set by level-site 0, so every level-site can tell the in-flight evaluations apart in its logs
+    private long request_id;
+    // The model to evaluate, level-sites may host several, see level_order_site.DEFAULT_MODEL
+    private String model_id;
+    // The key set the client encrypted these features with, null with a single key set per model
+    private String key_id;
+    // Set by level-site 0 to the version of the model it evaluates with, the next level-sites evaluate the same one
+    private long version;
     private int next_index;
     private int current_index;
+    // Every level-site compares all of its nodes as soon as it gets these features, see level_site_evaluation_thread
+    private boolean all_nodes;
     private final HashMap<String, BigIntegers> thresholds;
-    private String thresh_hold_map;
+    // The same values by attribute id of the last plan they were compared with, rebuilt on the next plan
+    private transient plan_values by_attribute_id;
+    private final String thresh_hold_map;
+    // Timings of each stage, only useful to the client that built the vector
+    private transient double parse_time;
+    private transient double encryption_time;
 
+    // Without a pool, every value is encrypted in full with the keys
     public features(String path, int precision, PaillierPublicKey paillier_public_key,
                     DGKPublicKey dgk_public_key, LabelEncoder encoder)
             throws HomomorphicException, IOException {
+        this(path, precision, null, paillier_public_key, dgk_public_key, encoder, null, ForkJoinPool.commonPool());
+    }
+
+    public features(String path, int precision, randomness_pool pool, LabelEncoder encoder)
+            throws HomomorphicException, IOException {
+        this(path, precision, pool, encoder, ForkJoinPool.commonPool());
+    }
+
+    // The executor decides how many attributes are encrypted at the same time
+    public features(String path, int precision, randomness_pool pool, LabelEncoder encoder,
+                    ExecutorService executor)
+            throws HomomorphicException, IOException {
+        this(path, precision, pool, encoder, null, executor);
+    }
+
+    // With a manifest from the server-site, only what the model compares is encrypted, otherwise everything is
+    public features(String path, int precision, randomness_pool pool, LabelEncoder encoder,
+                    attribute_manifest manifest, ExecutorService executor)
+            throws HomomorphicException, IOException {
+        this(path, precision, pool, null, null, encoder, manifest, executor);
+    }
+
+    private features(String path, int precision, randomness_pool pool, PaillierPublicKey paillier_public_key,
+                     DGKPublicKey dgk_public_key, LabelEncoder encoder, attribute_manifest manifest,
+                     ExecutorService executor)
+            throws HomomorphicException, IOException {
         this.client_ip = "";
         this.next_index = 0;
         this.current_index = 0;
-        this.thresholds = read_values(path, precision, paillier_public_key, dgk_public_key, encoder);
-        this.thresh_hold_map = save_thresholds(path, precision, encoder);
+
+        StringBuilder debug = new StringBuilder();
+        this.thresholds = read_and_encrypt(path, precision, encoder, manifest, pool,
+                paillier_public_key, dgk_public_key, executor, debug);
+        this.thresh_hold_map = debug.toString();
+    }
+
+    // Rebuilds a vector received in the binary wire format, the plaintext debug string stays with the client
+    public features(HashMap<String, BigIntegers> thresholds, String client_ip, int client_port) {
+        this.client_ip = client_ip;
+        this.client_port = client_port;
+        this.next_index = 0;
+        this.current_index = 0;
+        this.thresholds = thresholds;
+        this.thresh_hold_map = "";
+    }
+
+    // Published in one write, the lanes of the all-nodes mode may compare the same features at once
+    private record plan_values(evaluation_plan plan, BigIntegers [] values) {
+    }
+
+    public Map<String, BigIntegers> get_all_thresholds() {
+        return Collections.unmodifiableMap(this.thresholds);
     }
 
     public BigIntegers get_thresholds(String feature) {
         return this.thresholds.get(feature);
     }
 
+    // null if the attribute is missing, the names are looked up once per plan
+    public BigIntegers get_thresholds(evaluation_plan plan, int attribute_id) {
+        plan_values indexed = by_attribute_id;
+        if (indexed == null || indexed.plan() != plan) {
+            BigIntegers [] values = new BigIntegers[plan.attributes()];
+            for (int id = 0; id < values.length; id++) {
+                values[id] = thresholds.get(plan.attribute(id));
+            }
+            indexed = new plan_values(plan, values);
+            by_attribute_id = indexed;
+        }
+        if (attribute_id < 0 || attribute_id >= indexed.values().length) {
+            return null;
+        }
+        return indexed.values()[attribute_id];
+    }
+
     public String get_client_ip() {
         return this.client_ip;
     }
@@ -55,6 +150,43 @@ public final class features implements Serializable {
         this.client_port = client_port;
     }
 
+    public long get_request_id() {
+        return this.request_id;
+    }
+
+    public void set_request_id(long request_id) {
+        this.request_id = request_id;
+    }
+
+    public String get_model_id() {
+        return model_id == null ? level_order_site.DEFAULT_MODEL : model_id;
+    }
+
+    public void set_model_id(String model_id) {
+        this.model_id = model_id;
+    }
+
+    public String get_key_id() {
+        return key_id;
+    }
+
+    public void set_key_id(String key_id) {
+        this.key_id = key_id;
+    }
+
+    public long get_version() {
+        return this.version;
+    }
+
+    public void set_version(long version) {
+        this.version = version;
+    }
+
+    // The copy of the model to evaluate these features with
+    public String get_hosted_id() {
+        return level_order_site.hosted_id(get_model_id(), key_id);
+    }
+
     public int get_next_index() {
         return this.next_index;
     }
@@ -63,6 +195,14 @@ public final class features implements Serializable {
         this.next_index = next_index;
     }
 
+    public boolean is_all_nodes() {
+        return this.all_nodes;
+    }
+
+    public void set_all_nodes(boolean all_nodes) {
+        this.all_nodes = all_nodes;
+    }
+
     public int get_current_index() {
         return this.current_index;
     }
@@ -71,44 +211,31 @@ public final class features implements Serializable {
         this.current_index = current_index;
     }
 
-    public static String save_thresholds(String path, int precision, LabelEncoder encoder) throws IOException {
-        double double_value;
-        BigInteger temp;
-        StringBuilder debug = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
-            String line;
-
-            while ((line = br.readLine()) != null) {
-                String key, value;
-                String[] split = line.split("\\t");
-                key = split[0];
-                value = split[1];
+    public double get_parse_time() {
+        return this.parse_time;
+    }
 
-                // I need to refer to label encoder after training to know what I am doing...
-                try {
-                    double_value = Double.parseDouble(value);
-                } catch (NumberFormatException e) {
-                    double_value = encoder.encode(value).doubleValue();
-                }
-                temp = NodeInfo.set_precision(double_value, precision);
-                debug.append(key).append(" -> ").append(temp).append("\n");
-            }
-        }
-        return debug.toString();
+    public double get_encryption_time() {
+        return this.encryption_time;
     }
 
-    public static HashMap<String, BigIntegers> read_values(String path,
-                                                           int precision,
+    /*
+     * Single pass over the VALUES file. Each attribute is handed to the executor as soon as its line is parsed,
+     * results are collected in file order so the output does not depend on scheduling.
+     * The debug string printed by toString() is built in the same pass.
+     * With a pool the values are encrypted online, without one in full with the keys.
+     */
+    private HashMap<String, BigIntegers> read_and_encrypt(String path, int precision, LabelEncoder encoder,
+                                                           attribute_manifest manifest, randomness_pool pool,
                                                            PaillierPublicKey paillier_public_key,
-                                                           DGKPublicKey dgk_public_key,
-                                                           LabelEncoder encoder)
+                                                           DGKPublicKey dgk_public_key, ExecutorService executor,
+                                                           StringBuilder debug)
             throws IOException, HomomorphicException {
-
-        BigInteger integerValuePaillier;
-        BigInteger integerValueDGK;
-        BigInteger temp;
+        List<String> names = new ArrayList<>();
+        List<Future<BigIntegers>> encrypted = new ArrayList<>();
         HashMap<String, BigIntegers> values = new HashMap<>();
         double double_value;
+        long start_time = System.nanoTime();
 
         try (BufferedReader br = new BufferedReader(new FileReader(path))) {
             String line;
@@ -118,6 +245,12 @@ public final class features implements Serializable {
                 String[] split = line.split("\\t");
                 key = split[0];
                 value = split[1];
+                if (manifest != null && !manifest.contains(key)) {
+                    debug.append(key).append(" not used by the model\n");
+                    continue;
+                }
+                boolean paillier = manifest == null || manifest.needs_paillier(key);
+                boolean dgk = manifest == null || manifest.needs_dgk(key);
 
                 // I need to refer to label encoder after training to know what I am doing...
                 try {
@@ -126,15 +259,72 @@ public final class features implements Serializable {
                 catch (NumberFormatException e) {
                     double_value = encoder.encode(value).doubleValue();
                 }
-                temp = NodeInfo.set_precision(double_value, precision);
-                integerValuePaillier = PaillierCipher.encrypt(temp, paillier_public_key);
-                integerValueDGK = DGKOperations.encrypt(temp, dgk_public_key);
-                values.put(key, new BigIntegers(integerValuePaillier, integerValueDGK));
+                BigInteger temp = NodeInfo.set_precision(double_value, precision);
+                debug.append(key).append(" -> ").append(temp).append("\n");
+                names.add(key);
+                if (pool != null) {
+                    encrypted.add(executor.submit(() -> new BigIntegers(
+                            paillier ? pool.encrypt_paillier(temp) : null,
+                            dgk ? pool.encrypt_dgk(temp) : null)));
+                }
+                else {
+                    encrypted.add(executor.submit(() -> new BigIntegers(
+                            paillier ? encrypt_paillier(temp, paillier_public_key) : null,
+                            dgk ? encrypt_dgk(temp, dgk_public_key) : null)));
+                }
+            }
+        }
+        long parse_done = System.nanoTime();
+
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                values.put(names.get(i), encrypted.get(i).get());
             }
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HomomorphicException("Interrupted while encrypting features");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof HomomorphicException) {
+                throw (HomomorphicException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            for (Future<BigIntegers> pending : encrypted) {
+                pending.cancel(true);
+            }
+        }
+        long stop_time = System.nanoTime();
+
+        this.parse_time = (double) (parse_done - start_time) / 1000000;
+        this.encryption_time = (double) (stop_time - parse_done) / 1000000;
+        logger.info("Parsed {} attributes in {} ms, finished encrypting them {} ms later",
+                names.size(), parse_time, encryption_time);
         return values;
     }
 
+    private static BigInteger encrypt_paillier(BigInteger value, PaillierPublicKey paillier_public_key)
+            throws HomomorphicException {
+        paillier_encryptions.inc();
+        return PaillierCipher.encrypt(value, paillier_public_key);
+    }
+
+    private static BigInteger encrypt_dgk(BigInteger value, DGKPublicKey dgk_public_key) {
+        dgk_encryptions.inc();
+        return DGKOperations.encrypt(value, dgk_public_key);
+    }
+
+    public static HashMap<String, BigIntegers> read_values(String path,
+                                                           int precision,
+                                                           PaillierPublicKey paillier_public_key,
+                                                           DGKPublicKey dgk_public_key,
+                                                           LabelEncoder encoder)
+            throws IOException, HomomorphicException {
+        return new features(path, precision, paillier_public_key, dgk_public_key, encoder).thresholds;
+    }
+
     public String toString() {
         return thresh_hold_map;
     }
@@ -0,0 +1,80 @@
+package weka.finito.structs;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several encrypted feature vectors from the same client, evaluated together.
+ * A level-site runs the comparisons of every record over one connection to the client,
+ * then forwards only the records that did not reach a leaf, keeping their order.
+ * The client tracks its pending records in the same order, so no record ids are needed.
+ */
+public final class features_batch implements Serializable {
+    @Serial
+    private static final long serialVersionUID = -4413213744582453436L;
+    private final ArrayList<features> records;
+    private final String client_ip;
+    private final int client_port;
+    private long request_id;
+
+    public features_batch(List<features> records, String client_ip, int client_port) {
+        this(records, client_ip, client_port, 0);
+    }
+
+    public features_batch(List<features> records, String client_ip, int client_port, long request_id) {
+        this.records = new ArrayList<>(records);
+        this.client_ip = client_ip;
+        this.client_port = client_port;
+        this.request_id = request_id;
+    }
+
+    public List<features> get_records() {
+        return this.records;
+    }
+
+    public int size() {
+        return this.records.size();
+    }
+
+    public String get_client_ip() {
+        return this.client_ip;
+    }
+
+    public int get_client_port() {
+        return this.client_port;
+    }
+
+    // The records of a batch come from one client, for one model
+    public String get_model_id() {
+        return records.isEmpty() ? level_order_site.DEFAULT_MODEL : records.get(0).get_model_id();
+    }
+
+    public String get_key_id() {
+        return records.isEmpty() ? null : records.get(0).get_key_id();
+    }
+
+    public String get_hosted_id() {
+        return level_order_site.hosted_id(get_model_id(), get_key_id());
+    }
+
+    public long get_request_id() {
+        return this.request_id;
+    }
+
+    public void set_request_id(long request_id) {
+        this.request_id = request_id;
+    }
+
+    public long get_version() {
+        return records.isEmpty() ? 0 : records.get(0).get_version();
+    }
+
+    // Every record is evaluated with the version level-site 0 had when the batch came in
+    public void set_version(long version) {
+        for (features record : records) {
+            record.set_version(version);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package weka.finito.structs;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.zip.CRC32;
+
+/*
+ * Nodes of a level the server-site streams to a level-site after the level_order_site without them,
+ * so neither side holds the whole level in one object on the wire. The nodes are a LEVEL_NODES frame,
+ * see binary_codec.encode_nodes, starting at node offset of the level, with a checksum of the frame.
+ */
+public final class level_chunk implements Serializable {
+    @Serial
+    private static final long serialVersionUID = -6094435238306714630L;
+    private final int offset;
+    private final byte [] nodes;
+    private final long checksum;
+
+    public level_chunk(int offset, byte [] nodes) {
+        this.offset = offset;
+        this.nodes = nodes;
+        this.checksum = checksum(nodes);
+    }
+
+    private static long checksum(byte [] nodes) {
+        CRC32 crc = new CRC32();
+        crc.update(nodes);
+        return crc.getValue();
+    }
+
+    public int get_offset() {
+        return this.offset;
+    }
+
+    public byte [] get_nodes() {
+        return this.nodes;
+    }
+
+    public boolean is_intact() {
+        return nodes != null && checksum(nodes) == checksum;
+    }
+}
@@ -16,6 +16,8 @@ import java.util.List;
 public final class level_order_site implements Serializable {
 	@Serial
 	private static final long serialVersionUID = 575566807906351024L;
+	// Levels and features without a model id, e.g. from before model ids, belong to this model
+	public static final String DEFAULT_MODEL = "default";
     private final int level;
 	public final PaillierPublicKey paillier_public_key;
 	public final DGKPublicKey dgk_public_key;
@@ -24,6 +26,16 @@ public final class level_order_site implements Serializable {
 	private String next_level_site = null;
 	private int next_level_site_port = -1;
 	private int level_site_listening_port = -1;
+	// A level-site can host the levels of several models, the features name the model to evaluate
+	private String model_id = DEFAULT_MODEL;
+	// The client key set the level is encrypted under, null with a single key set per model
+	private String key_id = null;
+	// Bumped by the server-site every time the model is trained again, see level_site_models.activate
+	private long version = 0;
+	// Nodes that follow in level_chunk objects, 0 if the level comes with its nodes
+	private int streamed_nodes = 0;
+	// Not sent, each level-site compiles the nodes it receives
+	private transient volatile evaluation_plan plan = null;
 
 	public level_order_site(int level, PaillierPublicKey paillier_public_key, DGKPublicKey dgk_public_key) {
 		this.level = level;
@@ -33,6 +45,61 @@ public final class level_order_site implements Serializable {
 	public int get_level() {
 		return this.level;
 	}
+	public String get_model_id() {
+		return model_id == null ? DEFAULT_MODEL : model_id;
+	}
+	public void set_model_id(String model_id) {
+		this.model_id = model_id;
+	}
+	public String get_key_id() {
+		return this.key_id;
+	}
+	public void set_key_id(String key_id) {
+		this.key_id = key_id;
+	}
+	public long get_version() {
+		return this.version;
+	}
+	public void set_version(long version) {
+		this.version = version;
+	}
+	public int get_streamed_nodes() {
+		return this.streamed_nodes;
+	}
+	public void set_streamed_nodes(int streamed_nodes) {
+		this.streamed_nodes = streamed_nodes;
+	}
+	// Everything but the nodes, which the server-site streams after it
+	public level_order_site streamed_header() {
+		level_order_site header = header(paillier_public_key, dgk_public_key);
+		header.streamed_nodes = node_level_data.size();
+		return header;
+	}
+	// The same level with other instances of its keys, a level-site keeps one per key set for all of its models
+	public level_order_site with_keys(PaillierPublicKey paillier_public_key, DGKPublicKey dgk_public_key) {
+		level_order_site site = header(paillier_public_key, dgk_public_key);
+		site.streamed_nodes = streamed_nodes;
+		site.node_level_data.addAll(node_level_data);
+		site.plan = plan;
+		return site;
+	}
+	private level_order_site header(PaillierPublicKey paillier_public_key, DGKPublicKey dgk_public_key) {
+		level_order_site header = new level_order_site(level, paillier_public_key, dgk_public_key);
+		header.next_level_site = next_level_site;
+		header.next_level_site_port = next_level_site_port;
+		header.level_site_listening_port = level_site_listening_port;
+		header.model_id = model_id;
+		header.key_id = key_id;
+		header.version = version;
+		return header;
+	}
+	// What a level-site hosts the level under, one copy of the model per client key set
+	public String get_hosted_id() {
+		return hosted_id(get_model_id(), key_id);
+	}
+	public static String hosted_id(String model_id, String key_id) {
+		return key_id == null ? model_id : model_id + "#" + key_id;
+	}
 	public int get_listen_port() {
 		return this.level_site_listening_port;
 	}
@@ -56,12 +123,24 @@ public final class level_order_site implements Serializable {
 	}
     public void append_data(NodeInfo info) {
     	node_level_data.add(info);
+		plan = null;
     }
+
+	// Compiled once, the level-sites and server-site call it as soon as they are trained
+	public evaluation_plan get_plan() {
+		evaluation_plan compiled = plan;
+		if (compiled == null) {
+			compiled = new evaluation_plan(node_level_data);
+			plan = compiled;
+		}
+		return compiled;
+	}
     
     public String toString() {
     	StringBuilder output = new StringBuilder();
     	int num = 0;
-    	output.append("level: ").append(get_level()).append("\n");
+    	output.append("model: ").append(get_hosted_id()).append(", version: ").append(get_version())
+				.append(", level: ").append(get_level()).append("\n");
 		output.append("Listening from previous level-site at port: ").append(get_listen_port()).append("\n");
 		output.append("Next Level-Site: ").append(get_next_level_site()).append(
 				":").append(get_next_level_site_port()).append("\n");
@@ -0,0 +1,30 @@
+package weka.finito.structs;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/*
+ * Sent by the server-site to every level-site once each of them has the levels of a new version of a model,
+ * so they all switch to it. Requests level-site 0 already started go on with the version they started with.
+ */
+public final class model_epoch implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 2417705385211940412L;
+    private final String model_id;
+    private final String key_id;
+    private final long version;
+
+    public model_epoch(String model_id, String key_id, long version) {
+        this.model_id = model_id;
+        this.key_id = key_id;
+        this.version = version;
+    }
+
+    public String get_hosted_id() {
+        return level_order_site.hosted_id(model_id, key_id);
+    }
+
+    public long get_version() {
+        return this.version;
+    }
+}
@@ -0,0 +1,41 @@
+package weka.finito.structs;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/*
+ * All-nodes mode: once a level-site knows which of its nodes was in scope, it sends the index in scope
+ * of the next level down the chain, or -1 if the leaf was found, so the next level-sites answer the client.
+ */
+public final class resolved_index implements Serializable {
+    @Serial
+    private static final long serialVersionUID = -7013370251478402169L;
+    private final String model_id;
+    private final String key_id;
+    private final long request_id;
+    private final int index;
+
+    // Request ids are only unique within the chain of a model, and the index is for one copy of it
+    public resolved_index(String model_id, String key_id, long request_id, int index) {
+        this.model_id = model_id;
+        this.key_id = key_id;
+        this.request_id = request_id;
+        this.index = index;
+    }
+
+    public String get_model_id() {
+        return this.model_id;
+    }
+
+    public String get_key_id() {
+        return this.key_id;
+    }
+
+    public long get_request_id() {
+        return this.request_id;
+    }
+
+    public int get_index() {
+        return this.index;
+    }
+}
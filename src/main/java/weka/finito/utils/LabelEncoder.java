@@ -1,9 +1,13 @@
 package weka.finito.utils;
+import java.io.Serial;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.HashMap;
 
 public final class LabelEncoder implements Serializable {
+    // The implicit one of the class before it changed, so encoders written before still read
+    @Serial
+    private static final long serialVersionUID = -8345152591115074949L;
     private final HashMap<String, BigInteger> labelToIndex;
     private final HashMap<BigInteger, String> indexToLabel;
     private int currentIndex;
@@ -14,6 +18,13 @@ public final class LabelEncoder implements Serializable {
         currentIndex = 0;
     }
 
+    // Trained again, the model keeps the labels the clients already encode
+    public LabelEncoder(LabelEncoder other) {
+        labelToIndex = new HashMap<>(other.labelToIndex);
+        indexToLabel = new HashMap<>(other.indexToLabel);
+        currentIndex = other.currentIndex;
+    }
+
     public BigInteger encode(String label) {
         if (!labelToIndex.containsKey(label)) {
             labelToIndex.put(label, BigInteger.valueOf(currentIndex));
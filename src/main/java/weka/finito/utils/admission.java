@@ -0,0 +1,63 @@
+package weka.finito.utils;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Bounds the evaluations run at once, with a bounded number more waiting for their turn.
+ * A virtual thread per connection costs nothing to start, so without it a burst of clients would all compare
+ * at once and each would take as long as the whole burst. While every worker is busy and the queue is full,
+ * admit() blocks its caller. On the server-site it is the accepting thread, so the next clients wait in the backlog
+ * of the socket instead of in memory. Level-site 0 admits a connection once it read features from it, so the
+ * server-site training or switching a model is never stuck behind the clients.
+ */
+public final class admission {
+    private final Semaphore running;
+    private final Semaphore admitted;
+
+    public admission(String queue, int workers, int queue_size) {
+        running = new Semaphore(Math.max(1, workers), true);
+        admitted = new Semaphore(Math.max(1, workers) + Math.max(0, queue_size));
+        metrics.gauge("ppdt_queue_depth", "Requests waiting to be handled, by queue",
+                running::getQueueLength, "queue", queue);
+    }
+
+    // A place in the queue, given back once, when the connection is done with or turns out to need none
+    public final class ticket implements AutoCloseable {
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private ticket() {
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                admitted.release();
+            }
+        }
+    }
+
+    // Called before a client connection is evaluated, by the accepting thread or the thread of the connection
+    public ticket admit() {
+        admitted.acquireUninterruptibly();
+        return new ticket();
+    }
+
+    // Runs a task once a worker is free. A request forwarded by the previous level-site was admitted there,
+    // it only waits for a worker, the link keeps being read.
+    public void run(Runnable task) {
+        try {
+            running.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            task.run();
+        }
+        finally {
+            running.release();
+        }
+    }
+}
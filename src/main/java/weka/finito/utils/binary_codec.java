@@ -0,0 +1,587 @@
+package weka.finito.utils;
+
+import security.dgk.DGKPublicKey;
+import security.paillier.PaillierPublicKey;
+import weka.finito.structs.BigIntegers;
+import weka.finito.structs.NodeInfo;
+import weka.finito.structs.features;
+import weka.finito.structs.features_batch;
+import weka.finito.structs.level_order_site;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versioned binary encoding of what goes between the client, server-site and level-sites,
+ * used instead of Java serialization when WIRE_FORMAT=binary.
+ * <p>
+ * A frame is [version][type] followed by the body, all big-endian.
+ * Attribute names are written once per frame in a dictionary, then referred to by a 2-byte id.
+ * Ciphertexts are unsigned and padded to the same width within a frame, the widths are in the frame header.
+ * Leaves are the Paillier ciphertext itself, rather than its decimal string.
+ * The frame goes over the existing object streams as a byte array, which is its length prefix.
+ * The receiver can read either format, so only the sender needs the setting.
+ * Features and levels of a model other than the default one start with [MODEL][model id] before their type,
+ * so the frames of the default model, and the model cache entries, are the same as before model ids.
+ * Likewise, features and levels of one of several client key sets of a model have a [KEY][key id] prefix,
+ * and those of a model trained again have a [MODEL_VERSION][version] prefix.
+ * A level whose nodes are streamed after it, see level_chunk, has a [STREAMED][node count] prefix.
+ */
+public final class binary_codec {
+    // Version 3 frames may hold splits stored once with the PAIRED flag, a version 2 decoder would take each of them
+    // for one node, so it must reject them. Version 2 frames, e.g. in the model cache, have no paired splits.
+    public static final byte VERSION = 3;
+    private static final byte OLDEST_VERSION = 2;
+    public static final boolean ENABLED = "binary".equalsIgnoreCase(System.getenv("WIRE_FORMAT"));
+
+    private static final byte FEATURES = 1;
+    private static final byte FEATURES_BATCH = 2;
+    private static final byte LEVEL_ORDER_SITE = 3;
+    private static final byte LEVEL_NODES = 4;
+    // A record for the all-nodes mode, a frame type of its own keeps the encoding of the others as it is
+    private static final byte FEATURES_ALL_NODES = 5;
+    // Prefix naming the model of the frame that follows it
+    private static final byte MODEL = 6;
+    // Prefix naming the client key set of the frame that follows it
+    private static final byte KEY = 7;
+    // Prefix with the version of the model of the frame that follows it
+    private static final byte MODEL_VERSION = 8;
+    // Prefix with the number of nodes streamed after the level of the frame that follows it
+    private static final byte STREAMED = 9;
+
+    // NodeInfo and attribute flags
+    private static final byte LEAF = 1;
+    private static final byte HAS_PAILLIER = 2;
+    private static final byte HAS_DGK = 4;
+    private static final byte PAIRED = 8;
+
+    private binary_codec() {
+    }
+
+    public static boolean supports(Object o) {
+        return o instanceof features || o instanceof features_batch || o instanceof level_order_site;
+    }
+
+    public static byte [] encode(Object o) throws IOException {
+        writer out = new writer();
+        out.put(VERSION);
+        String model_id = model_id(o);
+        if (model_id != null && !model_id.equals(level_order_site.DEFAULT_MODEL)) {
+            out.put(MODEL);
+            out.put_string(model_id);
+        }
+        String key_id = key_id(o);
+        if (key_id != null) {
+            out.put(KEY);
+            out.put_string(key_id);
+        }
+        long version = version(o);
+        if (version != 0) {
+            out.put(MODEL_VERSION);
+            out.put_long(version);
+        }
+        if (o instanceof level_order_site && ((level_order_site) o).get_streamed_nodes() != 0) {
+            out.put(STREAMED);
+            out.put_int(((level_order_site) o).get_streamed_nodes());
+        }
+        if (o instanceof features) {
+            out.put(((features) o).is_all_nodes() ? FEATURES_ALL_NODES : FEATURES);
+            encode_records(out, List.of((features) o));
+        }
+        else if (o instanceof features_batch) {
+            features_batch batch = (features_batch) o;
+            out.put(FEATURES_BATCH);
+            out.put_string(batch.get_client_ip());
+            out.put_int(batch.get_client_port());
+            out.put_long(batch.get_request_id());
+            encode_records(out, batch.get_records());
+        }
+        else if (o instanceof level_order_site) {
+            out.put(LEVEL_ORDER_SITE);
+            encode_level_order_site(out, (level_order_site) o);
+        }
+        else {
+            throw new IllegalArgumentException("No binary encoding for " + o.getClass().getName());
+        }
+        return out.to_array();
+    }
+
+    private static String model_id(Object o) {
+        if (o instanceof features) {
+            return ((features) o).get_model_id();
+        }
+        if (o instanceof features_batch) {
+            return ((features_batch) o).get_model_id();
+        }
+        if (o instanceof level_order_site) {
+            return ((level_order_site) o).get_model_id();
+        }
+        return null;
+    }
+
+    private static String key_id(Object o) {
+        if (o instanceof features) {
+            return ((features) o).get_key_id();
+        }
+        if (o instanceof features_batch) {
+            return ((features_batch) o).get_key_id();
+        }
+        if (o instanceof level_order_site) {
+            return ((level_order_site) o).get_key_id();
+        }
+        return null;
+    }
+
+    private static long version(Object o) {
+        if (o instanceof features) {
+            return ((features) o).get_version();
+        }
+        if (o instanceof features_batch) {
+            return ((features_batch) o).get_version();
+        }
+        if (o instanceof level_order_site) {
+            return ((level_order_site) o).get_version();
+        }
+        return 0;
+    }
+
+    // The nodes of a level without the keys or the routing to other level-sites, see decode_nodes
+    public static byte [] encode_nodes(level_order_site site) {
+        return encode_nodes(site, 0, site.get_node_data().size());
+    }
+
+    // Nodes from (inclusive) to (exclusive) of a level, what a level_chunk carries
+    public static byte [] encode_nodes(level_order_site site, int from, int to) {
+        writer out = new writer();
+        out.put(VERSION);
+        out.put(LEVEL_NODES);
+        out.put_int(site.get_level());
+        encode_nodes(out, site.get_node_data().subList(from, to));
+        return out.to_array();
+    }
+
+    // Reads a frame of encode_nodes() from any buffer, including a memory-mapped file, with the keys it was made for
+    public static level_order_site decode_nodes(ByteBuffer in, PaillierPublicKey paillier_public_key,
+                                                DGKPublicKey dgk_public_key) throws IOException {
+        try {
+            check_version(in);
+            byte type = in.get();
+            if (type != LEVEL_NODES) {
+                throw new StreamCorruptedException("Expected the nodes of a level, got frame type " + type);
+            }
+            level_order_site site = new level_order_site(in.getInt(), paillier_public_key, dgk_public_key);
+            decode_nodes(in, site);
+            return site;
+        }
+        catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated frame of " + in.limit() + " bytes");
+        }
+    }
+
+    private static void check_version(ByteBuffer in) throws StreamCorruptedException {
+        byte version = in.get();
+        if (version < OLDEST_VERSION || version > VERSION) {
+            throw new StreamCorruptedException("Unsupported wire format version " + version);
+        }
+    }
+
+    public static Object decode(byte [] frame) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        try {
+            check_version(in);
+            byte type = in.get();
+            String model_id = null;
+            if (type == MODEL) {
+                model_id = get_string(in);
+                type = in.get();
+            }
+            String key_id = null;
+            if (type == KEY) {
+                key_id = get_string(in);
+                type = in.get();
+            }
+            long version = 0;
+            if (type == MODEL_VERSION) {
+                version = in.getLong();
+                type = in.get();
+            }
+            int streamed_nodes = 0;
+            if (type == STREAMED) {
+                streamed_nodes = in.getInt();
+                type = in.get();
+            }
+            switch (type) {
+                case FEATURES:
+                    return decode_records(in, model_id, key_id, version).get(0);
+                case FEATURES_ALL_NODES:
+                    features all_nodes = decode_records(in, model_id, key_id, version).get(0);
+                    all_nodes.set_all_nodes(true);
+                    return all_nodes;
+                case FEATURES_BATCH:
+                    String client_ip = get_string(in);
+                    int client_port = in.getInt();
+                    long request_id = in.getLong();
+                    return new features_batch(decode_records(in, model_id, key_id, version), client_ip, client_port, request_id);
+                case LEVEL_ORDER_SITE:
+                    level_order_site site = decode_level_order_site(in);
+                    site.set_model_id(model_id);
+                    site.set_key_id(key_id);
+                    site.set_version(version);
+                    site.set_streamed_nodes(streamed_nodes);
+                    return site;
+                default:
+                    throw new StreamCorruptedException("Unknown frame type " + type);
+            }
+        }
+        catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated frame of " + frame.length + " bytes");
+        }
+    }
+
+    /*
+     * [dictionary][paillier width][dgk width][record count]
+     * then per record: [client ip][client port][request id][current index][next index][count] and
+     * per attribute: [attribute id][flags][paillier][dgk], either ciphertext may be missing if the model doesn't need it
+     */
+    private static void encode_records(writer out, List<features> records) {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        int paillier_width = 0;
+        int dgk_width = 0;
+        for (features record : records) {
+            for (Map.Entry<String, BigIntegers> attribute : record.get_all_thresholds().entrySet()) {
+                dictionary.putIfAbsent(attribute.getKey(), dictionary.size());
+                paillier_width = Math.max(paillier_width, width(attribute.getValue().integerValuePaillier()));
+                dgk_width = Math.max(dgk_width, width(attribute.getValue().integerValueDGK()));
+            }
+        }
+        put_dictionary(out, dictionary);
+        out.put_short(paillier_width);
+        out.put_short(dgk_width);
+        out.put_int(records.size());
+
+        for (features record : records) {
+            out.put_string(record.get_client_ip());
+            out.put_int(record.get_client_port());
+            out.put_long(record.get_request_id());
+            out.put_int(record.get_current_index());
+            out.put_int(record.get_next_index());
+            Map<String, BigIntegers> thresholds = record.get_all_thresholds();
+            out.put_short(thresholds.size());
+            for (Map.Entry<String, BigIntegers> attribute : thresholds.entrySet()) {
+                BigInteger paillier = attribute.getValue().integerValuePaillier();
+                BigInteger dgk = attribute.getValue().integerValueDGK();
+                out.put_short(dictionary.get(attribute.getKey()));
+                out.put((byte) ((paillier != null ? HAS_PAILLIER : 0) | (dgk != null ? HAS_DGK : 0)));
+                if (paillier != null) {
+                    out.put_cipher(paillier, paillier_width);
+                }
+                if (dgk != null) {
+                    out.put_cipher(dgk, dgk_width);
+                }
+            }
+        }
+    }
+
+    private static List<features> decode_records(ByteBuffer in, String model_id, String key_id, long version)
+            throws StreamCorruptedException {
+        String [] dictionary = get_dictionary(in);
+        int paillier_width = get_unsigned_short(in);
+        int dgk_width = get_unsigned_short(in);
+        int count = in.getInt();
+        List<features> records = new ArrayList<>(Math.min(count, in.remaining()));
+
+        for (int i = 0; i < count; i++) {
+            String client_ip = get_string(in);
+            int client_port = in.getInt();
+            long request_id = in.getLong();
+            int current_index = in.getInt();
+            int next_index = in.getInt();
+            int attributes = get_unsigned_short(in);
+            HashMap<String, BigIntegers> thresholds = new HashMap<>();
+            for (int j = 0; j < attributes; j++) {
+                String name = lookup(dictionary, get_unsigned_short(in));
+                byte flags = in.get();
+                BigInteger paillier = (flags & HAS_PAILLIER) != 0 ? get_cipher(in, paillier_width) : null;
+                BigInteger dgk = (flags & HAS_DGK) != 0 ? get_cipher(in, dgk_width) : null;
+                thresholds.put(name, new BigIntegers(paillier, dgk));
+            }
+            features record = new features(thresholds, client_ip, client_port);
+            record.set_model_id(model_id);
+            record.set_key_id(key_id);
+            record.set_version(version);
+            record.set_request_id(request_id);
+            record.set_current_index(current_index);
+            record.set_next_index(next_index);
+            records.add(record);
+        }
+        return records;
+    }
+
+    /*
+     * [level][next level-site][next port][listen port][keys][nodes]
+     * The nodes are [dictionary][paillier width][dgk width][node count]
+     * then per node: [flags][comparison type][attribute id, or the leaf ciphertext][paillier][dgk],
+     * a paired split, see NodeInfo.is_paired, has the PAIRED flag
+     * The plaintext threshold and leaf kept in NodeInfo for debugging are not sent.
+     */
+    private static void encode_level_order_site(writer out, level_order_site site) throws IOException {
+        out.put_int(site.get_level());
+        out.put_string(site.get_next_level_site());
+        out.put_int(site.get_next_level_site_port());
+        out.put_int(site.get_listen_port());
+        // The key classes do not expose all their parameters, they keep their own serialized form
+        out.put_bytes(serialize_keys(site.paillier_public_key, site.dgk_public_key));
+        encode_nodes(out, site.get_node_data());
+    }
+
+    private static void encode_nodes(writer out, List<NodeInfo> nodes) {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        int paillier_width = 0;
+        int dgk_width = 0;
+        for (NodeInfo node : nodes) {
+            if (node.isLeaf()) {
+                paillier_width = Math.max(paillier_width, width(new BigInteger(node.getVariableName())));
+            }
+            else {
+                dictionary.putIfAbsent(node.getVariableName(), dictionary.size());
+            }
+            paillier_width = Math.max(paillier_width, width(node.getPaillier()));
+            dgk_width = Math.max(dgk_width, width(node.getDGK()));
+        }
+        put_dictionary(out, dictionary);
+        out.put_short(paillier_width);
+        out.put_short(dgk_width);
+        out.put_int(nodes.size());
+
+        for (NodeInfo node : nodes) {
+            byte flags = 0;
+            if (node.isLeaf()) {
+                flags |= LEAF;
+            }
+            if (node.getPaillier() != null) {
+                flags |= HAS_PAILLIER;
+            }
+            if (node.getDGK() != null) {
+                flags |= HAS_DGK;
+            }
+            if (node.is_paired()) {
+                flags |= PAIRED;
+            }
+            out.put(flags);
+            out.put((byte) node.comparisonType);
+            if (node.isLeaf()) {
+                out.put_cipher(new BigInteger(node.getVariableName()), paillier_width);
+            }
+            else {
+                out.put_short(dictionary.get(node.getVariableName()));
+            }
+            if (node.getPaillier() != null) {
+                out.put_cipher(node.getPaillier(), paillier_width);
+            }
+            if (node.getDGK() != null) {
+                out.put_cipher(node.getDGK(), dgk_width);
+            }
+        }
+    }
+
+    private static level_order_site decode_level_order_site(ByteBuffer in) throws IOException {
+        int level = in.getInt();
+        String next_level_site = get_string(in);
+        int next_level_site_port = in.getInt();
+        int listen_port = in.getInt();
+        Object [] keys = deserialize_keys(get_bytes(in));
+
+        level_order_site site = new level_order_site(level, (PaillierPublicKey) keys[0], (DGKPublicKey) keys[1]);
+        site.set_next_level_site(next_level_site);
+        site.set_next_level_site_port(next_level_site_port);
+        site.set_listen_port(listen_port);
+        decode_nodes(in, site);
+        return site;
+    }
+
+    private static void decode_nodes(ByteBuffer in, level_order_site site) throws StreamCorruptedException {
+        String [] dictionary = get_dictionary(in);
+        int paillier_width = get_unsigned_short(in);
+        int dgk_width = get_unsigned_short(in);
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            byte flags = in.get();
+            int comparison_type = in.get();
+            NodeInfo node;
+            if ((flags & LEAF) != 0) {
+                node = new NodeInfo(true, get_cipher(in, paillier_width).toString(), comparison_type);
+            }
+            else {
+                node = new NodeInfo(false, lookup(dictionary, get_unsigned_short(in)), comparison_type);
+            }
+            if ((flags & HAS_PAILLIER) != 0) {
+                node.setPaillier(get_cipher(in, paillier_width));
+            }
+            if ((flags & HAS_DGK) != 0) {
+                node.setDGK(get_cipher(in, dgk_width));
+            }
+            node.set_paired((flags & PAIRED) != 0);
+            site.append_data(node);
+        }
+    }
+
+    private static byte [] serialize_keys(PaillierPublicKey paillier, DGKPublicKey dgk) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream keys = new ObjectOutputStream(bytes)) {
+            keys.writeObject(paillier);
+            keys.writeObject(dgk);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object [] deserialize_keys(byte [] serialized) throws IOException {
+        try (ObjectInputStream keys = shared.get_ois(new ByteArrayInputStream(serialized))) {
+            return new Object[] { keys.readObject(), keys.readObject() };
+        }
+        catch (ClassNotFoundException e) {
+            throw new StreamCorruptedException("Unexpected class in the public keys: " + e.getMessage());
+        }
+    }
+
+    private static void put_dictionary(writer out, Map<String, Integer> dictionary) {
+        out.put_short(dictionary.size());
+        for (String name : dictionary.keySet()) {
+            out.put_string(name);
+        }
+    }
+
+    private static String [] get_dictionary(ByteBuffer in) {
+        String [] dictionary = new String[get_unsigned_short(in)];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = get_string(in);
+        }
+        return dictionary;
+    }
+
+    private static int get_unsigned_short(ByteBuffer in) {
+        return Short.toUnsignedInt(in.getShort());
+    }
+
+    private static String lookup(String [] dictionary, int id) throws StreamCorruptedException {
+        if (id >= dictionary.length) {
+            throw new StreamCorruptedException("Unknown attribute id " + id);
+        }
+        return dictionary[id];
+    }
+
+    private static int width(BigInteger value) {
+        if (value == null) {
+            return 0;
+        }
+        return (value.bitLength() + 7) / 8;
+    }
+
+    // -1 length is null
+    private static String get_string(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte [] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte [] get_bytes(ByteBuffer in) {
+        byte [] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static BigInteger get_cipher(ByteBuffer in, int width) {
+        byte [] bytes = new byte[width];
+        in.get(bytes);
+        return new BigInteger(1, bytes);
+    }
+
+    // Growable big-endian buffer
+    private static final class writer {
+        private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+
+        private void put(byte value) {
+            ensure(1);
+            buffer.put(value);
+        }
+
+        private void put_short(int value) {
+            ensure(2);
+            buffer.putShort((short) value);
+        }
+
+        private void put_int(int value) {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        private void put_long(long value) {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        private void put_bytes(byte [] bytes) {
+            ensure(4 + bytes.length);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+
+        private void put_string(String value) {
+            if (value == null) {
+                put_int(-1);
+            }
+            else {
+                put_bytes(value.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        // Unsigned magnitude, left-padded with zeros to the width of the frame
+        private void put_cipher(BigInteger value, int width) {
+            byte [] bytes = value.toByteArray();
+            int offset = 0;
+            int length = bytes.length;
+            if (length > width) {
+                // Only the sign byte can be dropped
+                offset = length - width;
+                length = width;
+            }
+            ensure(width);
+            for (int i = length; i < width; i++) {
+                buffer.put((byte) 0);
+            }
+            buffer.put(bytes, offset, length);
+        }
+
+        private byte [] to_array() {
+            byte [] frame = new byte[buffer.position()];
+            buffer.flip();
+            buffer.get(frame);
+            return frame;
+        }
+    }
+}
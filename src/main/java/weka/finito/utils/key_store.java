@@ -0,0 +1,140 @@
+package weka.finito.utils;
+
+import security.dgk.DGKPrivateKey;
+import security.dgk.DGKPublicKey;
+import security.paillier.PaillierPrivateKey;
+import security.paillier.PaillierPublicKey;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyPair;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/*
+ * The key pairs of the client in one file:
+ * [magic][version] then [length][key] for the Paillier public, Paillier private, DGK public and DGK private keys.
+ * The keys are written with their tables, readKey() builds the DGK tables again, which takes seconds.
+ * With its table full, encrypting with the DGK public key only reads it, so it can be shared by threads.
+ * The frames are read in parallel. The file is created owner-only, as it holds the private keys.
+ */
+public final class key_store {
+    private static final Logger logger = LogManager.getLogger(key_store.class);
+    private static final int MAGIC = 0x50504b53;
+    private static final int VERSION = 1;
+
+    public record key_pairs(KeyPair paillier, KeyPair dgk) {
+    }
+
+    private key_store() {
+    }
+
+    // Written to a temporary file first, so a reader never sees half a key store
+    public static void store(Path path, KeyPair paillier, KeyPair dgk) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                write_key(out, paillier.getPublic());
+                write_key(out, paillier.getPrivate());
+                write_key(out, dgk.getPublic());
+                write_key(out, dgk.getPrivate());
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+        logger.info("Wrote the key pairs to {}", path);
+    }
+
+    // Throws if there is no key store, or it can't be read
+    public static key_pairs load(Path path) throws IOException, ClassNotFoundException {
+        long start_time = System.nanoTime();
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+        CompletableFuture<PaillierPublicKey> paillier_public;
+        CompletableFuture<PaillierPrivateKey> paillier_private;
+        CompletableFuture<DGKPublicKey> dgk_public;
+        CompletableFuture<DGKPrivateKey> dgk_private;
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new StreamCorruptedException("Not a key store of version " + VERSION);
+            }
+            paillier_public = read_key(in, PaillierPublicKey.class);
+            paillier_private = read_key(in, PaillierPrivateKey.class);
+            dgk_public = read_key(in, DGKPublicKey.class);
+            dgk_private = read_key(in, DGKPrivateKey.class);
+        }
+        catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated key store " + path);
+        }
+        try {
+            key_pairs keys = new key_pairs(
+                    new KeyPair(paillier_public.join(), paillier_private.join()),
+                    new KeyPair(dgk_public.join(), dgk_private.join()));
+            logger.info("Read the key pairs from {} in {} ms", path, (System.nanoTime() - start_time) / 1000000);
+            return keys;
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            if (e.getCause() instanceof ClassNotFoundException missing) {
+                throw missing;
+            }
+            throw e;
+        }
+    }
+
+    private static void write_key(DataOutputStream out, Serializable key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream object = new ObjectOutputStream(bytes)) {
+            object.writeObject(key);
+        }
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static <T> CompletableFuture<T> read_key(ByteBuffer in, Class<T> type) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        ByteArrayInputStream frame = new ByteArrayInputStream(in.array(), in.position(), length);
+        in.position(in.position() + length);
+        return CompletableFuture.supplyAsync(() -> {
+            try (ObjectInputStream object = new ObjectInputStream(frame)) {
+                Object key = object.readObject();
+                if (!type.isInstance(key)) {
+                    throw new StreamCorruptedException("Expected a " + type.getSimpleName());
+                }
+                return type.cast(key);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            catch (ClassNotFoundException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,108 @@
+package weka.finito.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Every latency of a load test, kept by name (end_to_end, classification, level_0, level_1, ...) so the
+ * percentiles are exact, unlike the fixed buckets of the metrics histograms.
+ * Names are reported in the order they were first recorded.
+ */
+public final class latency_recorder {
+    private final Map<String, List<Long>> latencies = new LinkedHashMap<>();
+    private long errors = 0;
+
+    // Latency percentiles of a name, in milliseconds
+    public record summary(String name, int count, double throughput, double mean, double p50, double p95,
+                          double p99, double max) {
+    }
+
+    public synchronized void record(String name, long nanos) {
+        latencies.computeIfAbsent(name, k -> new ArrayList<>()).add(nanos);
+    }
+
+    public synchronized void error() {
+        ++errors;
+    }
+
+    public synchronized long get_errors() {
+        return errors;
+    }
+
+    public synchronized int count(String name) {
+        List<Long> values = latencies.get(name);
+        return values == null ? 0 : values.size();
+    }
+
+    // Nearest rank, p from 0 to 100 of sorted values
+    public static long percentile(long [] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+    }
+
+    // elapsed_nanos is the length of the run, for the throughput of each name
+    public synchronized List<summary> summarize(long elapsed_nanos) {
+        double seconds = (double) elapsed_nanos / 1000000000L;
+        List<summary> summaries = new ArrayList<>();
+        for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+            long [] sorted = entry.getValue().stream().mapToLong(Long::longValue).sorted().toArray();
+            double mean = Arrays.stream(sorted).average().orElse(0);
+            summaries.add(new summary(entry.getKey(), sorted.length,
+                    seconds > 0 ? sorted.length / seconds : 0, mean / 1000000,
+                    millis(percentile(sorted, 50)), millis(percentile(sorted, 95)),
+                    millis(percentile(sorted, 99)), millis(percentile(sorted, 100))));
+        }
+        return summaries;
+    }
+
+    private static double millis(long nanos) {
+        return (double) nanos / 1000000;
+    }
+
+    public static String to_csv(List<summary> summaries) {
+        StringBuilder out = new StringBuilder("name,count,throughput_per_s,mean_ms,p50_ms,p95_ms,p99_ms,max_ms\n");
+        for (summary s : summaries) {
+            out.append(String.format(Locale.ROOT, "%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f\n", s.name(),
+                    s.count(), s.throughput(), s.mean(), s.p50(), s.p95(), s.p99(), s.max()));
+        }
+        return out.toString();
+    }
+
+    // settings are written as they are, e.g. clients, mode, the data set, before the latencies
+    public static String to_json(Map<String, Object> settings, long errors, List<summary> summaries) {
+        StringBuilder out = new StringBuilder("{\n");
+        for (Map.Entry<String, Object> setting : settings.entrySet()) {
+            out.append("  \"").append(setting.getKey()).append("\": ");
+            if (setting.getValue() instanceof Number) {
+                out.append(setting.getValue());
+            }
+            else {
+                out.append('"').append(escape(String.valueOf(setting.getValue()))).append('"');
+            }
+            out.append(",\n");
+        }
+        out.append("  \"errors\": ").append(errors).append(",\n");
+        out.append("  \"latencies\": [");
+        for (int i = 0; i < summaries.size(); i++) {
+            summary s = summaries.get(i);
+            out.append(i == 0 ? "\n" : ",\n");
+            out.append(String.format(Locale.ROOT, "    {\"name\": \"%s\", \"count\": %d, " +
+                            "\"throughput_per_s\": %.3f, \"mean_ms\": %.3f, \"p50_ms\": %.3f, " +
+                            "\"p95_ms\": %.3f, \"p99_ms\": %.3f, \"max_ms\": %.3f}",
+                    escape(s.name()), s.count(), s.throughput(), s.mean(), s.p50(), s.p95(), s.p99(), s.max()));
+        }
+        out.append(summaries.isEmpty() ? "]\n" : "\n  ]\n");
+        return out.append("}\n").toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,134 @@
+package weka.finito.utils;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+/*
+ * A view of a connected socket that counts the bytes going through its streams, for the bytes per hop metrics.
+ * alice/bob set_socket() and the object streams only ask a socket for its streams, so they can be given the view.
+ * Closing the view closes the socket.
+ */
+public final class metered_socket extends Socket {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    // The byte counters of a connection, in both directions
+    public static final class hop {
+        public final metrics.counter received;
+        public final metrics.counter sent;
+
+        public hop(metrics.counter received, metrics.counter sent) {
+            this.received = received;
+            this.sent = sent;
+        }
+
+        // peer is who is on the other end: client, level_site or server_site
+        public static hop of(String peer) {
+            return new hop(
+                    metrics.counter("ppdt_bytes_received_total", "Bytes read from connections, by peer",
+                            "peer", peer),
+                    metrics.counter("ppdt_bytes_sent_total", "Bytes written to connections, by peer",
+                            "peer", peer));
+        }
+    }
+
+    public metered_socket(Socket socket, String peer) throws IOException {
+        this(socket, hop.of(peer));
+    }
+
+    public metered_socket(Socket socket, hop counters) throws IOException {
+        this.socket = socket;
+        this.in = new counting_input(socket.getInputStream(), counters.received);
+        this.out = new counting_output(socket.getOutputStream(), counters.sent);
+    }
+
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    public InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    public SocketAddress getRemoteSocketAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    public int getPort() {
+        return socket.getPort();
+    }
+
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    public synchronized void close() throws IOException {
+        socket.close();
+    }
+
+    private static final class counting_input extends FilterInputStream {
+        private final metrics.counter counter;
+
+        private counting_input(InputStream in, metrics.counter counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                counter.inc();
+            }
+            return b;
+        }
+
+        public int read(byte [] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                counter.add(read);
+            }
+            return read;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            counter.add(skipped);
+            return skipped;
+        }
+    }
+
+    private static final class counting_output extends FilterOutputStream {
+        private final metrics.counter counter;
+
+        private counting_output(OutputStream out, metrics.counter counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.inc();
+        }
+
+        // FilterOutputStream writes one byte at a time
+        public void write(byte [] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.add(len);
+        }
+    }
+}
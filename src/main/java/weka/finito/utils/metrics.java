@@ -0,0 +1,262 @@
+package weka.finito.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/*
+ * Counters, gauges and histograms of every role, served in the Prometheus text format on
+ * http://<host>:METRICS_PORT/metrics. Without METRICS_PORT nothing listens, the metrics are still recorded.
+ * Look a metric up once and keep it, recording is then a LongAdder increment, cheap enough for the hot path.
+ * Histograms are of durations, with fixed buckets from 1 ms to 60 s.
+ */
+public final class metrics {
+    private static final Logger logger = LogManager.getLogger(metrics.class);
+    private static final double [] BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+            1, 2.5, 5, 10, 30, 60 };
+    private static final long [] BUCKET_NANOS = new long[BUCKETS.length];
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1000000000L);
+        }
+    }
+
+    private static final Map<String, family> families = new ConcurrentSkipListMap<>();
+    // After the registry, shared registers its metrics when it is initialized
+    public static final int PORT = shared.get_env_int("METRICS_PORT", 0);
+    private static HttpServer endpoint = null;
+
+    private metrics() {
+    }
+
+    private interface metric {
+        void write(StringBuilder out, String name, String labels);
+    }
+
+    // A name, its type and help, and one metric per set of label values
+    private static final class family {
+        private final String type;
+        private final String help;
+        private final Map<String, metric> children = new ConcurrentSkipListMap<>();
+
+        private family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    public static final class counter implements metric {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        public void write(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ').append(get()).append('\n');
+        }
+    }
+
+    // Either moved up and down, or read from a supplier at each scrape
+    public static final class gauge implements metric {
+        private final LongAdder value = new LongAdder();
+        private volatile LongSupplier supplier = null;
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void dec() {
+            value.decrement();
+        }
+
+        public long get() {
+            LongSupplier current = supplier;
+            return current == null ? value.sum() : current.getAsLong();
+        }
+
+        public void write(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ').append(get()).append('\n');
+        }
+    }
+
+    public static final class histogram implements metric {
+        // Not cumulative, the last one is +Inf
+        private final LongAdder [] buckets = new LongAdder[BUCKET_NANOS.length + 1];
+        private final LongAdder sum_nanos = new LongAdder();
+
+        private histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe_nanos(long nanos) {
+            int bucket = 0;
+            while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) {
+                ++bucket;
+            }
+            buckets[bucket].increment();
+            sum_nanos.add(nanos);
+        }
+
+        // start_time from System.nanoTime()
+        public void observe_since(long start_time) {
+            observe_nanos(System.nanoTime() - start_time);
+        }
+
+        public long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        public void write(StringBuilder out, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf";
+                out.append(name).append("_bucket").append(with_label(labels, "le", le))
+                        .append(' ').append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum").append(labels).append(' ')
+                    .append((double) sum_nanos.sum() / 1000000000L).append('\n');
+            out.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    // Labels are given as name, value, name, value...
+    public static counter counter(String name, String help, String... labels) {
+        return get(name, "counter", help, labels, counter::new);
+    }
+
+    public static gauge gauge(String name, String help, String... labels) {
+        return get(name, "gauge", help, labels, gauge::new);
+    }
+
+    // Registering the same gauge again replaces its supplier, e.g. the queue of a level-site trained again
+    public static gauge gauge(String name, String help, LongSupplier supplier, String... labels) {
+        gauge g = gauge(name, help, labels);
+        g.supplier = supplier;
+        return g;
+    }
+
+    public static histogram histogram(String name, String help, String... labels) {
+        return get(name, "histogram", help, labels, histogram::new);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends metric> T get(String name, String type, String help, String [] labels,
+                                            Supplier<T> create) {
+        family f = families.computeIfAbsent(name, k -> new family(type, help));
+        if (!f.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + f.type + ", not a " + type);
+        }
+        return (T) f.children.computeIfAbsent(format_labels(labels), k -> create.get());
+    }
+
+    private static String format_labels(String [] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return out.append('}').toString();
+    }
+
+    private static String with_label(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        if (labels.isEmpty()) {
+            return "{" + label + "}";
+        }
+        return labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // Every metric in the Prometheus text format
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            family f = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(f.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(f.type).append('\n');
+            for (Map.Entry<String, metric> child : f.children.entrySet()) {
+                child.getValue().write(out, name, child.getKey());
+            }
+        }
+        return out.toString();
+    }
+
+    // Starts the endpoint if METRICS_PORT is set, called once by the main() of each role
+    public static synchronized void start() {
+        if (PORT <= 0 || endpoint != null) {
+            return;
+        }
+        try {
+            endpoint = HttpServer.create(new InetSocketAddress(PORT), 0);
+            endpoint.createContext("/metrics", metrics::serve);
+            endpoint.start();
+            logger.info("Serving metrics on port {}", PORT);
+        }
+        catch (IOException e) {
+            logger.error("Unable to serve metrics on port {}", PORT, e);
+            endpoint = null;
+        }
+    }
+
+    public static synchronized void stop() {
+        if (endpoint != null) {
+            endpoint.stop(0);
+            endpoint = null;
+        }
+    }
+
+    private static void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte [] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package weka.finito.utils;
+
+import security.dgk.DGKPublicKey;
+import security.paillier.PaillierPublicKey;
+import weka.finito.structs.level_order_site;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.io.ByteArrayInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/*
+ * On-disk cache of the encrypted levels of a model, so a restarted server-site trains the level-sites again
+ * without encrypting a single threshold. An entry is keyed by the hash of the training file, the precision
+ * and the public keys of the client, and is one file:
+ * [magic][version][key][label encoder][level count] then per level [length][nodes of the level]
+ * The levels are in the binary wire format without the keys, read from a memory-mapped file.
+ * Set MODEL_CACHE_DIR to use it. Entries not used for MODEL_CACHE_MAX_DAYS are removed,
+ * then the least recently used ones until the directory is under MODEL_CACHE_MAX_MB.
+ */
+public final class model_cache {
+    private static final Logger logger = LogManager.getLogger(model_cache.class);
+    public static final String DIRECTORY = System.getenv("MODEL_CACHE_DIR");
+    public static final int MAX_MB = shared.get_env_int("MODEL_CACHE_MAX_MB", 1024);
+    public static final int MAX_DAYS = shared.get_env_int("MODEL_CACHE_MAX_DAYS", 30);
+    private static final int MAGIC = 0x50504454;
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".levels";
+
+    private final Path directory;
+    private final long max_bytes;
+    private final long max_age_millis;
+
+    public record cached_model(List<level_order_site> levels, LabelEncoder label_encoder) {
+    }
+
+    public model_cache(Path directory, long max_bytes, long max_age_millis) {
+        this.directory = directory;
+        this.max_bytes = max_bytes;
+        this.max_age_millis = max_age_millis;
+    }
+
+    // null if no cache directory is configured
+    public static model_cache from_environment() {
+        if (DIRECTORY == null || DIRECTORY.isEmpty()) {
+            return null;
+        }
+        return new model_cache(Paths.get(DIRECTORY), (long) MAX_MB * 1024 * 1024, (long) MAX_DAYS * 24 * 3600 * 1000);
+    }
+
+    // The key classes print every parameter of the key, which makes a fingerprint of it
+    public static String key(String training_data, int precision,
+                             PaillierPublicKey paillier_public_key, DGKPublicKey dgk_public_key) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte [] chunk = new byte[64 * 1024];
+        try (InputStream model = Files.newInputStream(Paths.get(training_data))) {
+            int read;
+            while ((read = model.read(chunk)) != -1) {
+                digest.update(chunk, 0, read);
+            }
+        }
+        digest.update(ByteBuffer.allocate(4).putInt(precision).array());
+        digest.update(paillier_public_key.toString().getBytes(StandardCharsets.UTF_8));
+        digest.update(dgk_public_key.toString().getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Names a client key set in features and on level-sites, the fingerprint of the keys alone, 16 hex digits
+    public static String key_id(PaillierPublicKey paillier_public_key, DGKPublicKey dgk_public_key) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(paillier_public_key.toString().getBytes(StandardCharsets.UTF_8));
+        digest.update(dgk_public_key.toString().getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest(), 0, 8);
+    }
+
+    // Returns null on a miss, an entry that can't be read is removed
+    public cached_model load(String key, PaillierPublicKey paillier_public_key, DGKPublicKey dgk_public_key) {
+        Path entry = directory.resolve(key + SUFFIX);
+        if (!Files.isRegularFile(entry)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new StreamCorruptedException("Not a model cache entry of version " + VERSION);
+            }
+            byte [] stored_key = new byte[get_length(in)];
+            in.get(stored_key);
+            if (!key.equals(new String(stored_key, StandardCharsets.UTF_8))) {
+                throw new StreamCorruptedException("Entry was written for another key");
+            }
+            byte [] encoder = new byte[get_length(in)];
+            in.get(encoder);
+            LabelEncoder label_encoder = read_label_encoder(encoder);
+
+            int count = in.getInt();
+            // Each level takes at least its length
+            if (count < 0 || count > in.remaining() / Integer.BYTES) {
+                throw new StreamCorruptedException("Entry claims " + count + " levels");
+            }
+            List<level_order_site> levels = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = get_length(in);
+                ByteBuffer frame = in.slice(in.position(), length);
+                levels.add(binary_codec.decode_nodes(frame, paillier_public_key, dgk_public_key));
+                in.position(in.position() + length);
+            }
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            logger.info("Read {} encrypted levels from {}", count, entry);
+            return new cached_model(levels, label_encoder);
+        }
+        catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            logger.warn("Dropping the unreadable model cache entry {}", entry, e);
+            delete(entry);
+            return null;
+        }
+    }
+
+    // A length read from the entry, checked before anything is allocated or sliced with it
+    private static int get_length(ByteBuffer in) throws StreamCorruptedException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new StreamCorruptedException("Length " + length + " with " + in.remaining() + " bytes left");
+        }
+        return length;
+    }
+
+    // Written to a temporary file first, so a reader never sees half an entry
+    public void store(String key, List<level_order_site> levels, LabelEncoder label_encoder) throws IOException {
+        Files.createDirectories(directory);
+        Path entry = directory.resolve(key + SUFFIX);
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                write_bytes(out, key.getBytes(StandardCharsets.UTF_8));
+                write_bytes(out, write_label_encoder(label_encoder));
+                out.writeInt(levels.size());
+                for (level_order_site level : levels) {
+                    write_bytes(out, binary_codec.encode_nodes(level));
+                }
+            }
+            Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+        logger.info("Wrote {} encrypted levels to {}", levels.size(), entry);
+        evict();
+    }
+
+    // Too old entries first, then the least recently used until the cache fits
+    public void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                entries.add(file);
+            }
+        }
+        long now = System.currentTimeMillis();
+        entries.sort(Comparator.comparingLong(model_cache::last_used).reversed());
+        long total = 0;
+        for (Path entry : entries) {
+            total += Files.size(entry);
+            if (now - last_used(entry) > max_age_millis || total > max_bytes) {
+                logger.info("Evicting model cache entry {}", entry);
+                delete(entry);
+            }
+        }
+    }
+
+    private static long last_used(Path entry) {
+        try {
+            return Files.getLastModifiedTime(entry).toMillis();
+        }
+        catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void delete(Path entry) {
+        try {
+            Files.deleteIfExists(entry);
+        }
+        catch (IOException e) {
+            logger.info("IO Exception in deleting {}", entry, e);
+        }
+    }
+
+    private static void write_bytes(DataOutputStream out, byte [] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte [] write_label_encoder(LabelEncoder label_encoder) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(label_encoder);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static LabelEncoder read_label_encoder(byte [] serialized) throws IOException {
+        try (ObjectInputStream in = shared.get_ois(new ByteArrayInputStream(serialized))) {
+            return (LabelEncoder) in.readObject();
+        }
+        catch (ClassNotFoundException | ClassCastException e) {
+            throw new StreamCorruptedException("Unexpected class for the label encoder: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package weka.finito.utils;
+
+import security.dgk.DGKOperations;
+import security.dgk.DGKPublicKey;
+import security.misc.HomomorphicException;
+import security.paillier.PaillierCipher;
+import security.paillier.PaillierPublicKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps a stock of encryptions of zero for the Paillier and DGK keys.
+ * An encryption of zero is just the blinding factor, r^n mod n^2 for Paillier and h^r mod n for DGK,
+ * which is the expensive modular exponentiation of an encryption.
+ * Background threads compute these while the role is idle, so that encrypting on the hot path only takes g^m
+ * and one multiplication. g^m is still an exponentiation, but by a plaintext of a few dozen bits instead of
+ * a blinding exponent as long as the key. Re-randomizing a ciphertext is a single multiplication.
+ * <p>
+ * Every element is handed out exactly once. Spare elements can be written to disk on shutdown,
+ * that file must be protected like a private key, as knowing r^n lets you strip the blinding off a ciphertext.
+ */
+public final class randomness_pool {
+    private static final Logger logger = LogManager.getLogger(randomness_pool.class);
+    public static final int DEFAULT_CAPACITY = shared.get_env_int("RANDOMNESS_POOL_SIZE", 256);
+    public static final int DEFAULT_THREADS = shared.get_env_int("RANDOMNESS_POOL_THREADS",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    private final PaillierPublicKey paillier_public_key;
+    private final DGKPublicKey dgk_public_key;
+    private final BlockingQueue<BigInteger> paillier_zeros;
+    private final BlockingQueue<BigInteger> dgk_zeros;
+    private final List<Thread> refill_threads = new ArrayList<>();
+    private final long start_time = System.nanoTime();
+    private volatile boolean stopped = false;
+
+    // Metrics, used to size the pool
+    private final LongAdder paillier_produced = new LongAdder();
+    private final LongAdder dgk_produced = new LongAdder();
+    private final LongAdder paillier_consumed = new LongAdder();
+    private final LongAdder dgk_consumed = new LongAdder();
+    private final LongAdder paillier_misses = new LongAdder();
+    private final LongAdder dgk_misses = new LongAdder();
+
+    // Same counts for every pool of the process, as Prometheus metrics
+    private static final metrics.counter paillier_online = encryptions("paillier", "online");
+    private static final metrics.counter paillier_full = encryptions("paillier", "full");
+    private static final metrics.counter dgk_online = encryptions("dgk", "online");
+    private static final metrics.counter dgk_full = encryptions("dgk", "full");
+    private static final metrics.counter rerandomizations = metrics.counter("ppdt_rerandomizations_total",
+            "Paillier ciphertexts re-randomized");
+
+    public randomness_pool(PaillierPublicKey paillier_public_key, DGKPublicKey dgk_public_key) {
+        this(paillier_public_key, dgk_public_key, DEFAULT_CAPACITY, DEFAULT_THREADS);
+    }
+
+    /**
+     * @param capacity number of pre-computed values kept for each scheme
+     * @param threads number of background threads refilling each scheme, 0 to never refill
+     */
+    public randomness_pool(PaillierPublicKey paillier_public_key, DGKPublicKey dgk_public_key,
+                           int capacity, int threads) {
+        this.paillier_public_key = paillier_public_key;
+        this.dgk_public_key = dgk_public_key;
+        this.paillier_zeros = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.dgk_zeros = new ArrayBlockingQueue<>(Math.max(1, capacity));
+
+        if (dgk_public_key != null) {
+            // Populate the g^0 entry of the DGK look-up table once, before several threads read it
+            DGKOperations.encrypt(0, dgk_public_key);
+        }
+        for (int i = 0; i < threads; i++) {
+            if (paillier_public_key != null) {
+                refill_threads.add(start_refill("paillier-pool-" + i, this::refill_paillier));
+            }
+            if (dgk_public_key != null) {
+                refill_threads.add(start_refill("dgk-pool-" + i, this::refill_dgk));
+            }
+        }
+    }
+
+    // online uses a pooled blinding factor, full computes it on the spot
+    public static metrics.counter encryptions(String scheme, String path) {
+        return metrics.counter("ppdt_encryptions_total", "Encryptions, by scheme and whether the pool was used",
+                "scheme", scheme, "path", path);
+    }
+
+    // Reports the depth of this pool, it replaces the pool of this role reported before
+    public void export_depth() {
+        metrics.gauge("ppdt_randomness_pool_depth", "Pre-computed encryptions of zero left in the pool",
+                this::get_paillier_depth, "scheme", "paillier");
+        metrics.gauge("ppdt_randomness_pool_depth", "Pre-computed encryptions of zero left in the pool",
+                this::get_dgk_depth, "scheme", "dgk");
+    }
+
+    private Thread start_refill(String name, Runnable task) {
+        Thread refill = new Thread(task, name);
+        refill.setDaemon(true);
+        refill.setPriority(Thread.MIN_PRIORITY);
+        refill.start();
+        return refill;
+    }
+
+    // put() blocks once the queue is full, so a full pool costs no CPU
+    private void refill_paillier() {
+        try {
+            while (!stopped) {
+                paillier_zeros.put(PaillierCipher.encrypt(BigInteger.ZERO, paillier_public_key));
+                paillier_produced.increment();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (HomomorphicException e) {
+            logger.error("Paillier randomness pool stopped refilling", e);
+        }
+    }
+
+    private void refill_dgk() {
+        try {
+            while (!stopped) {
+                dgk_zeros.put(DGKOperations.encrypt(0, dgk_public_key));
+                dgk_produced.increment();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Online Paillier encryption, E(m) = E(0) * g^m mod n^2.
+     * Falls back to a full encryption if the pool is empty or m is negative.
+     */
+    public BigInteger encrypt_paillier(BigInteger plaintext) throws HomomorphicException {
+        if (plaintext.signum() >= 0) {
+            BigInteger zero = paillier_zeros.poll();
+            if (zero != null) {
+                paillier_consumed.increment();
+                paillier_online.inc();
+                return PaillierCipher.add_plaintext(zero, plaintext, paillier_public_key);
+            }
+        }
+        paillier_misses.increment();
+        paillier_full.inc();
+        return PaillierCipher.encrypt(plaintext, paillier_public_key);
+    }
+
+    /**
+     * Online DGK encryption, E(m) = E(0) * g^m mod n.
+     * Falls back to a full encryption if the pool is empty or m is outside [0, u).
+     */
+    public BigInteger encrypt_dgk(BigInteger plaintext) throws HomomorphicException {
+        if (plaintext.signum() >= 0 && plaintext.compareTo(dgk_public_key.getU()) < 0) {
+            BigInteger zero = dgk_zeros.poll();
+            if (zero != null) {
+                dgk_consumed.increment();
+                dgk_online.inc();
+                return DGKOperations.add_plaintext(zero, plaintext, dgk_public_key);
+            }
+        }
+        dgk_misses.increment();
+        dgk_full.inc();
+        return DGKOperations.encrypt(plaintext, dgk_public_key);
+    }
+
+    // Multiplying by a fresh E(0) gives an unlinkable ciphertext of the same plaintext
+    public BigInteger rerandomize_paillier(BigInteger ciphertext) throws HomomorphicException {
+        rerandomizations.inc();
+        BigInteger zero = paillier_zeros.poll();
+        if (zero != null) {
+            paillier_consumed.increment();
+        }
+        else {
+            paillier_misses.increment();
+            zero = PaillierCipher.encrypt(BigInteger.ZERO, paillier_public_key);
+        }
+        return PaillierCipher.add(ciphertext, zero, paillier_public_key);
+    }
+
+    // Leaf values are stored as the decimal string of their Paillier ciphertext
+    public String rerandomize_paillier(String ciphertext) throws HomomorphicException {
+        return rerandomize_paillier(new BigInteger(ciphertext)).toString();
+    }
+
+    public int get_paillier_depth() {
+        return paillier_zeros.size();
+    }
+
+    public int get_dgk_depth() {
+        return dgk_zeros.size();
+    }
+
+    public long get_misses() {
+        return paillier_misses.sum() + dgk_misses.sum();
+    }
+
+    // Values produced per second by the background threads since the pool started
+    public double get_refill_rate() {
+        double seconds = (double) (System.nanoTime() - start_time) / 1000000000;
+        return (paillier_produced.sum() + dgk_produced.sum()) / seconds;
+    }
+
+    public void stop() {
+        stopped = true;
+        for (Thread refill : refill_threads) {
+            refill.interrupt();
+        }
+    }
+
+    // Drain the spare values to a file, so the next run starts with a full pool.
+    // Written owner-only to a temporary file first, like the key store, then moved in place.
+    public void save(String path) throws IOException {
+        stop();
+        List<BigInteger> paillier = new ArrayList<>();
+        List<BigInteger> dgk = new ArrayList<>();
+        paillier_zeros.drainTo(paillier);
+        dgk_zeros.drainTo(dgk);
+        Path pool_file = Paths.get(path);
+        Path temporary = Files.createTempFile(pool_file.toAbsolutePath().getParent(),
+                pool_file.getFileName().toString(), ".tmp");
+        try {
+            try (ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temporary)))) {
+                outputStream.writeObject(paillier_public_key);
+                outputStream.writeObject(dgk_public_key);
+                outputStream.writeObject(paillier.toArray(new BigInteger[0]));
+                outputStream.writeObject(dgk.toArray(new BigInteger[0]));
+            }
+            Files.move(temporary, pool_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+        logger.info("Saved {} Paillier and {} DGK values of the randomness pool", paillier.size(), dgk.size());
+    }
+
+    /**
+     * Re-use the spare values of a previous run made for the same keys.
+     * The file is deleted once read, so that no value can be handed out twice.
+     */
+    public void load(String path) {
+        File pool_file = new File(path);
+        if (!pool_file.exists()) {
+            return;
+        }
+        try (ObjectInputStream inputStream = shared.get_ois(new BufferedInputStream(new FileInputStream(pool_file)))) {
+            Object paillier_key = inputStream.readObject();
+            Object dgk_key = inputStream.readObject();
+            // A pool may be made for one scheme only, its other key is null
+            if (Objects.equals(paillier_public_key, paillier_key) && Objects.equals(dgk_public_key, dgk_key)) {
+                int paillier = 0;
+                int dgk = 0;
+                for (BigInteger zero : (BigInteger []) inputStream.readObject()) {
+                    if (paillier_zeros.offer(zero)) {
+                        ++paillier;
+                    }
+                }
+                for (BigInteger zero : (BigInteger []) inputStream.readObject()) {
+                    if (dgk_zeros.offer(zero)) {
+                        ++dgk;
+                    }
+                }
+                logger.info("Loaded {} Paillier and {} DGK values into the randomness pool", paillier, dgk);
+            }
+            else {
+                logger.info("Randomness pool on disk was made for other keys, ignoring it");
+            }
+        }
+        catch (IOException | ClassNotFoundException | ClassCastException e) {
+            logger.error("Unable to read the randomness pool, starting empty", e);
+        }
+        if (!pool_file.delete()) {
+            logger.error("Unable to delete the randomness pool file {}", path);
+        }
+    }
+
+    public String toString() {
+        return String.format("Randomness pool: Paillier depth=%d consumed=%d misses=%d, " +
+                        "DGK depth=%d consumed=%d misses=%d, refill rate=%.2f/s",
+                get_paillier_depth(), paillier_consumed.sum(), paillier_misses.sum(),
+                get_dgk_depth(), dgk_consumed.sum(), dgk_misses.sum(), get_refill_rate());
+    }
+}
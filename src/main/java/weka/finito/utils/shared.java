@@ -6,8 +6,10 @@ import security.socialistmillionaire.alice;
 import weka.finito.structs.BigIntegers;
 import weka.finito.structs.NodeInfo;
 import weka.finito.structs.features;
+import weka.finito.structs.evaluation_plan;
 import weka.finito.structs.level_order_site;
 
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.IOException;
@@ -15,8 +17,9 @@ import java.math.BigInteger;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -26,6 +29,15 @@ import org.apache.logging.log4j.Logger;
 public class shared {
     private static final Logger logger = LogManager.getLogger(shared.class);
     public static final String[] protocols = new String[]{ "TLSv1.2", "TLSv1.3"};
+    // Time of a comparison by the code sent to the client: 0 Paillier, 1 DGK, 2 DGK equality
+    public static final metrics.histogram [] COMPARISON_SECONDS = {
+            comparison_seconds(0), comparison_seconds(1), comparison_seconds(2)
+    };
+
+    private static metrics.histogram comparison_seconds(int code) {
+        return metrics.histogram("ppdt_comparison_seconds",
+                "Time of an encrypted comparison, by comparison code", "type", String.valueOf(code));
+    }
 
     // Need to enforce it to be positive, since it is 255 bits or so, I can only use Paillier
     public static BigInteger hash_to_big_integer(String text) {
@@ -33,6 +45,30 @@ public class shared {
         return new BigInteger(1, hash);
     }
 
+    // All-nodes mode tells the client the shape of every level, the model owner allows it, see the README
+    public static final boolean ALLOW_ALL_NODES = "true".equalsIgnoreCase(System.getenv("ALLOW_ALL_NODES"));
+
+    // Optional tuning knobs are passed as environment variables, like the rest of the K8s configuration
+    public static int get_env_int(String name, int default_value) {
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            return default_value;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e) {
+            logger.error("{} is not a number, using default value {}", name, default_value);
+            return default_value;
+        }
+    }
+
+    // A virtual thread per task, for connections: one blocked on a socket holds no platform thread.
+    // What the tasks compute runs on the carriers, as many as there are cores.
+    public static ExecutorService virtual_threads(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+    }
+
     public static void setup_tls() {
         // If you get a null pointer, you forgot to populate environment variables...
         String keystore = System.getenv("KEYSTORE");
@@ -48,142 +84,147 @@ public class shared {
         System.setProperties(systemProps);
     }
 
+    /*
+     * Evaluates the node of this level in scope of the current index of the features,
+     * looked up in the plan compiled from the level-site data instead of walking the level.
+     * Returns the leaf if the node is a leaf, otherwise compares with the client and sets the next index.
+     * This runs for every node of every request, so nothing is logged or allocated here but by the comparison,
+     * its time goes to ppdt_comparison_seconds.
+     */
     public static NodeInfo traverse_level(level_order_site level_site_data,
                                          features encrypted_features,
                                          alice niu)
             throws HomomorphicException, IOException, ClassNotFoundException {
 
-        List<NodeInfo> node_level_data = level_site_data.get_node_data();
-        boolean terminalLeafFound = false;
-        boolean equalsFound = false;
-        boolean inequalityHolds;
-        int node_level_index = 0;
-        int n = 0;
-        int next_index = 0;
-        NodeInfo ls;
+        evaluation_plan plan = level_site_data.get_plan();
+        int index = encrypted_features.get_current_index();
+        if (!plan.in_scope(index)) {
+            throw new IndexOutOfBoundsException("No node of level " + level_site_data.get_level()
+                    + " is in scope of index " + index);
+        }
+        NodeInfo ls = level_site_data.get_node_data().get(plan.node_offset(index));
         NodeInfo to_return = null;
 
-        // The n index tells you when you are in scope in regard to level-site
-        // Level-sites are made of leaves, and split the inequality into two nodes,
-        // so you have a '<=' and '>' node and '=' and '!=' in pairs
-        logger.debug("In-scope index should be: {} and {}",
-                2 * encrypted_features.get_current_index(), 2 * encrypted_features.get_current_index() + 1);
-
-        while ((!equalsFound) && (!terminalLeafFound)) {
-            ls = node_level_data.get(node_level_index);
-            logger.debug("j={}", node_level_index);
-            logger.debug("n={}", n);
-            if (ls.isLeaf()) {
-                if (n == 2 * encrypted_features.get_current_index()
-                        || n == 2 * encrypted_features.get_current_index() + 1) {
-                    logger.debug("Found the leaf at node={} to be used", n);
-                    terminalLeafFound = true;
-                    to_return = ls;
-                }
-                n += 2;
+        if (plan.is_leaf(index)) {
+            to_return = ls;
+        }
+        else {
+            // Niu.Protocol2(encrypted_thresh, encrypted_client_value);
+            // encrypted_thresh >= encrypted_client_value
+            // encrypted_client_value <= encrypted_thresh
+            boolean inequalityHolds = compare(ls, plan.comparison_type(index), plan, plan.attribute_id(index),
+                    encrypted_features, niu);
+            if (inequalityHolds) {
+                encrypted_features.set_next_index(plan.child_index(index));
             }
             else {
-                if ((n == 2 * encrypted_features.get_current_index()
-                        || n == 2 * encrypted_features.get_current_index() + 1)) {
-
-                    logger.debug("At node={}, I need to compare", n);
-                    logger.debug("I am comparing at node {}", ls);
-                    equalsFound = true;
-
-                    // Niu.Protocol2(encrypted_thresh, encrypted_client_value);
-                    // encrypted_thresh >= encrypted_client_value
-                    // encrypted_client_value <= encrypted_thresh
-                    inequalityHolds = compare(ls, ls.comparisonType, encrypted_features, niu);
-                    if (inequalityHolds) {
-                        if (ls.comparisonType == 4) {
-                            logger.debug("[DT-Threshold] <= [VALUES] is TRUE");
-                        }
-                        else if (ls.comparisonType == 3) {
-                            logger.debug("[DT-Threshold] > [VALUES] is TRUE");
-                        }
-                        else if (ls.comparisonType == 1) {
-                            logger.debug("[DT-Threshold] == [VALUES] is TRUE");
-                        }
-                        else if (ls.comparisonType == 6) {
-                            logger.debug("[DT-Threshold] != [VALUES] is TRUE");
-                        }
-                        encrypted_features.set_next_index(next_index);
-                    }
-                    else {
-                        if (ls.comparisonType == 4) {
-                            logger.debug("[DT-Threshold] <= [VALUES] is FALSE");
-                        }
-                        else if (ls.comparisonType == 3) {
-                            logger.debug("[DT-Threshold] > [VALUES] is FALSE");
-                        }
-                        else if (ls.comparisonType == 1) {
-                            logger.debug("[DT-Threshold] == [VALUES] is FALSE");
-                        }
-                        else if (ls.comparisonType == 6) {
-                            logger.debug("[DT-Threshold] != [VALUES] is FALSE");
-                        }
-                        encrypted_features.set_next_index(next_index + 1);
-                    }
-                    logger.debug("New index: {}", encrypted_features.get_next_index());
-                }
-                n++;
-                next_index++;
+                encrypted_features.set_next_index(plan.child_index(index) + 1);
             }
-            node_level_index++;
-        } // while
+        }
         // Update Index and send it down to the next level-site
         encrypted_features.set_current_index(encrypted_features.get_next_index());
         return to_return;
     }
 
+    /*
+     * All-nodes mode: compares the features with the split in scope of every index of the level, in index order.
+     * The splits are dealt to the lanes in turn, this lane compares the k-th split when k % lanes == lane,
+     * and fills the next index of those indexes only: next_index is shared by the lanes of the level.
+     * Each index gets -1 if it is a leaf or no node is in scope of it.
+     */
+    public static void compare_level(level_order_site level_site_data, features encrypted_features, alice niu,
+                                     int [] next_index, int lane, int lanes)
+            throws HomomorphicException, IOException, ClassNotFoundException {
+        evaluation_plan plan = level_site_data.get_plan();
+        int split = 0;
+        for (int index = 0; index < plan.size(); index++) {
+            if (!plan.in_scope(index) || plan.is_leaf(index)) {
+                next_index[index] = -1;
+                continue;
+            }
+            if (split++ % lanes != lane) {
+                continue;
+            }
+            NodeInfo ls = level_site_data.get_node_data().get(plan.node_offset(index));
+            if (compare(ls, plan.comparison_type(index), plan, plan.attribute_id(index), encrypted_features, niu)) {
+                next_index[index] = plan.child_index(index);
+            }
+            else {
+                next_index[index] = plan.child_index(index) + 1;
+            }
+        }
+    }
+
+    // Number of indexes of the level with a split in scope, the comparisons of the all-nodes mode
+    public static int count_splits(level_order_site level_site_data) {
+        evaluation_plan plan = level_site_data.get_plan();
+        int splits = 0;
+        for (int index = 0; index < plan.size(); index++) {
+            if (plan.in_scope(index) && !plan.is_leaf(index)) {
+                splits++;
+            }
+        }
+        return splits;
+    }
+
     // Used by level-site and server-site to compare with a client
     public static boolean compare(NodeInfo ld, int comparisonType,
                                   features encrypted_features, alice Niu)
             throws ClassNotFoundException, HomomorphicException, IOException {
+        return compare(ld, comparisonType, encrypted_features.get_thresholds(ld.variable_name), Niu);
+    }
+
+    // Same, with the attribute id of the node in the evaluation plan of its level
+    public static boolean compare(NodeInfo ld, int comparisonType, evaluation_plan plan, int attribute_id,
+                                  features encrypted_features, alice Niu)
+            throws ClassNotFoundException, HomomorphicException, IOException {
+        return compare(ld, comparisonType, encrypted_features.get_thresholds(plan, attribute_id), Niu);
+    }
+
+    private static boolean compare(NodeInfo ld, int comparisonType,
+                                   BigIntegers encrypted_values, alice Niu)
+            throws ClassNotFoundException, HomomorphicException, IOException {
 
         boolean answer;
 
-        BigIntegers encrypted_values = encrypted_features.get_thresholds(ld.variable_name);
         if (encrypted_values == null) {
             throw new RuntimeException(String.format("Seems like the feature %s is not known", ld.variable_name));
         }
-        else {
-            logger.debug("Parsing the Attribute: {}", ld.variable_name);
-        }
         BigInteger encrypted_client_value = null;
         BigInteger encrypted_thresh = null;
-        logger.info(String.format("Using comparison type %d", comparisonType));
+        int code = -1;
 
         // Encrypt the thresh-hold correct
         // Note only types 1, 3, 4, 6 have been known to exist
         if ((comparisonType == 2) || (comparisonType == 5)) {
             encrypted_thresh = ld.getPaillier();
             encrypted_client_value = encrypted_values.integerValuePaillier();
-            Niu.writeInt(0);
+            code = 0;
+            Niu.writeInt(code);
             Niu.setDGKMode(false);
         }
         else if ((comparisonType == 3) || (comparisonType == 4)) {
             encrypted_thresh = ld.getDGK();
             encrypted_client_value = encrypted_values.integerValueDGK();
-            Niu.writeInt(1);
+            code = 1;
+            Niu.writeInt(code);
             Niu.setDGKMode(true);
         }
         else if (comparisonType == 1 || comparisonType == 6) {
             encrypted_thresh = ld.getDGK();
             encrypted_client_value = encrypted_values.integerValueDGK();
-            Niu.writeInt(2);
+            code = 2;
+            Niu.writeInt(code);
             Niu.setDGKMode(true);
         }
 
         assert encrypted_client_value != null;
         long start_time = System.nanoTime();
         if (comparisonType == 1) {
-            logger.info("Using encrypted equals check");
             answer = Niu.encrypted_equals(encrypted_thresh, encrypted_client_value);
         }
         else if (comparisonType == 6) {
             // Also factors in type 6, just need it to the negated result
-            logger.info("Using encrypted inequality check");
             answer = Niu.encrypted_equals(encrypted_thresh, encrypted_client_value);
             answer = !answer;
         }
@@ -200,10 +241,7 @@ public class shared {
             // encrypted_thresh <= client_value
             answer = Niu.Protocol2(encrypted_client_value, encrypted_thresh);
         }
-        long stop_time = System.nanoTime();
-        double run_time = (double) (stop_time - start_time);
-        run_time = run_time / 1000000;
-        logger.info(String.format("Comparison took %f ms\n", run_time));
+        COMPARISON_SECONDS[code].observe_since(start_time);
         return answer;
     }
 
@@ -225,13 +263,22 @@ public class shared {
     }
 
     public static ValidatingObjectInputStream get_ois(Socket socket) throws IOException {
-        ValidatingObjectInputStream ois = new ValidatingObjectInputStream(socket.getInputStream());
+        return get_ois(socket.getInputStream());
+    }
+
+    public static ValidatingObjectInputStream get_ois(InputStream input) throws IOException {
+        ValidatingObjectInputStream ois = new ValidatingObjectInputStream(input);
         ois.accept(
                 weka.finito.structs.NodeInfo.class,
                 weka.finito.structs.level_order_site.class,
                 weka.finito.structs.BigIntegers.class,
                 weka.finito.structs.features.class,
+                weka.finito.structs.features_batch.class,
                 weka.finito.utils.LabelEncoder.class,
+                weka.finito.structs.attribute_manifest.class,
+                weka.finito.structs.resolved_index.class,
+                weka.finito.structs.model_epoch.class,
+                weka.finito.structs.level_chunk.class,
 
                 java.util.HashMap.class,
                 java.util.ArrayList.class,
@@ -241,13 +288,35 @@ public class shared {
 
                 java.lang.Number.class,
                 java.math.BigInteger.class,
-                java.lang.Long.class
+                java.lang.Long.class,
+                java.lang.Integer.class
         );
         ois.accept("[B");
         ois.accept("[L*");
         return ois;
     }
 
+    // Features and level-site data go in the binary wire format if WIRE_FORMAT=binary, everything else as is
+    public static void write_object(ObjectOutputStream oos, Object o) throws IOException {
+        if (binary_codec.ENABLED && binary_codec.supports(o)) {
+            byte [] frame = binary_codec.encode(o);
+            logger.debug("Sending {} as a {} byte frame", o.getClass().getSimpleName(), frame.length);
+            oos.writeObject(frame);
+        }
+        else {
+            oos.writeObject(o);
+        }
+    }
+
+    // Reads either wire format, a byte array is always a binary frame
+    public static Object read_object(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        Object o = ois.readObject();
+        if (o instanceof byte []) {
+            return binary_codec.decode((byte []) o);
+        }
+        return o;
+    }
+
     public static void closeConnection(ServerSocket server_socket) throws IOException {
         if (server_socket != null) {
             server_socket.close();
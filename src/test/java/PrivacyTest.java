@@ -1,16 +1,75 @@
 import org.junit.Before;
 import org.junit.Test;
+import security.dgk.DGKKeyPairGenerator;
+import security.dgk.DGKOperations;
+import security.dgk.DGKPrivateKey;
+import security.dgk.DGKPublicKey;
+import security.paillier.PaillierCipher;
+import security.paillier.PaillierKeyPairGenerator;
+import security.paillier.PaillierPrivateKey;
+import security.paillier.PaillierPublicKey;
+import security.socialistmillionaire.alice_joye;
 import weka.finito.client;
+import weka.finito.key_sets;
+import weka.finito.level_site_models;
 import weka.finito.level_site_server;
 import weka.finito.server;
+import weka.finito.structs.BigIntegers;
+import weka.finito.structs.NodeInfo;
+import weka.finito.structs.attribute_manifest;
+import weka.finito.structs.evaluation_plan;
+import weka.finito.structs.features;
+import weka.finito.structs.features_batch;
+import weka.finito.structs.level_chunk;
+import weka.finito.structs.level_order_site;
+import weka.finito.utils.LabelEncoder;
+import weka.finito.utils.admission;
+import weka.finito.utils.binary_codec;
+import weka.finito.utils.latency_recorder;
+import weka.finito.utils.metrics;
+import weka.finito.utils.model_cache;
+import weka.finito.utils.randomness_pool;
+import weka.finito.utils.shared;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 import static weka.finito.utils.shared.*;
 
 import org.apache.logging.log4j.LogManager;
@@ -26,7 +85,10 @@ public final class PrivacyTest {
 	private String data_directory;
 	private int server_port;
 	private String server_ip;
-	private final static String [] delete_files = {"dgk", "dgk.pub", "paillier", "paillier.pub", "label_encoder.bin"};
+	// Bytes a comparison may allocate on the level-site, outside the crypto
+	private final static long COMPARISON_ALLOCATION_BUDGET = 16;
+	private final static String [] delete_files = {"client.keystore", "label_encoder.bin",
+			"randomness_pool.bin"};
 	@Before
 	public void read_properties() throws IOException {
 		setup_tls();
@@ -69,6 +131,7 @@ public final class PrivacyTest {
 		// Programmatically wait until classification is done.
 		server.join();
 		client.join();
+		evaluate.close();
 
 		// Be sure to delete any keys you made...
 		for (String file: delete_files) {
@@ -113,6 +176,734 @@ public final class PrivacyTest {
 		}
 	}
 
+	// Every level-site compares all of its nodes at once, must match the level by level answers
+	@Test
+	public void test_all_nodes_level_sites() throws Exception {
+		String answer_path = new File(data_directory, "answers.csv").toString();
+		try (BufferedReader br = new BufferedReader(new FileReader(answer_path))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				String [] values = line.split(",");
+				String full_data_set_path = new File(data_directory, values[0]).toString();
+				String full_feature_path = new File(data_directory, values[1]).toString();
+				String classification = test_level_site(full_data_set_path, new String[] { full_feature_path },
+						levels, key_size, precision, level_site_ips, level_site_ports_string, server_ip, server_port,
+						true)[0];
+				logger.info("{} =!= {}", values[2], classification);
+				assertEquals(values[2], classification);
+			}
+		}
+	}
+
+	// Classify every VALUES file of a data set in one batch, must match the single record answers
+	@Test
+	public void test_batch_level_sites() throws Exception {
+		String answer_path = new File(data_directory, "answers.csv").toString();
+		Map<String, List<String []>> tests_by_data_set = new LinkedHashMap<>();
+		try (BufferedReader br = new BufferedReader(new FileReader(answer_path))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				String [] values = line.split(",");
+				tests_by_data_set.computeIfAbsent(values[0], k -> new ArrayList<>()).add(values);
+			}
+		}
+
+		for (Map.Entry<String, List<String []>> data_set : tests_by_data_set.entrySet()) {
+			List<String []> tests = data_set.getValue();
+			String [] features_files = new String[tests.size()];
+			for (int i = 0; i < tests.size(); i++) {
+				features_files[i] = new File(data_directory, tests.get(i)[1]).toString();
+			}
+			String full_data_set_path = new File(data_directory, data_set.getKey()).toString();
+			logger.info("Batch of {} records for {}", features_files.length, full_data_set_path);
+
+			String [] classifications = test_level_site(full_data_set_path, features_files, levels, key_size,
+					precision, level_site_ips, level_site_ports_string, server_ip, server_port);
+			for (int i = 0; i < tests.size(); i++) {
+				logger.info("{} =!= {}", tests.get(i)[2], classifications[i]);
+				assertEquals(tests.get(i)[2], classifications[i]);
+			}
+		}
+	}
+
+	// Both wire formats must carry the same data, the binary one in fewer bytes
+	@Test
+	public void test_binary_codec() throws Exception {
+		Random random = new Random(42);
+		List<features> records = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			HashMap<String, BigIntegers> values = new HashMap<>();
+			for (String attribute : new String[] {"sepallength", "sepalwidth", "petallength", "petalwidth"}) {
+				values.put(attribute, new BigIntegers(new BigInteger(4096, random), new BigInteger(2048, random)));
+			}
+			// Attributes only compared for equality have no Paillier ciphertext
+			values.put("color", new BigIntegers(null, new BigInteger(2048, random)));
+			features record = new features(values, "127.0.0.1", 10000 + i);
+			record.set_current_index(i);
+			records.add(record);
+		}
+		features_batch batch = new features_batch(records, "127.0.0.1", 10000, 7);
+
+		level_order_site site = random_level(1, 1, true, random);
+		site.set_next_level_site("127.0.0.1");
+		site.set_next_level_site_port(9002);
+		NodeInfo node = site.get_node_data().get(0);
+
+		byte [] frame = binary_codec.encode(batch);
+		features_batch decoded = (features_batch) binary_codec.decode(frame);
+		assertEquals(batch.get_request_id(), decoded.get_request_id());
+		assertEquals(batch.size(), decoded.size());
+		for (int i = 0; i < batch.size(); i++) {
+			assertEquals(records.get(i).get_all_thresholds(), decoded.get_records().get(i).get_all_thresholds());
+			assertEquals(records.get(i).get_current_index(), decoded.get_records().get(i).get_current_index());
+			assertEquals(records.get(i).get_client_port(), decoded.get_records().get(i).get_client_port());
+		}
+		logger.info("features_batch: {} bytes binary, {} bytes serialized", frame.length, serialized_size(batch));
+		assertTrue(frame.length < serialized_size(batch));
+
+		frame = binary_codec.encode(site);
+		level_order_site decoded_site = (level_order_site) binary_codec.decode(frame);
+		assertEquals(site.get_next_level_site_port(), decoded_site.get_next_level_site_port());
+		assertEquals(node.getVariableName(), decoded_site.get_node_data().get(0).getVariableName());
+		assertEquals(node.getPaillier(), decoded_site.get_node_data().get(0).getPaillier());
+		assertEquals(node.getDGK(), decoded_site.get_node_data().get(0).getDGK());
+		assertEquals(site.get_node_data().get(1).getVariableName(),
+				decoded_site.get_node_data().get(1).getVariableName());
+		logger.info("level_order_site: {} bytes binary, {} bytes serialized", frame.length, serialized_size(site));
+		assertTrue(frame.length < serialized_size(site));
+	}
+
+	// A stored model reads back node for node, and is evicted once the cache is over its size
+	@Test
+	public void test_model_cache() throws Exception {
+		level_order_site site = random_level(0, 1, true, new Random(7));
+		NodeInfo node = site.get_node_data().get(0);
+		LabelEncoder encoder = new LabelEncoder();
+		encoder.encode("red");
+
+		Path directory = Files.createTempDirectory("model_cache");
+		model_cache cache = new model_cache(directory, 1024 * 1024, 60000);
+		cache.store("key", List.of(site), encoder);
+		model_cache.cached_model cached = cache.load("key", null, null);
+		assertEquals(1, cached.levels().size());
+		assertEquals(BigInteger.ZERO, cached.label_encoder().encode("red"));
+		List<NodeInfo> nodes = cached.levels().get(0).get_node_data();
+		assertEquals(node.getPaillier(), nodes.get(0).getPaillier());
+		assertEquals(node.getDGK(), nodes.get(0).getDGK());
+		assertEquals(site.get_node_data().get(1).getVariableName(), nodes.get(1).getVariableName());
+		assertNull(cache.load("other key", null, null));
+
+		// A length past the end of the entry drops it, instead of allocating or slicing with it
+		Path entry;
+		try (var entries = Files.list(directory)) {
+			entry = entries.findFirst().orElseThrow();
+		}
+		byte [] corrupt = Files.readAllBytes(entry);
+		ByteBuffer.wrap(corrupt).putInt(8, Integer.MAX_VALUE);
+		Files.write(entry, corrupt);
+		assertNull(cache.load("key", null, null));
+		assertFalse(Files.exists(entry));
+		cache.store("key", List.of(site), encoder);
+
+		new model_cache(directory, 0, 60000).evict();
+		assertNull(cache.load("key", null, null));
+		Files.delete(directory);
+	}
+
+	// Past the memory bound the least recently used model goes to disk, and comes back when features name it
+	@Test
+	public void test_level_site_models() throws Exception {
+		Random random = new Random(11);
+		level_order_site [] sites = new level_order_site[3];
+		for (int i = 0; i < sites.length; i++) {
+			sites[i] = random_level(i, 1, false, random);
+			sites[i].set_model_id("model-" + i);
+		}
+
+		// Models other than the default one are named in a prefix of the frame
+		level_order_site decoded = (level_order_site) binary_codec.decode(binary_codec.encode(sites[1]));
+		assertEquals("model-1", decoded.get_model_id());
+		level_order_site unnamed = new level_order_site(0, null, null);
+		decoded = (level_order_site) binary_codec.decode(binary_codec.encode(unnamed));
+		assertEquals(level_order_site.DEFAULT_MODEL, decoded.get_model_id());
+
+		Path directory = Files.createTempDirectory("level_site_models");
+		// Room for two of these levels
+		level_site_models models = new level_site_models(directory, 6000);
+		for (level_order_site site : sites) {
+			models.put(site);
+		}
+		assertFalse(models.in_memory("model-0"));
+		assertTrue(models.in_memory("model-2"));
+		assertNull(models.get("unknown"));
+
+		level_site_models.hosted_model reloaded = models.get("model-0");
+		assertEquals("model-0", reloaded.data.get_model_id());
+		assertEquals(0, reloaded.data.get_level());
+		assertEquals(sites[0].get_node_data().get(0).getDGK(), reloaded.data.get_node_data().get(0).getDGK());
+		assertEquals(sites[0].get_node_data().get(1).getVariableName(),
+				reloaded.data.get_node_data().get(1).getVariableName());
+		assertTrue(models.in_memory("model-0"));
+		assertFalse(models.in_memory("model-1"));
+
+		// Requests for a model being read back wait for the one reading it
+		List<Future<level_site_models.hosted_model>> reads = new ArrayList<>();
+		try (ExecutorService readers = virtual_threads("readers")) {
+			for (int i = 0; i < 4; i++) {
+				reads.add(readers.submit(() -> models.get("model-1")));
+			}
+		}
+		for (Future<level_site_models.hosted_model> read : reads) {
+			assertSame(reads.get(0).get(), read.get());
+		}
+		assertTrue(models.in_memory("model-1"));
+
+		// Training a model again replaces it, wherever it was
+		level_order_site retrained = new level_order_site(5, null, null);
+		retrained.set_model_id("model-1");
+		models.put(retrained);
+		assertEquals(5, models.get("model-1").data.get_level());
+		models.close();
+		Files.delete(directory);
+	}
+
+	// Levels under the same key set share one instance of the keys, counted once towards the bound
+	@Test
+	public void test_level_site_model_keys() throws Exception {
+		DGKKeyPairGenerator dgk_generator = new DGKKeyPairGenerator();
+		dgk_generator.initialize(key_size, null);
+		DGKPublicKey dgk = (DGKPublicKey) dgk_generator.generateKeyPair().getPublic();
+		PaillierKeyPairGenerator paillier_generator = new PaillierKeyPairGenerator();
+		paillier_generator.initialize(key_size, null);
+		PaillierPublicKey paillier = (PaillierPublicKey) paillier_generator.generateKeyPair().getPublic();
+		long key_bytes = level_site_models.size_of(paillier, dgk);
+		// The lookup table of g alone has u numbers modulo n
+		assertTrue(key_bytes > dgk.getu() * (key_size / 8));
+
+		Random random = new Random(13);
+		level_order_site [] sites = new level_order_site[3];
+		for (int i = 0; i < sites.length; i++) {
+			level_order_site site = random_level(i, 1, false, random).with_keys(paillier, dgk);
+			site.set_model_id("model-" + i);
+			// Each level brings its own copy of the keys, as it does from the server-site
+			sites[i] = (level_order_site) binary_codec.decode(binary_codec.encode(site));
+		}
+
+		Path directory = Files.createTempDirectory("level_site_model_keys");
+		// Room for the keys and two of these levels with their randomness pools
+		level_site_models models = new level_site_models(directory, key_bytes + 50000);
+		models.put(sites[0]);
+		models.put(sites[1]);
+		assertTrue(models.in_memory("model-0"));
+		assertTrue(models.in_memory("model-1"));
+		assertSame(models.get("model-0").data.dgk_public_key, models.get("model-1").data.dgk_public_key);
+		assertTrue(models.bytes() > key_bytes);
+		assertTrue(models.bytes() < 2 * key_bytes);
+
+		models.put(sites[2]);
+		assertFalse(models.in_memory("model-0"));
+		// Read back, it takes the keys already in memory
+		assertSame(models.get("model-2").data.dgk_public_key, models.get("model-0").data.dgk_public_key);
+		assertFalse(models.in_memory("model-1"));
+		models.close();
+		Files.delete(directory);
+	}
+
+	// A new version is staged until activated, the version before it stays for the requests started with it
+	@Test
+	public void test_model_versions() throws Exception {
+		level_order_site [] versions = new level_order_site[3];
+		for (int i = 0; i < versions.length; i++) {
+			versions[i] = new level_order_site(i, null, null);
+			versions[i].set_model_id("model");
+			versions[i].set_version(i);
+			versions[i].append_data(new NodeInfo(true, BigInteger.valueOf(i + 1).toString(), 0));
+		}
+		level_order_site decoded = (level_order_site) binary_codec.decode(binary_codec.encode(versions[2]));
+		assertEquals(2, decoded.get_version());
+
+		Path directory = Files.createTempDirectory("model_versions");
+		level_site_models models = new level_site_models(directory, 1024 * 1024);
+		assertFalse(models.put(versions[0]));
+		assertFalse(models.put(versions[1]));
+		// Staged, level-site 0 still starts requests with version 0
+		assertEquals(0, models.get("model").data.get_version());
+		assertEquals(1, models.get("model", 1).data.get_version());
+
+		assertTrue(models.activate("model", 1));
+		assertEquals(1, models.get("model").data.get_version());
+		assertNotNull(models.get("model", 0));
+
+		// Version 0 is dropped once version 2 is activated, version 1 is kept for the requests started with it
+		models.put(versions[2]);
+		assertTrue(models.activate("model", 2));
+		assertNull(models.get("model", 0));
+		assertNotNull(models.get("model", 1));
+		assertFalse(models.activate("model", 7));
+		// The same version trained again replaces it
+		assertTrue(models.put(versions[2]));
+		models.close();
+		Files.delete(directory);
+	}
+
+	// A level streamed in chunks is the level sent at once, and a damaged chunk is noticed
+	@Test
+	public void test_level_chunks() throws Exception {
+		level_order_site site = random_level(2, 10, false, new Random(5));
+		site.set_model_id("model");
+		site.set_next_level_site("127.0.0.1");
+
+		level_order_site header = (level_order_site) binary_codec.decode(binary_codec.encode(site.streamed_header()));
+		assertEquals(20, header.get_streamed_nodes());
+		assertEquals(0, header.get_node_data().size());
+		assertEquals("127.0.0.1", header.get_next_level_site());
+		assertEquals("model", header.get_model_id());
+
+		for (int from = 0; from < 20; from += 6) {
+			level_chunk chunk = new level_chunk(from, binary_codec.encode_nodes(site, from, Math.min(20, from + 6)));
+			assertTrue(chunk.is_intact());
+			level_order_site nodes = binary_codec.decode_nodes(ByteBuffer.wrap(chunk.get_nodes()), null, null);
+			for (NodeInfo node : nodes.get_node_data()) {
+				header.append_data(node);
+			}
+		}
+		assertEquals(20, header.get_node_data().size());
+		for (int i = 0; i < 20; i++) {
+			assertEquals(site.get_node_data().get(i).getVariableName(), header.get_node_data().get(i).getVariableName());
+			assertEquals(site.get_node_data().get(i).getDGK(), header.get_node_data().get(i).getDGK());
+		}
+
+		byte [] nodes = binary_codec.encode_nodes(site, 0, 6);
+		level_chunk damaged = new level_chunk(0, nodes);
+		nodes[nodes.length - 1] ^= 1;
+		assertFalse(damaged.is_intact());
+	}
+
+	// A level-site keeps the nodes of a stream that broke off for it to resume, until a newer version comes
+	@Test
+	public void test_level_streams() throws Exception {
+		level_order_site site = random_level(2, 10, false, new Random(6));
+		site.set_model_id("streamed");
+		site.set_version(1);
+		int port = Integer.parseInt(level_site_ports_string[0].replaceAll("[^0-9]", ""));
+		level_site_server level_site = new level_site_server(port);
+		new Thread(level_site).start();
+		try {
+			assertEquals(0, stream_part(port, site, 6));
+			// Resumed where the broken stream stopped
+			assertEquals(6, stream_part(port, site, 12));
+			site.set_version(2);
+			assertEquals(0, stream_part(port, site, 0));
+			// The nodes of version 1 were dropped
+			site.set_version(1);
+			assertEquals(0, stream_part(port, site, 0));
+		}
+		finally {
+			level_site.stop();
+		}
+	}
+
+	// Streams the nodes of the level up to node to, then breaks off. Returns the nodes the level-site already had
+	private static int stream_part(int port, level_order_site site, int to) throws Exception {
+		for (int attempt = 0; ; attempt++) {
+			try (Socket level_site = new Socket("127.0.0.1", port)) {
+				ObjectOutputStream to_level_site = new ObjectOutputStream(level_site.getOutputStream());
+				write_object(to_level_site, site.streamed_header());
+				to_level_site.flush();
+				int offset = get_ois(level_site).readInt();
+				if (offset < to) {
+					to_level_site.writeObject(new level_chunk(offset, binary_codec.encode_nodes(site, offset, to)));
+					to_level_site.flush();
+				}
+				return offset;
+			}
+			catch (ConnectException e) {
+				if (attempt >= 50) {
+					throw e;
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	// The model is encrypted the first time a key set is used, and again once its copy was dropped
+	@Test
+	public void test_key_sets() throws Exception {
+		DGKKeyPairGenerator dgk_generator = new DGKKeyPairGenerator();
+		dgk_generator.initialize(key_size, null);
+		DGKPublicKey dgk = (DGKPublicKey) dgk_generator.generateKeyPair().getPublic();
+		PaillierKeyPairGenerator paillier_generator = new PaillierKeyPairGenerator();
+		paillier_generator.initialize(key_size, null);
+		PaillierPublicKey first = (PaillierPublicKey) paillier_generator.generateKeyPair().getPublic();
+		PaillierPublicKey second = (PaillierPublicKey) paillier_generator.generateKeyPair().getPublic();
+
+		AtomicInteger encryptions = new AtomicInteger();
+		// A copy is one leaf, over the bound on its own
+		key_sets copies = new key_sets(100, (keys, pool) -> {
+			encryptions.incrementAndGet();
+			level_order_site site = new level_order_site(0, keys.paillier_public_key, keys.dgk_public_key);
+			site.append_data(new NodeInfo(true, pool.encrypt_paillier(BigInteger.ONE).toString(), 0));
+			return List.of(site);
+		});
+		key_sets.key_set a = copies.register(first, dgk);
+		key_sets.key_set b = copies.register(second, dgk);
+		assertSame(a, copies.register(first, dgk));
+		assertNotEquals(a.key_id, b.key_id);
+		assertEquals(0, encryptions.get());
+
+		assertSame(first, copies.model(a).levels().get(0).paillier_public_key);
+		copies.model(a);
+		assertEquals(1, encryptions.get());
+		assertSame(second, copies.model(b).levels().get(0).paillier_public_key);
+		assertEquals(2, encryptions.get());
+		assertFalse(copies.is_encrypted(a.key_id));
+		assertTrue(copies.is_encrypted(b.key_id));
+
+		// Dropped, but the keys are kept
+		assertSame(a, copies.get(a.key_id));
+		copies.model(a);
+		assertEquals(3, encryptions.get());
+		assertNull(copies.get("unknown"));
+
+		// A swap encrypts the copies in memory only, once per version, the other key sets stay stale
+		assertNull(copies.refresh(b, 0));
+		assertSame(a, copies.refresh(a, 0).keys());
+		assertEquals(3, encryptions.get());
+		assertTrue(copies.stale(a, 0));
+		copies.activated(a, 1);
+		copies.activated(a, 0);
+		assertFalse(copies.stale(a, 1));
+		assertTrue(copies.stale(a, 2));
+		copies.close();
+
+		// One key set kept, the one without a copy is forgotten, never the one with a copy
+		key_sets bounded = new key_sets(Long.MAX_VALUE, 1, (keys, pool) -> {
+			level_order_site site = new level_order_site(0, keys.paillier_public_key, keys.dgk_public_key);
+			site.append_data(new NodeInfo(true, pool.encrypt_paillier(BigInteger.ONE).toString(), 0));
+			return List.of(site);
+		});
+		a = bounded.register(first, dgk);
+		b = bounded.register(second, dgk);
+		assertNull(bounded.get(a.key_id));
+		assertSame(b, bounded.get(b.key_id));
+		bounded.model(b);
+		a = bounded.register(first, dgk);
+		assertSame(a, bounded.get(a.key_id));
+		assertSame(b, bounded.get(b.key_id));
+		bounded.model(a);
+		assertTrue(bounded.is_encrypted(a.key_id));
+		assertTrue(bounded.is_encrypted(b.key_id));
+		bounded.close();
+	}
+
+	// Pooled encryptions decrypt like full ones, and spare values survive a restart exactly once
+	@Test
+	public void test_randomness_pool() throws Exception {
+		DGKKeyPairGenerator dgk_generator = new DGKKeyPairGenerator();
+		dgk_generator.initialize(key_size, null);
+		KeyPair dgk = dgk_generator.generateKeyPair();
+		PaillierKeyPairGenerator paillier_generator = new PaillierKeyPairGenerator();
+		paillier_generator.initialize(key_size, null);
+		KeyPair paillier = paillier_generator.generateKeyPair();
+		PaillierPublicKey paillier_public_key = (PaillierPublicKey) paillier.getPublic();
+		DGKPublicKey dgk_public_key = (DGKPublicKey) dgk.getPublic();
+
+		randomness_pool pool = new randomness_pool(paillier_public_key, dgk_public_key, 4, 1);
+		while (pool.get_paillier_depth() < 4 || pool.get_dgk_depth() < 4) {
+			Thread.sleep(10);
+		}
+		BigInteger value = BigInteger.valueOf(175);
+		BigInteger paillier_cipher = pool.encrypt_paillier(value);
+		assertEquals(value, PaillierCipher.decrypt(paillier_cipher, (PaillierPrivateKey) paillier.getPrivate()));
+		assertEquals(value.longValue(), DGKOperations.decrypt(pool.encrypt_dgk(value),
+				(DGKPrivateKey) dgk.getPrivate()));
+		BigInteger rerandomized = pool.rerandomize_paillier(paillier_cipher);
+		assertNotEquals(paillier_cipher, rerandomized);
+		assertEquals(value, PaillierCipher.decrypt(rerandomized, (PaillierPrivateKey) paillier.getPrivate()));
+		assertEquals(0, pool.get_misses());
+
+		// Refilling stops on save, so what is left is exactly what was written
+		File pool_file = Files.createTempDirectory("randomness_pool").resolve("randomness_pool.bin").toFile();
+		pool.save(pool_file.getPath());
+		// The values strip the blinding off ciphertexts, only the owner may read them
+		assertEquals(PosixFilePermissions.fromString("rw-------"),
+				Files.getPosixFilePermissions(pool_file.toPath()));
+		randomness_pool restored = new randomness_pool(paillier_public_key, dgk_public_key, 4, 0);
+		restored.load(pool_file.getPath());
+		assertFalse(pool_file.exists());
+		assertTrue(restored.get_paillier_depth() >= 2);
+		assertTrue(restored.get_dgk_depth() >= 3);
+		assertEquals(value, PaillierCipher.decrypt(restored.encrypt_paillier(value),
+				(PaillierPrivateKey) paillier.getPrivate()));
+		assertEquals(0, restored.get_misses());
+
+		// A second load finds nothing, no value is handed out twice
+		int depth = restored.get_paillier_depth();
+		restored.load(pool_file.getPath());
+		assertEquals(depth, restored.get_paillier_depth());
+
+		// A pool for the DGK key only reads back its own file
+		randomness_pool dgk_only = new randomness_pool(null, dgk_public_key, 2, 1);
+		while (dgk_only.get_dgk_depth() < 2) {
+			Thread.sleep(10);
+		}
+		dgk_only.save(pool_file.getPath());
+		randomness_pool dgk_restored = new randomness_pool(null, dgk_public_key, 2, 0);
+		dgk_restored.load(pool_file.getPath());
+		assertEquals(2, dgk_restored.get_dgk_depth());
+	}
+
+	// Leaves take two positions of the level and split nodes one, each index maps to the first node it reaches
+	@Test
+	public void test_evaluation_plan() {
+		level_order_site site = plan_level();
+
+		evaluation_plan plan = site.get_plan();
+		assertEquals(4, plan.size());
+		assertTrue(plan.is_leaf(0));
+		assertEquals(0, plan.node_offset(0));
+		assertEquals(1, plan.node_offset(1));
+		assertEquals(4, plan.comparison_type(1));
+		assertEquals(0, plan.child_index(1));
+		assertEquals("petalwidth", plan.attribute(plan.attribute_id(1)));
+		assertTrue(plan.is_leaf(2));
+		assertEquals(3, plan.node_offset(2));
+		assertEquals(4, plan.node_offset(3));
+		assertEquals(2, plan.child_index(3));
+		assertEquals("sepallength", plan.attribute(plan.attribute_id(3)));
+		assertEquals(2, plan.attributes());
+		assertFalse(plan.in_scope(4));
+
+		HashMap<String, BigIntegers> values = new HashMap<>();
+		BigIntegers petal_width = new BigIntegers(BigInteger.ONE, BigInteger.TWO);
+		values.put("petalwidth", petal_width);
+		values.put("unused", new BigIntegers(BigInteger.TEN, BigInteger.TEN));
+		features record = new features(values, "127.0.0.1", 10000);
+		assertEquals(petal_width, record.get_thresholds(plan, plan.attribute_id(1)));
+		assertNull(record.get_thresholds(plan, plan.attribute_id(3)));
+	}
+
+	// All-nodes mode compares every split of a level, and only once the model owner allows it
+	@Test
+	public void test_all_nodes_opt_in() {
+		level_order_site site = plan_level();
+		assertEquals(2, shared.count_splits(site));
+
+		attribute_manifest manifest = attribute_manifest.of(List.of(site));
+		assertFalse(manifest.allows_all_nodes());
+		manifest.set_all_nodes(true);
+		// Each client is told by the server-site, not by the manifest of the model
+		assertFalse(manifest.for_client("iris", "key").allows_all_nodes());
+	}
+
+	// A split stored once for both of its nodes is evaluated as the two nodes, and stays paired on the wire
+	@Test
+	public void test_paired_splits() throws Exception {
+		level_order_site site = new level_order_site(2, null, null);
+		site.append_data(new NodeInfo(true, BigInteger.valueOf(17).toString(), 0));
+		NodeInfo petal_width = new NodeInfo(false, "petalwidth", 4);
+		petal_width.setDGK(BigInteger.valueOf(5));
+		petal_width.set_paired(true);
+		site.append_data(petal_width);
+		site.append_data(new NodeInfo(true, BigInteger.valueOf(19).toString(), 0));
+		NodeInfo sepal_length = new NodeInfo(false, "sepallength", 1);
+		sepal_length.setDGK(BigInteger.valueOf(7));
+		sepal_length.set_paired(true);
+		site.append_data(sepal_length);
+
+		byte [] frame = binary_codec.encode(site);
+		level_order_site decoded = (level_order_site) binary_codec.decode(frame);
+		assertEquals(4, decoded.get_node_data().size());
+		assertTrue(decoded.get_node_data().get(1).is_paired());
+		assertNull(decoded.get_node_data().get(1).getPaillier());
+
+		evaluation_plan plan = decoded.get_plan();
+		assertEquals(4, plan.size());
+		assertTrue(plan.is_leaf(0));
+		assertEquals(1, plan.node_offset(1));
+		assertEquals(4, plan.comparison_type(1));
+		assertEquals(0, plan.child_index(1));
+		assertTrue(plan.is_leaf(2));
+		assertEquals(2, plan.node_offset(2));
+		assertEquals(3, plan.node_offset(3));
+		assertEquals(2, plan.child_index(3));
+		assertFalse(plan.in_scope(4));
+
+		// Decoders from before paired splits read version 2 only, and a decoder rejects versions newer than its own
+		assertTrue(frame[0] > 2);
+		frame[0] = binary_codec.VERSION + 1;
+		assertThrows(StreamCorruptedException.class, () -> binary_codec.decode(frame));
+	}
+
+	// Past the workers and the queue, the accepting thread waits until a client is done
+	@Test
+	public void test_admission() throws Exception {
+		admission admitted = new admission("test_workers", 1, 1);
+		admission.ticket first = admitted.admit();
+		admission.ticket second = admitted.admit();
+		CompletableFuture<admission.ticket> third = CompletableFuture.supplyAsync(admitted::admit);
+		Thread.sleep(200);
+		assertFalse(third.isDone());
+		first.close();
+		// A ticket is given back once
+		first.close();
+		third.get(10, TimeUnit.SECONDS).close();
+		second.close();
+
+		// One worker, the tasks run one at a time
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger most = new AtomicInteger();
+		try (ExecutorService clients = virtual_threads("clients")) {
+			for (int i = 0; i < 8; i++) {
+				clients.execute(() -> admitted.run(() -> {
+					most.accumulateAndGet(running.incrementAndGet(), Math::max);
+					LockSupport.parkNanos(1000000);
+					running.decrementAndGet();
+				}));
+			}
+		}
+		assertEquals(1, most.get());
+	}
+
+	@Test
+	public void test_metrics() {
+		metrics.histogram latency = metrics.histogram("test_latency_seconds", "Test latency", "level", "3");
+		latency.observe_nanos(2000000);
+		latency.observe_nanos(2000000000L);
+		metrics.counter bytes = metrics.counter("test_bytes_total", "Test bytes");
+		bytes.add(42);
+		metrics.gauge("test_depth", "Test depth", () -> 7, "queue", "a\"b");
+
+		assertEquals(2, latency.count());
+		String text = metrics.scrape();
+		assertTrue(text.contains("# TYPE test_latency_seconds histogram\n"));
+		assertTrue(text.contains("test_latency_seconds_bucket{level=\"3\",le=\"0.001\"} 0\n"));
+		assertTrue(text.contains("test_latency_seconds_bucket{level=\"3\",le=\"0.0025\"} 1\n"));
+		assertTrue(text.contains("test_latency_seconds_bucket{level=\"3\",le=\"+Inf\"} 2\n"));
+		assertTrue(text.contains("test_latency_seconds_count{level=\"3\"} 2\n"));
+		assertTrue(text.contains("test_bytes_total 42\n"));
+		assertTrue(text.contains("test_depth{queue=\"a\\\"b\"} 7\n"));
+	}
+
+	@Test
+	public void test_latency_recorder() {
+		long [] sorted = new long[100];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = (i + 1) * 1000000L;
+		}
+		assertEquals(50000000L, latency_recorder.percentile(sorted, 50));
+		assertEquals(95000000L, latency_recorder.percentile(sorted, 95));
+		assertEquals(99000000L, latency_recorder.percentile(sorted, 99));
+		assertEquals(100000000L, latency_recorder.percentile(sorted, 100));
+		assertEquals(0, latency_recorder.percentile(new long[0], 50));
+
+		latency_recorder latencies = new latency_recorder();
+		for (long nanos : sorted) {
+			latencies.record("end_to_end", nanos);
+		}
+		latencies.record("level_0", 2000000L);
+		latencies.error();
+		List<latency_recorder.summary> summaries = latencies.summarize(10000000000L);
+		assertEquals(2, summaries.size());
+		assertEquals("end_to_end", summaries.get(0).name());
+		assertEquals(10.0, summaries.get(0).throughput(), 1e-9);
+		assertEquals(50.5, summaries.get(0).mean(), 1e-9);
+
+		String csv = latency_recorder.to_csv(summaries);
+		assertTrue(csv.startsWith("name,count,throughput_per_s,mean_ms,p50_ms,p95_ms,p99_ms,max_ms\n"));
+		assertTrue(csv.contains("end_to_end,100,10.000,50.500,50.000,95.000,99.000,100.000\n"));
+		String json = latency_recorder.to_json(Map.of("clients", 4), latencies.get_errors(), summaries);
+		assertTrue(json.contains("\"clients\": 4,\n"));
+		assertTrue(json.contains("\"errors\": 1,\n"));
+		assertTrue(json.contains("{\"name\": \"level_0\", \"count\": 1, \"throughput_per_s\": 0.100, "));
+	}
+
+	// Answers every comparison itself, so only the evaluation around the protocols is measured
+	private static final class scripted_alice extends alice_joye {
+		public void writeInt(int value) {
+		}
+
+		public boolean Protocol2(BigInteger x, BigInteger y) {
+			return true;
+		}
+
+		public boolean encrypted_equals(BigInteger a, BigInteger b) {
+			return false;
+		}
+	}
+
+	@Test
+	public void test_comparison_allocation() throws Exception {
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		level_order_site site = new level_order_site(0, null, null);
+		NodeInfo less_equal = new NodeInfo(false, "petalwidth", 4);
+		NodeInfo greater = new NodeInfo(false, "petalwidth", 3);
+		less_equal.setDGK(BigInteger.TEN);
+		greater.setDGK(BigInteger.TEN);
+		site.append_data(less_equal);
+		site.append_data(greater);
+
+		HashMap<String, BigIntegers> values = new HashMap<>();
+		values.put("petalwidth", new BigIntegers(BigInteger.ONE, BigInteger.TWO));
+		features record = new features(values, "127.0.0.1", 10000);
+		scripted_alice niu = new scripted_alice();
+
+		int comparisons = 100000;
+		for (int i = 0; i < comparisons; i++) {
+			record.set_current_index(0);
+			traverse_level(site, record, niu);
+		}
+		long before = threads.getCurrentThreadAllocatedBytes();
+		for (int i = 0; i < comparisons; i++) {
+			record.set_current_index(0);
+			traverse_level(site, record, niu);
+		}
+		long per_comparison = (threads.getCurrentThreadAllocatedBytes() - before) / comparisons;
+		assertEquals(0, record.get_current_index());
+		assertTrue("A comparison allocates " + per_comparison + " bytes",
+				per_comparison <= COMPARISON_ALLOCATION_BUDGET);
+	}
+
+	// Pairs of a split and a leaf with random ciphertexts, the splits on attribute-0, attribute-1 and attribute-2
+	// in turn. Splits have a DGK threshold, and a Paillier one too with_paillier.
+	private static level_order_site random_level(int level, int pairs, boolean with_paillier, Random random) {
+		level_order_site site = new level_order_site(level, null, null);
+		for (int i = 0; i < pairs; i++) {
+			NodeInfo split = new NodeInfo(false, "attribute-" + i % 3, 4);
+			if (with_paillier) {
+				split.setPaillier(new BigInteger(4096, random));
+			}
+			split.setDGK(new BigInteger(2048, random));
+			site.append_data(split);
+			site.append_data(new NodeInfo(true, new BigInteger(4096, random).toString(), 0));
+		}
+		return site;
+	}
+
+	// A leaf, the two nodes of a petalwidth split, a leaf and the two nodes of a sepallength split
+	private static level_order_site plan_level() {
+		level_order_site site = new level_order_site(2, null, null);
+		site.append_data(new NodeInfo(true, "leaf-a", 0));
+		site.append_data(new NodeInfo(false, "petalwidth", 4));
+		site.append_data(new NodeInfo(false, "petalwidth", 3));
+		site.append_data(new NodeInfo(true, "leaf-b", 0));
+		site.append_data(new NodeInfo(false, "sepallength", 1));
+		site.append_data(new NodeInfo(false, "sepallength", 6));
+		return site;
+	}
+
+	private static int serialized_size(Object o) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+			oos.writeObject(o);
+		}
+		return bytes.size();
+	}
+
 	@Test
 	public void test_single_site() throws Exception {
 		String answer_path;
@@ -129,6 +920,23 @@ public final class PrivacyTest {
 								   int key_size, int precision,
 			String [] level_site_ips, String [] level_site_ports_string, String server_ip, int server_port)
 			throws InterruptedException {
+		return test_level_site(training_data, new String[] { features_file }, levels, key_size, precision,
+				level_site_ips, level_site_ports_string, server_ip, server_port)[0];
+	}
+
+	public static String [] test_level_site(String training_data, String [] features_files, int levels,
+								   int key_size, int precision,
+			String [] level_site_ips, String [] level_site_ports_string, String server_ip, int server_port)
+			throws InterruptedException {
+		return test_level_site(training_data, features_files, levels, key_size, precision,
+				level_site_ips, level_site_ports_string, server_ip, server_port, false);
+	}
+
+	public static String [] test_level_site(String training_data, String [] features_files, int levels,
+								   int key_size, int precision,
+			String [] level_site_ips, String [] level_site_ports_string, String server_ip, int server_port,
+			boolean all_nodes)
+			throws InterruptedException {
 		
 		int [] level_site_ports = new int[levels];
 
@@ -138,23 +946,27 @@ public final class PrivacyTest {
 			String port_string = level_site_ports_string[i].replaceAll("[^0-9]", "");
     		level_site_ports[i] = Integer.parseInt(port_string);
     		level_sites[i] = new level_site_server(level_site_ports[i]);
+			level_sites[i].set_allow_all_nodes(all_nodes);
         	new Thread(level_sites[i]).start();
     	}
 
 		// Create the server
 		server cloud = new server(training_data, level_site_ips, level_site_ports, precision, server_port);
+		cloud.set_allow_all_nodes(all_nodes);
 		Thread server = new Thread(cloud);
 		server.start();
 
 		// Create client
-    	client evaluate = new client(key_size, features_file, level_site_ips, level_site_ports, precision,
+    	client evaluate = new client(key_size, features_files, level_site_ips, level_site_ports, precision,
 				server_ip, server_port, "127.0.0.1");
+		evaluate.set_all_nodes(all_nodes);
     	Thread client = new Thread(evaluate);
 		client.start();
 
 		// Programmatically wait until classification is done.
 		server.join();
 		client.join();
+		evaluate.close();
 
     	// Close the Level Sites
 		for (level_site_server levelSite : level_sites) {
@@ -165,7 +977,7 @@ public final class PrivacyTest {
 			delete_file(file);
 		}
 
-    	return evaluate.getClassification();
+    	return evaluate.getClassifications();
 	}
 
 	public static void delete_file(String file_name){